@@ -0,0 +1,147 @@
+package com.bradforj287.raytracer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import com.bradforj287.raytracer.geometry.*;
+import com.bradforj287.raytracer.model.Accelerator;
+import com.bradforj287.raytracer.model.AcceleratorType;
+import com.bradforj287.raytracer.model.Mesh;
+import com.bradforj287.raytracer.model.MeshInstance;
+import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
+import com.bradforj287.raytracer.parser.ObjFileParser;
+import com.bradforj287.raytracer.utils.ShapeUtils;
+import com.bradforj287.raytracer.utils.Utils;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Builds every accelerator type on a scene and reports build time, memory and rays per second.
+ *
+ * usage: AcceleratorBenchmark [spheres|teapot|teapot-mesh|teapot-instances] [number of spheres] [number of rays] [triangle kernel]
+ *
+ * Each ray is a primary ray from outside the scene toward a random point inside it followed by a
+ * shadow ray from its hit toward a fixed light. Runs single threaded so the numbers compare the
+ * structures rather than the machine. The teapot-instances scene places one teapot mesh
+ * INSTANCE_GRID^3 times with MeshInstance, so nodes/ray includes the traversal of the instanced
+ * mesh.
+ */
+public class AcceleratorBenchmark {
+    private static final int INSTANCE_GRID = 4;
+
+    public static void main(String[] args) {
+        String sceneName = args.length > 0 ? args[0] : "spheres";
+        int sphereCount = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int rayCount = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+        TriangleKernel kernel = args.length > 3 ? TriangleKernel.valueOf(args[3]) : TriangleKernel.CRAMER;
+
+        List<Shape3d> shapes;
+        if (sceneName.equals("teapot")) {
+            shapes = teapotScene(kernel);
+        } else if (sceneName.equals("teapot-mesh")) {
+            shapes = new ArrayList<>();
+            shapes.add(ObjFileParser.parseObjMesh(Utils.tryGetResourceFile("teapot.obj"), kernel));
+        } else if (sceneName.equals("teapot-instances")) {
+            shapes = teapotInstances(kernel);
+        } else {
+            shapes = sphereScene(sphereCount);
+        }
+        System.out.println("scene " + sceneName + " with " + shapes.size() + " shapes, " + kernel + " triangles");
+
+        // rays are aimed from the scene bounds, not the accelerator bounds which may be padded
+        AxisAlignedBoundingBox3d bounds = ShapeUtils.getBoundsForShapes(shapes);
+        List<String> report = new ArrayList<>();
+        long[] referenceHits = null;
+        for (AcceleratorType type : AcceleratorType.values()) {
+            Stopwatch sw = Stopwatch.createStarted();
+            Accelerator accelerator = type.build(shapes);
+            long buildMillis = sw.elapsed(TimeUnit.MILLISECONDS);
+
+            // warm up, then measure
+            trace(accelerator, bounds, rayCount / 10, new KdTreeQueryStats());
+            KdTreeQueryStats stats = new KdTreeQueryStats();
+            sw = Stopwatch.createStarted();
+            long[] hits = trace(accelerator, bounds, rayCount, stats);
+            double seconds = sw.elapsed(TimeUnit.NANOSECONDS) / 1e9;
+
+            if (referenceHits == null) {
+                referenceHits = hits;
+            }
+            report.add(String.format("%-8s build %6d ms  memory %8.2f MB  %10.0f rays/s  nodes/ray %6.1f  shapes/ray %6.1f  hits %d/%d%s",
+                    type, buildMillis, accelerator.estimateMemoryBytes() / (1024.0 * 1024.0),
+                    stats.getRaysCast() / seconds,
+                    (double) stats.getNodesVisited() / stats.getRaysCast(),
+                    (double) stats.getShapesVisited() / stats.getRaysCast(),
+                    hits[0], hits[1],
+                    hits[0] == referenceHits[0] && hits[1] == referenceHits[1] ? "" : "  MISMATCH"));
+        }
+        report.forEach(System.out::println);
+        System.exit(0);
+    }
+
+    /**
+     * returns {primary hits, shadowed hits}
+     */
+    private static long[] trace(Accelerator accelerator, AxisAlignedBoundingBox3d bounds, int rayCount, KdTreeQueryStats stats) {
+        Vector3d min = bounds.getMin();
+        Vector3d max = bounds.getMax();
+        Vector3d center = min.add(max).multiply(0.5);
+        Vector3d diagonal = max.subtract(min);
+        Vector3d eye = center.add(new Vector3d(0, 0, diagonal.getMagnitude()));
+        Vector3d light = center.add(new Vector3d(diagonal.x, diagonal.y, diagonal.getMagnitude()));
+
+        Random random = new Random(7);
+        long[] hits = new long[2];
+        for (int i = 0; i < rayCount; i++) {
+            Vector3d target = new Vector3d(min.x + random.nextDouble() * diagonal.x,
+                    min.y + random.nextDouble() * diagonal.y,
+                    min.z + random.nextDouble() * diagonal.z);
+            Ray3d ray = new Ray3d(eye, target.subtract(eye).toUnitVector());
+            ShapeHit hit = accelerator.closestHit(ray, Double.MAX_VALUE, stats);
+            if (hit == null) {
+                continue;
+            }
+            hits[0]++;
+            Vector3d hitPoint = ray.getPointAtT(hit.getT());
+            Vector3d toLight = light.subtract(hitPoint);
+            Ray3d shadowRay = Ray3d.createShiftedRay(hitPoint, toLight);
+            if (accelerator.anyHit(shadowRay, 1, stats)) {
+                hits[1]++;
+            }
+        }
+        return hits;
+    }
+
+    private static List<Shape3d> sphereScene(int count) {
+        Random random = new Random(1);
+        List<Shape3d> shapes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Vector3d center = new Vector3d(2000 * random.nextDouble() - 1000,
+                    2000 * random.nextDouble() - 1000,
+                    2000 * random.nextDouble() - 1000);
+            shapes.add(new Sphere3d(center, 5 + 20 * random.nextDouble(), new Surface()));
+        }
+        return shapes;
+    }
+
+    private static List<Shape3d> teapotScene(TriangleKernel kernel) {
+        File objFile = Utils.tryGetResourceFile("teapot.obj");
+        return new ArrayList<>(ObjFileParser.parseObjFile(objFile, kernel));
+    }
+
+    private static List<Shape3d> teapotInstances(TriangleKernel kernel) {
+        Mesh mesh = new Mesh(teapotScene(kernel));
+        AxisAlignedBoundingBox3d bounds = mesh.getBounds();
+        double spacing = 1.5 * bounds.getMax().subtract(bounds.getMin()).getMagnitude();
+        List<Shape3d> shapes = new ArrayList<>();
+        for (int i = 0; i < INSTANCE_GRID * INSTANCE_GRID * INSTANCE_GRID; i++) {
+            Vector3d offset = new Vector3d(i % INSTANCE_GRID, (i / INSTANCE_GRID) % INSTANCE_GRID,
+                    i / (INSTANCE_GRID * INSTANCE_GRID)).multiply(spacing);
+            Matrix3d transform = Matrix3d.matrixMultiply(Matrix3d.getTranslationMatrix(offset),
+                    Matrix3d.getRotationMatrix(0.3 * i, 0.2 * i, 0.1 * i));
+            shapes.add(new MeshInstance(mesh, transform));
+        }
+        return shapes;
+    }
+}
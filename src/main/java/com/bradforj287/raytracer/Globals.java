@@ -2,12 +2,15 @@ package com.bradforj287.raytracer;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 public class Globals {
     public static int NUM_THREADS = Runtime.getRuntime().availableProcessors();
     public static ExecutorService executorService;
+    public static ForkJoinPool forkJoinPool;
 
     static {
         executorService = Executors.newFixedThreadPool(NUM_THREADS);
+        forkJoinPool = new ForkJoinPool(NUM_THREADS);
     }
 }
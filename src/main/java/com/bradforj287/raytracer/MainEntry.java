@@ -9,6 +9,7 @@ import java.util.stream.Collectors;
 import javax.swing.*;
 import com.bradforj287.raytracer.geometry.*;
 import com.bradforj287.raytracer.model.SceneModel;
+import com.bradforj287.raytracer.model.kdtree.KDTreeConfig;
 import com.bradforj287.raytracer.parser.ObjFileParser;
 import com.bradforj287.raytracer.ui.CameraControlPanel;
 import com.bradforj287.raytracer.utils.Utils;
@@ -19,9 +20,9 @@ public class MainEntry {
         JFrame frame = new JFrame("Brad's Ray Tracer");
 
         final File objFile = Utils.tryGetResourceFile("teapot.obj");
-        final List<Shape3d> teapot = ObjFileParser.parseObjFile(objFile);
+        final TriangleMesh teapot = ObjFileParser.parseObjMesh(objFile);
         final List<Shape3d> shapes = new ArrayList<>();
-        //shapes.addAll(teapot);
+        //shapes.add(teapot);
         final List<Triangle3d> boundingBoxTriangles = getBoundingBox();
 
         // test adding a sphere
@@ -42,7 +43,7 @@ public class MainEntry {
         Vector3d theMax = new Vector3d(100, 100, 100);
         System.out.println("building sponge");
         AxisAlignedBoundingBox3d bb = new AxisAlignedBoundingBox3d(theMin, theMax);
-        shapes.addAll(ShapeFactory.buildMengerSponge(bb, boxSurface, 2));
+        shapes.add(ShapeFactory.buildProceduralMengerSponge(bb, boxSurface, 2));
         System.out.println("finished building sponge");
 
 
@@ -67,7 +68,9 @@ public class MainEntry {
       //  shapes.addAll(boundingBoxTriangles);
 
         // build model
-        SceneModel model = new SceneModel(shapes);
+        KDTreeConfig treeConfig = new KDTreeConfig();
+        treeConfig.setCacheDirectory(ProgramArguments.KD_TREE_CACHE_DIRECTORY);
+        SceneModel model = new SceneModel(shapes, treeConfig);
 
         CameraControlPanel r = new CameraControlPanel(model);
         frame.setContentPane(r);
@@ -0,0 +1,134 @@
+package com.bradforj287.raytracer;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import com.bradforj287.raytracer.geometry.*;
+import com.bradforj287.raytracer.model.Camera;
+import com.bradforj287.raytracer.model.SceneModel;
+import com.bradforj287.raytracer.parser.ObjFileParser;
+import com.bradforj287.raytracer.utils.Utils;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Renders the teapot mesh with double and with float geometry and reports how far the float
+ * images are from the double one.
+ *
+ * usage: PrecisionComparison [triangle kernel] [distance from the origin] [directory to write the images to]
+ *        [max share of differing pixels]
+ *
+ * Float errors grow with the size of the coordinates, so the scene and camera can be moved away
+ * from the origin along x to see how far float geometry holds up. The teapot is a mirror, whose
+ * reflection rays start on the float triangles. The float scene is rendered twice, once with the
+ * ray offsets of its precision and once with the offsets of a double scene, which shows the self
+ * intersections the larger offsets prevent.
+ *
+ * Exits with 1 when more than the max share of pixels, 0.1% by default, of the float image
+ * differ from the double one. The float image with double offsets isn't checked, it is only
+ * there for comparison.
+ */
+public class PrecisionComparison {
+    private static final double DEFAULT_MAX_DIFFERING = 0.001;
+
+    public static void main(String[] args) throws IOException {
+        TriangleKernel kernel = args.length > 0 ? TriangleKernel.valueOf(args[0]) : TriangleKernel.CRAMER;
+        Vector3d origin = new Vector3d(args.length > 1 ? Double.parseDouble(args[1]) : 0, 0, 0);
+        File outputDirectory = args.length > 2 && !args[2].isEmpty() ? new File(args[2]) : null;
+        double maxDiffering = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_MAX_DIFFERING;
+
+        TriangleMesh doubleMesh = teapot(kernel, GeometryPrecision.DOUBLE, origin);
+        TriangleMesh floatMesh = teapot(kernel, GeometryPrecision.FLOAT, origin);
+        System.out.println("teapot mesh " + doubleMesh.getTriangleCount() + " triangles at " + origin + ", " + kernel
+                + ", double " + doubleMesh.getMemoryBytes() / 1024 + " KB, float " + floatMesh.getMemoryBytes() / 1024 + " KB");
+
+        BufferedImage reference = render("double", doubleMesh, GeometryPrecision.DOUBLE, origin, outputDirectory);
+        double differing = report("float", reference, render("float", floatMesh, GeometryPrecision.FLOAT, origin, outputDirectory));
+        report("float with double offsets", reference, render("float-double-offsets", floatMesh, GeometryPrecision.DOUBLE, origin, outputDirectory));
+
+        if (differing > maxDiffering) {
+            System.out.println(String.format("FAILED: %.3f%% of the float pixels differ, at most %.3f%% allowed",
+                    100 * differing, 100 * maxDiffering));
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * a mirror teapot moved to origin, with its vertices rounded once the mesh is built
+     */
+    private static TriangleMesh teapot(TriangleKernel kernel, GeometryPrecision precision, Vector3d origin) {
+        TriangleMesh parsed = ObjFileParser.parseObjMesh(Utils.tryGetResourceFile("teapot.obj"), kernel);
+        double[] vertices = new double[parsed.getTriangleCount() * 9];
+        int[] indices = new int[parsed.getTriangleCount() * 3];
+        for (int triangle = 0; triangle < parsed.getTriangleCount(); triangle++) {
+            for (int corner = 0; corner < 3; corner++) {
+                Vector3d v = parsed.getVertex(triangle, corner).add(origin);
+                int i = triangle * 3 + corner;
+                vertices[i * 3] = v.x;
+                vertices[i * 3 + 1] = v.y;
+                vertices[i * 3 + 2] = v.z;
+                indices[i] = i;
+            }
+        }
+        Surface mirror = new Surface(parsed.getSurface().getColor());
+        mirror.setReflective(true);
+        return new TriangleMesh(vertices, indices, mirror, kernel, precision);
+    }
+
+    private static BufferedImage render(String name, TriangleMesh mesh, GeometryPrecision offsets, Vector3d origin,
+                                        File outputDirectory) throws IOException {
+        List<Shape3d> shapes = new ArrayList<>();
+        shapes.add(mesh);
+        shapes.add(new Sphere3d(origin.add(new Vector3d(60, 0, 0)), 20, new Surface(new RgbColor(Color.blue.getRGB()))));
+
+        SceneModel model = new SceneModel(shapes);
+        model.setGeometryPrecision(offsets);
+        Camera camera = new Camera(ProgramArguments.SIZE_OF_SCENE, model);
+        camera.setScreenPosition(origin.add(new Vector3d(0, 150, 40)));
+        camera.setRotation(-1 * Math.PI / 2, 0, 0);
+
+        // warm up, then measure
+        camera.captureImage();
+        Stopwatch sw = Stopwatch.createStarted();
+        BufferedImage image = camera.captureImage().getImage();
+        System.out.println(String.format("%-22s %6d ms", name, sw.elapsed(TimeUnit.MILLISECONDS)));
+
+        if (outputDirectory != null) {
+            ImageIO.write(image, "png", new File(outputDirectory, "precision-" + name + ".png"));
+        }
+        return image;
+    }
+
+    /**
+     * prints how far image is from reference and returns the share of pixels that differ
+     */
+    private static double report(String name, BufferedImage reference, BufferedImage image) {
+        int differing = 0;
+        int maxDifference = 0;
+        long totalDifference = 0;
+        for (int x = 0; x < reference.getWidth(); x++) {
+            for (int y = 0; y < reference.getHeight(); y++) {
+                int a = reference.getRGB(x, y);
+                int b = image.getRGB(x, y);
+                if (a == b) {
+                    continue;
+                }
+                differing++;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int difference = Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff));
+                    maxDifference = Math.max(maxDifference, difference);
+                    totalDifference += difference;
+                }
+            }
+        }
+        int pixels = reference.getWidth() * reference.getHeight();
+        System.out.println(String.format("%-26s differing pixels %6d (%.3f%%)  mean channel difference %.4f  max %d",
+                name, differing, 100.0 * differing / pixels, totalDifference / (3.0 * pixels), maxDifference));
+        return (double) differing / pixels;
+    }
+}
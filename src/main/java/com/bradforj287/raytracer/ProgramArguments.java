@@ -1,6 +1,7 @@
 package com.bradforj287.raytracer;
 
 import java.awt.*;
+import java.io.File;
 import com.bradforj287.raytracer.geometry.Vector3d;
 
 public class ProgramArguments {
@@ -18,5 +19,11 @@ public class ProgramArguments {
     public final static double AMBIENT_LIGHT = .20;
     public final static double LIGHT_INTENSITY = 1.0;
     public final static int ANTIALIASING_SAMPLES = 1;
+    // path trace progressively in the UI, refining the image while the camera stands still
+    public final static boolean PROGRESSIVE = false;
     public final static Vector3d LIGHT_LOCATION = new Vector3d(300, 200, 200);
+
+    // built kd trees are cached here keyed by scene geometry, the least recently used ones are
+    // deleted past KDTreeCache.DEFAULT_MAX_BYTES. Set to null to always rebuild.
+    public final static File KD_TREE_CACHE_DIRECTORY = new File(System.getProperty("user.home"), ".raytracer/cache");
 }
@@ -0,0 +1,58 @@
+package com.bradforj287.raytracer.engine;
+
+import java.util.Arrays;
+import com.bradforj287.raytracer.geometry.HitRecord;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.Shape3d;
+import com.bradforj287.raytracer.model.MeshInstance;
+import com.bradforj287.raytracer.model.SceneModel;
+import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
+
+/**
+ * The primitive that last blocked a shadow ray, one per light. Neighboring shading points are
+ * mostly shadowed by the same primitive, so it is tested before the scene is traversed and a
+ * ray it blocks needs no traversal at all. Entries stay until another primitive blocks a shadow
+ * ray toward the same light.
+ *
+ * Not safe for concurrent use, every tracer has its own. Tracers live for one frame, so a cache
+ * never sees the scene change.
+ */
+public class OccluderCache {
+    private Shape3d[] shapes = new Shape3d[4];
+    private int[] primitives = new int[4];
+    private final HitRecord record = new HitRecord(0);
+
+    /**
+     * true if anything blocks the shadow ray toward the light with t no greater than maxT
+     */
+    public boolean isBlocked(int light, Ray3d ray, double maxT, SceneModel scene, KdTreeQueryStats queryStats) {
+        if (light >= shapes.length) {
+            int size = Math.max(light + 1, shapes.length * 2);
+            shapes = Arrays.copyOf(shapes, size);
+            primitives = Arrays.copyOf(primitives, size);
+        }
+        Shape3d cached = shapes[light];
+        if (cached != null && isOccluding(cached, primitives[light], ray, maxT, queryStats)) {
+            queryStats.occluderCacheHit();
+            return true;
+        }
+        queryStats.occluderCacheMiss();
+
+        record.reset(maxT);
+        if (!scene.anyHit(ray, maxT, queryStats, record)) {
+            return false;
+        }
+        if (record.isHit()) {
+            shapes[light] = record.getShape();
+            primitives[light] = record.getPrimitive();
+        }
+        return true;
+    }
+
+    private static boolean isOccluding(Shape3d shape, int primitive, Ray3d ray, double maxT, KdTreeQueryStats queryStats) {
+        if (shape instanceof MeshInstance) {
+            return ((MeshInstance) shape).anyHit(ray, maxT, queryStats);
+        }
+        return shape.isPrimitiveOccludingRay(primitive, ray, maxT);
+    }
+}
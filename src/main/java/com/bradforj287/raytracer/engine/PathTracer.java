@@ -0,0 +1,210 @@
+package com.bradforj287.raytracer.engine;
+
+import java.util.Random;
+import com.bradforj287.raytracer.ProgramArguments;
+import com.bradforj287.raytracer.geometry.*;
+import com.bradforj287.raytracer.model.RayPacket;
+import com.bradforj287.raytracer.model.SceneModel;
+import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
+import com.bradforj287.raytracer.model.light.LightTree;
+
+/**
+ * Monte Carlo path tracer. Every call follows one random path per ray, so a single image is
+ * noisy and is meant to be averaged with many others, see Camera.setProgressive.
+ *
+ * Surfaces are lit like in RayTracer, ambient light plus the lights reaching them, with one
+ * shadow ray for each of lightSamples lights, at least one, picked from the light tree. Shadow
+ * rays aim at a random point of area lights so shadows soften as passes add up. Diffuse
+ * surfaces then continue the path in a random cosine weighted direction, weighted by their
+ * color, so they light each other. Glass reflects or refracts at random by its fresnel terms
+ * instead of splitting the path.
+ *
+ * Ambient light is added once, where the path first meets a diffuse surface, the bounces after
+ * it bring the light that ambient stands in for. Paths end at the max depth of the config, or
+ * earlier by russian roulette like in RayTracer when the config enables it.
+ */
+public class PathTracer implements Tracer {
+    private final SceneModel scene;
+    private final ShadingConfig config;
+    private KdTreeQueryStats kdTreeQueryStats = new KdTreeQueryStats();
+    private final Random random = new Random();
+
+    // lighting scratch space
+    private final double[] lightSum = new double[3];
+    private final double[] lightPdf = new double[1];
+    private final OccluderCache occluders = new OccluderCache();
+
+    public PathTracer(final SceneModel model) {
+        this(model, new ShadingConfig());
+    }
+
+    public PathTracer(final SceneModel model, final ShadingConfig config) {
+        this.scene = model;
+        this.config = new ShadingConfig(config);
+    }
+
+    @Override
+    public KdTreeQueryStats getKdTreeQueryStats() {
+        return kdTreeQueryStats;
+    }
+
+    @Override
+    public RgbColor getColorForRay(final Ray3d ray) {
+        return tracePath(ray, scene.closestHit(ray, Double.MAX_VALUE, kdTreeQueryStats));
+    }
+
+    @Override
+    public void getColorsForPacket(final RayPacket packet, final RgbColor[] colors) {
+        scene.closestHit(packet, kdTreeQueryStats);
+        for (int i = 0; i < packet.size(); i++) {
+            colors[i] = tracePath(packet.getRay(i), packet.getHit(i));
+        }
+    }
+
+    /**
+     * color of one random path starting with ray, whose first hit is already known
+     */
+    private RgbColor tracePath(Ray3d ray, ShapeHit hit) {
+        double red = 0, green = 0, blue = 0;
+        // share of the color of the current hit that reaches the pixel
+        double tr = 1, tg = 1, tb = 1;
+        boolean bounced = false;
+
+        for (int depth = 0; hit != null; depth++) {
+            final boolean canRecurseFurther = depth < config.getMaxDepth();
+            Surface surface = hit.getHitShape().getSurface();
+            Vector3d intersectLoc = ray.getPoint().add(ray.getDirection().multiply(hit.getT()));
+            Vector3d normalToShape = hit.getNormal(intersectLoc);
+            RgbColor color = surface.getColor();
+
+            if (surface.isLightSource()) {
+                red += tr * color.getRed();
+                green += tg * color.getGreen();
+                blue += tb * color.getBlue();
+                break;
+            }
+
+            if (canRecurseFurther && (surface.isRefractive() || surface.isReflective())) {
+                Vector3d dir = ray.getDirection().toUnitVector();
+                Vector3d nextDirection;
+                if (surface.isRefractive() && surface.isReflective()) {
+                    RayTracer.FresnelResult fresnelResult = RayTracer.fresnel(dir, normalToShape,
+                            surface.getIof());
+                    if (random.nextDouble() < fresnelResult.kr) {
+                        nextDirection = RayTracer.getReflectionVector(dir, normalToShape);
+                    } else {
+                        nextDirection = RayTracer.getRefractionVector(dir, normalToShape,
+                                surface.getIof()).toUnitVector();
+                    }
+                } else if (surface.isRefractive()) {
+                    nextDirection = RayTracer.getRefractionVector(dir, normalToShape,
+                            surface.getIof());
+                } else {
+                    nextDirection = RayTracer.getReflectionVector(ray, normalToShape);
+                }
+                ray = Ray3d.createShiftedRay(intersectLoc, nextDirection, normalToShape,
+                        scene.getGeometryPrecision());
+            } else {
+                directLight(intersectLoc, normalToShape, canRecurseFurther);
+                double ambient = ProgramArguments.AMBIENT_LIGHT;
+                double fill = bounced ? 0 : ambient;
+                bounced = true;
+                red += tr * color.getRed() * (fill + (1 - ambient) * lightSum[0]);
+                green += tg * color.getGreen() * (fill + (1 - ambient) * lightSum[1]);
+                blue += tb * color.getBlue() * (fill + (1 - ambient) * lightSum[2]);
+                if (!canRecurseFurther) {
+                    break;
+                }
+
+                tr *= (1 - ambient) * color.getRed() / 255;
+                tg *= (1 - ambient) * color.getGreen() / 255;
+                tb *= (1 - ambient) * color.getBlue() / 255;
+                double weight = Math.max(tr, Math.max(tg, tb));
+                if (config.isRussianRoulette() && weight < config.getRussianRouletteWeight()) {
+                    if (random.nextDouble() * config.getRussianRouletteWeight() >= weight) {
+                        kdTreeQueryStats.rayTerminated();
+                        break;
+                    }
+                    double survival = weight / config.getRussianRouletteWeight();
+                    tr /= survival;
+                    tg /= survival;
+                    tb /= survival;
+                }
+
+                // bounce off the side the ray came from
+                Vector3d normal = normalToShape.dot(ray.getDirection()) > 0
+                        ? normalToShape.multiply(-1) : normalToShape;
+                ray = Ray3d.createShiftedRay(intersectLoc, cosineDirection(normal), normal,
+                        scene.getGeometryPrecision());
+            }
+            hit = scene.closestHit(ray, Double.MAX_VALUE, kdTreeQueryStats);
+        }
+        return new RgbColor(red, green, blue);
+    }
+
+    /**
+     * random direction around the unit normal with a density proportional to its cosine with
+     * the normal
+     */
+    private Vector3d cosineDirection(Vector3d normal) {
+        Vector3d helper = Math.abs(normal.x) > 0.5 ? new Vector3d(0, 1, 0) : new Vector3d(1, 0, 0);
+        Vector3d u = helper.cross(normal).toUnitVector();
+        Vector3d v = normal.cross(u);
+        double phi = 2 * Math.PI * random.nextDouble();
+        double r2 = random.nextDouble();
+        double s = Math.sqrt(r2);
+        return u.multiply(Math.cos(phi) * s).add(v.multiply(Math.sin(phi) * s))
+                .add(normal.multiply(Math.sqrt(1 - r2)));
+    }
+
+    /**
+     * sets lightSum to the light reaching the point per channel, see RayTracer.addLight
+     */
+    private void directLight(Vector3d intersectLoc, Vector3d normalToShape,
+                             boolean canRecurseFurther) {
+        LightTree lights = scene.getLights();
+        lightSum[0] = lightSum[1] = lightSum[2] = 0;
+        int samples = Math.max(1, config.getLightSamples());
+        for (int i = 0; i < samples; i++) {
+            int light = lights.sample(intersectLoc, random, lightPdf);
+            if (light >= 0) {
+                addLight(lights.getLight(light), light, 1 / (lightPdf[0] * samples),
+                        intersectLoc, normalToShape, canRecurseFurther);
+            }
+        }
+    }
+
+    private void addLight(PointLight light, int lightNumber, double weight, Vector3d intersectLoc,
+                          Vector3d normalToShape, boolean canRecurseFurther) {
+        Vector3d lightLocation = light.samplePosition(random);
+        Vector3d toLight = lightLocation.subtract(intersectLoc);
+        double distance = toLight.getMagnitude();
+        Vector3d directionToLight = toLight.multiply(1 / distance);
+        double angleBetweenNormalAndLight = normalToShape.dot(directionToLight);
+        if (angleBetweenNormalAndLight <= 0) {
+            return;
+        }
+        double attenuation = light.getAttenuation(distance);
+        if (attenuation == 0) {
+            return;
+        }
+        if (canRecurseFurther) {
+            Ray3d shadowRay = Ray3d.createShiftedRay(intersectLoc, directionToLight, normalToShape,
+                    scene.getGeometryPrecision());
+            // the unit direction makes t the distance from the shifted origin
+            double tThatHitsLight = distance - Ray3d.DEFAULT_SHIFT;
+            boolean blocked = config.isOccluderCache()
+                    ? occluders.isBlocked(lightNumber, shadowRay, tThatHitsLight, scene,
+                            kdTreeQueryStats)
+                    : scene.anyHit(shadowRay, tThatHitsLight, kdTreeQueryStats);
+            if (blocked) {
+                return;
+            }
+        }
+        double scalar = angleBetweenNormalAndLight * light.getIntensity() * attenuation * weight;
+        RgbColor lightColor = light.getColor();
+        lightSum[0] += scalar * (lightColor.getRed() / 255);
+        lightSum[1] += scalar * (lightColor.getGreen() / 255);
+        lightSum[2] += scalar * (lightColor.getBlue() / 255);
+    }
+}
@@ -0,0 +1,203 @@
+package com.bradforj287.raytracer.engine;
+
+import java.util.Arrays;
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.geometry.Vector3d;
+
+/**
+ * Rays waiting for a stage of the WavefrontRenderer, stored as structure of arrays. Bounce rays
+ * carry their weight and depth, shadow rays the light they aim at and the color they add to
+ * their pixel when nothing blocks them. Stages write their results, hits or blocked, next to
+ * the rays.
+ *
+ * Not thread safe, stages that split a queue over threads only write their own range.
+ */
+class RayQueue {
+    // bits per axis of the Morton code, 3 octant bits on top make a 30 bit key
+    private static final int MORTON_BITS = 9;
+    private static final int RADIX_BITS = 10;
+    private static final int RADIX_MASK = (1 << RADIX_BITS) - 1;
+
+    double[] ox = new double[0];
+    double[] oy = new double[0];
+    double[] oz = new double[0];
+    double[] dx = new double[0];
+    double[] dy = new double[0];
+    double[] dz = new double[0];
+    double[] tMax = new double[0];
+    int[] pixels = new int[0];
+
+    // bounce rays
+    double[] weights = new double[0];
+    int[] depths = new int[0];
+    ShapeHit[] hits = new ShapeHit[0];
+
+    // shadow rays
+    int[] lights = new int[0];
+    double[] red = new double[0];
+    double[] green = new double[0];
+    double[] blue = new double[0];
+    boolean[] blocked = new boolean[0];
+
+    private int size;
+
+    // sorting scratch space
+    private int[] keys = new int[0];
+    private int[] order = new int[0];
+    private int[] sortedKeys = new int[0];
+    private int[] sortedOrder = new int[0];
+    private double[] scratch = new double[0];
+    private final int[] digitCounts = new int[(1 << RADIX_BITS) + 1];
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(hits, 0, size, null);
+        size = 0;
+    }
+
+    Ray3d getRay(int i) {
+        return new Ray3d(new Vector3d(ox[i], oy[i], oz[i]), new Vector3d(dx[i], dy[i], dz[i]));
+    }
+
+    void addBounce(Ray3d ray, double weight, int depth, int pixel) {
+        int i = add(ray, Double.MAX_VALUE, pixel);
+        weights[i] = weight;
+        depths[i] = depth;
+    }
+
+    void addShadow(Ray3d ray, double maxT, int light, int pixel, double r, double g, double b) {
+        int i = add(ray, maxT, pixel);
+        lights[i] = light;
+        red[i] = r;
+        green[i] = g;
+        blue[i] = b;
+    }
+
+    private int add(Ray3d ray, double maxT, int pixel) {
+        if (size == ox.length) {
+            grow(Math.max(1024, size * 2));
+        }
+        int i = size++;
+        Vector3d point = ray.getPoint();
+        Vector3d dir = ray.getDirection();
+        ox[i] = point.x;
+        oy[i] = point.y;
+        oz[i] = point.z;
+        dx[i] = dir.x;
+        dy[i] = dir.y;
+        dz[i] = dir.z;
+        tMax[i] = maxT;
+        pixels[i] = pixel;
+        hits[i] = null;
+        blocked[i] = false;
+        return i;
+    }
+
+    private void grow(int capacity) {
+        ox = Arrays.copyOf(ox, capacity);
+        oy = Arrays.copyOf(oy, capacity);
+        oz = Arrays.copyOf(oz, capacity);
+        dx = Arrays.copyOf(dx, capacity);
+        dy = Arrays.copyOf(dy, capacity);
+        dz = Arrays.copyOf(dz, capacity);
+        tMax = Arrays.copyOf(tMax, capacity);
+        pixels = Arrays.copyOf(pixels, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+        depths = Arrays.copyOf(depths, capacity);
+        hits = Arrays.copyOf(hits, capacity);
+        lights = Arrays.copyOf(lights, capacity);
+        red = Arrays.copyOf(red, capacity);
+        green = Arrays.copyOf(green, capacity);
+        blue = Arrays.copyOf(blue, capacity);
+        blocked = Arrays.copyOf(blocked, capacity);
+    }
+
+    /**
+     * orders the rays by the octant of their direction, then along a Morton curve through
+     * bounds by their origin, so rays next to each other in the queue start close together and
+     * point the same way. The keys are radix sorted RADIX_BITS at a time.
+     */
+    void sort(AxisAlignedBoundingBox3d bounds) {
+        if (size < 2) {
+            return;
+        }
+        if (keys.length < size) {
+            keys = new int[ox.length];
+            order = new int[ox.length];
+            sortedKeys = new int[ox.length];
+            sortedOrder = new int[ox.length];
+            scratch = new double[ox.length];
+        }
+        Vector3d min = bounds.getMin();
+        Vector3d max = bounds.getMax();
+        for (int i = 0; i < size; i++) {
+            int octant = (dx[i] < 0 ? 4 : 0) | (dy[i] < 0 ? 2 : 0) | (dz[i] < 0 ? 1 : 0);
+            int morton = spreadBits(quantize(ox[i], min.x, max.x))
+                    | spreadBits(quantize(oy[i], min.y, max.y)) << 1
+                    | spreadBits(quantize(oz[i], min.z, max.z)) << 2;
+            keys[i] = octant << (3 * MORTON_BITS) | morton;
+            order[i] = i;
+        }
+
+        // least significant digit first, each pass stable
+        int[] k = keys, o = order, sk = sortedKeys, so = sortedOrder;
+        for (int shift = 0; shift < 3 + 3 * MORTON_BITS; shift += RADIX_BITS) {
+            Arrays.fill(digitCounts, 0);
+            for (int i = 0; i < size; i++) {
+                digitCounts[((k[i] >>> shift) & RADIX_MASK) + 1]++;
+            }
+            for (int d = 1; d < digitCounts.length; d++) {
+                digitCounts[d] += digitCounts[d - 1];
+            }
+            for (int i = 0; i < size; i++) {
+                int at = digitCounts[(k[i] >>> shift) & RADIX_MASK]++;
+                sk[at] = k[i];
+                so[at] = o[i];
+            }
+            int[] t = k;
+            k = sk;
+            sk = t;
+            t = o;
+            o = so;
+            so = t;
+        }
+
+        for (double[] column : new double[][]{ox, oy, oz, dx, dy, dz, tMax, weights, red, green, blue}) {
+            for (int i = 0; i < size; i++) {
+                scratch[i] = column[o[i]];
+            }
+            System.arraycopy(scratch, 0, column, 0, size);
+        }
+        for (int[] column : new int[][]{pixels, depths, lights}) {
+            for (int i = 0; i < size; i++) {
+                sk[i] = column[o[i]];
+            }
+            System.arraycopy(sk, 0, column, 0, size);
+        }
+    }
+
+    private static int quantize(double value, double min, double max) {
+        if (!(max > min)) {
+            return 0;
+        }
+        int cells = 1 << MORTON_BITS;
+        int q = (int) ((value - min) / (max - min) * cells);
+        return Math.max(0, Math.min(cells - 1, q));
+    }
+
+    /**
+     * spreads the low 10 bits of v out to every third bit
+     */
+    private static int spreadBits(int v) {
+        v = (v | (v << 16)) & 0x030000FF;
+        v = (v | (v << 8)) & 0x0300F00F;
+        v = (v | (v << 4)) & 0x030C30C3;
+        v = (v | (v << 2)) & 0x09249249;
+        return v;
+    }
+}
@@ -1,25 +1,46 @@
 package com.bradforj287.raytracer.engine;
 
+import java.util.Arrays;
+import java.util.Random;
 import com.bradforj287.raytracer.ProgramArguments;
 import com.bradforj287.raytracer.geometry.*;
+import com.bradforj287.raytracer.model.RayPacket;
 import com.bradforj287.raytracer.model.SceneModel;
 import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
+import com.bradforj287.raytracer.model.light.LightTree;
 
 public class RayTracer implements Tracer {
     private final SceneModel scene;
+    private final ShadingConfig config;
     private KdTreeQueryStats kdTreeQueryStats = new KdTreeQueryStats();
+    private final Random random = new Random();
 
-    private final static int MAX_RECURSE_DEPTH = 16;
+    // rays waiting to be shaded, a tracer is only used by one thread
+    private Ray3d[] stackRays = new Ray3d[32];
+    private double[] stackWeights = new double[32];
+    private int[] stackDepths = new int[32];
+    private int stackSize;
+
+    // lighting scratch space
+    private final double[] lightSum = new double[3];
+    private final double[] lightPdf = new double[1];
+    private int[] lightIndices = new int[0];
+    private final OccluderCache occluders = new OccluderCache();
 
     public RayTracer(final SceneModel model) {
+        this(model, new ShadingConfig());
+    }
+
+    public RayTracer(final SceneModel model, final ShadingConfig config) {
         this.scene = model;
+        this.config = new ShadingConfig(config);
     }
 
-    private static double clamp(final double val, final double min, final double max) {
+    static double clamp(final double val, final double min, final double max) {
         return Math.max(min, Math.min(max, val));
     }
 
-    private Vector3d getRefractionVector(final Vector3d I, final Vector3d N, final double ior) {
+    static Vector3d getRefractionVector(final Vector3d I, final Vector3d N, final double ior) {
         double cosi = clamp(-1, 1, I.dot(N));
         double etai = 1, etat = ior;
         Vector3d n = N;
@@ -40,11 +61,11 @@ public class RayTracer implements Tracer {
         }
     }
 
-    private Vector3d getReflectionVector(final Ray3d ray, final Vector3d normalToShape) {
+    static Vector3d getReflectionVector(final Ray3d ray, final Vector3d normalToShape) {
        return getReflectionVector(ray.getDirection(), normalToShape);
     }
 
-    private Vector3d getReflectionVector(final Vector3d dir, final Vector3d normalToShape) {
+    static Vector3d getReflectionVector(final Vector3d dir, final Vector3d normalToShape) {
         double dDotN = dir.dot(normalToShape) * 2;
         return dir.subtract(normalToShape.multiply(dDotN));
     }
@@ -54,12 +75,12 @@ public class RayTracer implements Tracer {
         return kdTreeQueryStats;
     }
 
-    private class FresnelResult {
-        private double kt;
-        private double kr;
+    static class FresnelResult {
+        double kt;
+        double kr;
     }
 
-    private FresnelResult fresnel(final Vector3d I, final Vector3d N, final double ior) {
+    static FresnelResult fresnel(final Vector3d I, final Vector3d N, final double ior) {
         double cosi = clamp(-1, 1, I.dot(N));
         double etai = 1, etat = ior;
         if (cosi > 0) {
@@ -85,32 +106,144 @@ public class RayTracer implements Tracer {
         return result;
     }
 
+    /**
+     * surface color lit by ambient light and every light reaching the hit, or by sampled lights
+     * when the config asks for light samples. Light source surfaces glow in their own color.
+     */
     private RgbColor getColorShadowAdusted(Shape3d intersectShape, Vector3d intersectLoc, Vector3d normalToShape, int depth) {
-        boolean canRecurseFurther = depth < MAX_RECURSE_DEPTH;
-        RgbColor color = intersectShape.getSurface().getColor();
-        Vector3d vectorToLight = ProgramArguments.LIGHT_LOCATION.subtract(intersectLoc).toUnitVector();
-
-        double angleBetweenNormalAndLight = normalToShape.dot(vectorToLight);
+        boolean canRecurseFurther = depth < config.getMaxDepth();
+        Surface surface = intersectShape.getSurface();
+        RgbColor color = surface.getColor();
+        if (surface.isLightSource()) {
+            return color;
+        }
 
-        if (angleBetweenNormalAndLight < 0) {
-            angleBetweenNormalAndLight = 0;
-        } else if (canRecurseFurther && isInShadow(intersectLoc, ProgramArguments.LIGHT_LOCATION)) {
-            angleBetweenNormalAndLight = 0;
+        LightTree lights = scene.getLights();
+        lightSum[0] = lightSum[1] = lightSum[2] = 0;
+        int samples = config.getLightSamples();
+        if (samples > 0) {
+            for (int i = 0; i < samples; i++) {
+                int light = lights.sample(intersectLoc, random, lightPdf);
+                if (light >= 0) {
+                    addLight(lights.getLight(light), light, 1 / (lightPdf[0] * samples),
+                            intersectLoc, normalToShape, canRecurseFurther);
+                }
+            }
+        } else if (lights.getLightCount() > 0) {
+            if (lightIndices.length < lights.getLightCount()) {
+                lightIndices = new int[lights.getLightCount()];
+            }
+            int count = lights.collect(intersectLoc, lightIndices);
+            for (int i = 0; i < count; i++) {
+                addLight(lights.getLight(lightIndices[i]), lightIndices[i], 1,
+                        intersectLoc, normalToShape, canRecurseFurther);
+            }
         }
 
-        double colorscalar = ProgramArguments.AMBIENT_LIGHT + (1 - ProgramArguments.AMBIENT_LIGHT)
-                * (angleBetweenNormalAndLight * ProgramArguments.LIGHT_INTENSITY);
-        return color.scale(colorscalar);
+        double ambient = ProgramArguments.AMBIENT_LIGHT;
+        return new RgbColor(color.getRed() * (ambient + (1 - ambient) * lightSum[0]),
+                color.getGreen() * (ambient + (1 - ambient) * lightSum[1]),
+                color.getBlue() * (ambient + (1 - ambient) * lightSum[2]));
+    }
+
+    /**
+     * adds the light times weight to lightSum as a share of the surface color per channel,
+     * unless the hit faces away from it or is in its shadow. Every light of the scene has its
+     * own number for the occluder cache.
+     */
+    private void addLight(PointLight light, int lightNumber, double weight, Vector3d intersectLoc, Vector3d normalToShape, boolean canRecurseFurther) {
+        Vector3d lightLocation = light.samplePosition(random);
+        Vector3d toLight = lightLocation.subtract(intersectLoc);
+        double angleBetweenNormalAndLight = normalToShape.dot(toLight.toUnitVector());
+        if (angleBetweenNormalAndLight <= 0) {
+            return;
+        }
+        double attenuation = light.getAttenuation(toLight.getMagnitude());
+        if (attenuation == 0) {
+            return;
+        }
+        if (canRecurseFurther && isInShadow(intersectLoc, normalToShape, lightLocation, lightNumber)) {
+            return;
+        }
+        double scalar = angleBetweenNormalAndLight * light.getIntensity() * attenuation * weight;
+        RgbColor lightColor = light.getColor();
+        lightSum[0] += scalar * (lightColor.getRed() / 255);
+        lightSum[1] += scalar * (lightColor.getGreen() / 255);
+        lightSum[2] += scalar * (lightColor.getBlue() / 255);
     }
 
     @Override
     public RgbColor getColorForRay(final Ray3d ray) {
-        return getColorForRay(ray, 0);
+        return shade(ray, doesRayHitAnyShape(ray));
     }
 
-    private RgbColor getColorForRay(final Ray3d ray, int depth) {
-        final boolean canRecurseFurther = depth < MAX_RECURSE_DEPTH;
-        RayHitResult rayHitResult = doesRayHitAnyShape(ray);
+    @Override
+    public void getColorsForPacket(final RayPacket packet, final RgbColor[] colors) {
+        scene.closestHit(packet, kdTreeQueryStats);
+        for (int i = 0; i < packet.size(); i++) {
+            colors[i] = shade(packet.getRay(i), toRayHitResult(packet.getHit(i), Double.MAX_VALUE));
+        }
+    }
+
+    /**
+     * color of a primary ray whose hit is already known. Reflected and refracted rays go onto
+     * the work stack instead of recursing, every ray adds its shaded color times its weight.
+     */
+    private RgbColor shade(final Ray3d primaryRay, final RayHitResult primaryHit) {
+        RgbColor color = RgbColor.BLACK;
+        stackSize = 0;
+        push(primaryRay, 1, 0);
+        RayHitResult hit = primaryHit;
+        while (stackSize > 0) {
+            stackSize--;
+            Ray3d ray = stackRays[stackSize];
+            double weight = stackWeights[stackSize];
+            int depth = stackDepths[stackSize];
+            stackRays[stackSize] = null;
+            if (hit == null) {
+                hit = doesRayHitAnyShape(ray);
+            }
+            RgbColor hitColor = getColorForHit(ray, hit, weight, depth);
+            if (hitColor != RgbColor.BLACK) {
+                color = color.add(hitColor.scale(weight));
+            }
+            hit = null;
+        }
+        return color;
+    }
+
+    /**
+     * adds a ray to the work stack unless it weighs too little to matter
+     */
+    private void push(final Ray3d ray, double weight, final int depth) {
+        if (weight < config.getMinContribution()) {
+            kdTreeQueryStats.rayTerminated();
+            return;
+        }
+        if (config.isRussianRoulette() && weight < config.getRussianRouletteWeight()) {
+            if (random.nextDouble() * config.getRussianRouletteWeight() >= weight) {
+                kdTreeQueryStats.rayTerminated();
+                return;
+            }
+            weight = config.getRussianRouletteWeight();
+        }
+        if (stackSize == stackRays.length) {
+            stackRays = Arrays.copyOf(stackRays, stackSize * 2);
+            stackWeights = Arrays.copyOf(stackWeights, stackSize * 2);
+            stackDepths = Arrays.copyOf(stackDepths, stackSize * 2);
+        }
+        stackRays[stackSize] = ray;
+        stackWeights[stackSize] = weight;
+        stackDepths[stackSize] = depth;
+        stackSize++;
+    }
+
+    /**
+     * shaded color of the hit for surfaces that end the path. Mirrors and glass push the rays
+     * they spawn with their share of the weight and return BLACK.
+     */
+    private RgbColor getColorForHit(final Ray3d ray, final RayHitResult rayHitResult, final double weight, final int depth) {
+        final boolean canRecurseFurther = depth < config.getMaxDepth();
 
         if (!rayHitResult.didHitShape()) {
             return RgbColor.BLACK; // doesn't hit anything.
@@ -121,76 +254,66 @@ public class RayTracer implements Tracer {
         final double t = rayHitResult.getT();
 
         Vector3d intersectLoc = ray.getPoint().add(ray.getDirection().multiply(t));
-        Vector3d normalToShape = intersectShape.normalAtSurfacePoint(intersectLoc);
+        Vector3d normalToShape = rayHitResult.getShapeHit().getNormal(intersectLoc);
 
         if (canRecurseFurther) {
             if (intersectSurface.isRefractive() && intersectSurface.isReflective()) {
-                RgbColor refractionColor = RgbColor.BLACK;
                 // compute fresnel
                 Vector3d dir = ray.getDirection().toUnitVector();
-                float kr;
                 FresnelResult fresnelResult = fresnel(dir, normalToShape, intersectSurface.getIof());
                 // compute refraction if it is not a case of total internal reflection
                 if (fresnelResult.kr < 1) {
                     Vector3d refractionDirection = getRefractionVector(dir, normalToShape, intersectSurface.getIof()).toUnitVector();
-                    Ray3d fresnelRay = Ray3d.createShiftedRay(intersectLoc, refractionDirection);
-                    refractionColor = getColorForRay(fresnelRay, depth + 1);
+                    Ray3d fresnelRay = Ray3d.createShiftedRay(intersectLoc, refractionDirection, normalToShape, scene.getGeometryPrecision());
+                    push(fresnelRay, weight * (1 - fresnelResult.kr), depth + 1);
                 }
 
                 Vector3d reflectionDirection = getReflectionVector(dir, normalToShape).toUnitVector();
-                Ray3d reflectionRay = Ray3d.createShiftedRay(intersectLoc, reflectionDirection);
-                RgbColor reflectionColor = getColorForRay(reflectionRay, depth + 1);
-
-                RgbColor reflectColorVec = reflectionColor.scale(fresnelResult.kr);
-                RgbColor refractColorVec = refractionColor.scale(1 -fresnelResult.kr);
-
-                return reflectColorVec.add(refractColorVec);
+                Ray3d reflectionRay = Ray3d.createShiftedRay(intersectLoc, reflectionDirection, normalToShape, scene.getGeometryPrecision());
+                push(reflectionRay, weight * fresnelResult.kr, depth + 1);
+                return RgbColor.BLACK;
             } else if (intersectSurface.isRefractive()) {
                 double iof = intersectSurface.getIof();
                 Vector3d refractDir = getRefractionVector(ray.getDirection().toUnitVector(), normalToShape, iof);
-                Ray3d refractRay = Ray3d.createShiftedRay(intersectLoc, refractDir);
-                return getColorForRay(refractRay, depth + 1);
+                Ray3d refractRay = Ray3d.createShiftedRay(intersectLoc, refractDir, normalToShape, scene.getGeometryPrecision());
+                push(refractRay, weight, depth + 1);
+                return RgbColor.BLACK;
             } else if (intersectSurface.isReflective()) {
                 Vector3d reflectDir = getReflectionVector(ray, normalToShape);
-                Ray3d reflectRay = Ray3d.createShiftedRay(intersectLoc, reflectDir);
-                return getColorForRay(reflectRay, depth + 1);
+                Ray3d reflectRay = Ray3d.createShiftedRay(intersectLoc, reflectDir, normalToShape, scene.getGeometryPrecision());
+                push(reflectRay, weight, depth + 1);
+                return RgbColor.BLACK;
             }
         }
         return getColorShadowAdusted(intersectShape, intersectLoc, normalToShape, depth);
     }
 
-    private boolean isInShadow(Vector3d hitLoc, Vector3d lightLocation) {
+    private boolean isInShadow(Vector3d hitLoc, Vector3d normalToShape, Vector3d lightLocation, int lightNumber) {
         Vector3d directionToLight = lightLocation.subtract(hitLoc);
-        Ray3d shadowRay = Ray3d.createShiftedRay(hitLoc, directionToLight);
+        Ray3d shadowRay = Ray3d.createShiftedRay(hitLoc, directionToLight, normalToShape, scene.getGeometryPrecision());
         double tThatHitsLight = (lightLocation.x - hitLoc.x) / directionToLight.x;
-        RayHitResult hitResult = doesRayHitAnyShape(shadowRay, tThatHitsLight);
-        return hitResult.didHitShape();
+        if (config.isOccluderCache()) {
+            return occluders.isBlocked(lightNumber, shadowRay, tThatHitsLight, scene, kdTreeQueryStats);
+        }
+        return scene.anyHit(shadowRay, tThatHitsLight, kdTreeQueryStats);
     }
 
     private RayHitResult doesRayHitAnyShape(final Ray3d ray) {
         return doesRayHitAnyShapeHelper(ray, Double.MAX_VALUE);
     }
 
-    private RayHitResult doesRayHitAnyShape(final Ray3d ray, final double maxT) {
-        return doesRayHitAnyShapeHelper(ray, maxT);
+    private RayHitResult doesRayHitAnyShapeHelper(final Ray3d theRay, final double maxT) {
+        return toRayHitResult(scene.closestHit(theRay, maxT, kdTreeQueryStats), maxT);
     }
 
-    private RayHitResult doesRayHitAnyShapeHelper(final Ray3d theRay, final double maxT) {
+    private static RayHitResult toRayHitResult(final ShapeHit shapeHit, final double maxT) {
         final RayHitResult results = new RayHitResult();
         results.setT(maxT);
-
-        KdTreeQueryStats stats = scene.visitPossibleIntersections(theRay, shape -> {
-            ShapeHit shapeHit = shape.isHitByRay(theRay, results.getT());
-            if (shapeHit != null) {
-                if (shapeHit.getT() < results.getT()) {
-                    results.setT(shapeHit.getT());
-                    results.setShape(shapeHit.getHitShape());
-                    results.setShapeHit(shapeHit);
-                }
-            }
-        });
-
-        kdTreeQueryStats.add(stats);
+        if (shapeHit != null) {
+            results.setT(shapeHit.getT());
+            results.setShape(shapeHit.getHitShape());
+            results.setShapeHit(shapeHit);
+        }
         return results;
     }
 }
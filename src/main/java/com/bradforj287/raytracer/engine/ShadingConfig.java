@@ -0,0 +1,105 @@
+package com.bradforj287.raytracer.engine;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Settings for how far RayTracer follows reflected and refracted rays.
+ *
+ * Every ray carries the weight its color has in the pixel, the product of the fresnel terms of
+ * the bounces that led to it. Rays weighing less than minContribution are dropped. With russian
+ * roulette, rays weighing less than the roulette weight survive with probability weight divided
+ * by the roulette weight and continue with the roulette weight, which keeps the image unbiased
+ * on average but adds noise.
+ *
+ * With lightSamples at 0 every light that reaches a shading point is evaluated with a shadow
+ * ray. Otherwise that many lights are picked from the light tree of the scene, brighter and
+ * closer ones more often, and weighted by how likely they were to be picked, which keeps the
+ * cost of a shading point flat however many lights the scene has. Lights with an infinite
+ * range are picked by their power alone.
+ */
+public class ShadingConfig {
+    private int maxDepth = 16;
+    private double minContribution = 1.0 / 256;
+    private boolean russianRoulette = false;
+    private double russianRouletteWeight = 0.1;
+    private int lightSamples = 0;
+    private boolean occluderCache = true;
+
+    public ShadingConfig() {
+    }
+
+    /**
+     * copy of other
+     */
+    public ShadingConfig(ShadingConfig other) {
+        this.maxDepth = other.maxDepth;
+        this.minContribution = other.minContribution;
+        this.russianRoulette = other.russianRoulette;
+        this.russianRouletteWeight = other.russianRouletteWeight;
+        this.lightSamples = other.lightSamples;
+        this.occluderCache = other.occluderCache;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * bounces after which surfaces are shaded without following their reflection or refraction
+     * and without a shadow ray
+     */
+    public void setMaxDepth(int maxDepth) {
+        Preconditions.checkArgument(maxDepth >= 0);
+        this.maxDepth = maxDepth;
+    }
+
+    public double getMinContribution() {
+        return minContribution;
+    }
+
+    /**
+     * rays weighing less than this are not traced. 0 traces everything up to the max depth.
+     */
+    public void setMinContribution(double minContribution) {
+        Preconditions.checkArgument(minContribution >= 0 && minContribution <= 1);
+        this.minContribution = minContribution;
+    }
+
+    public boolean isRussianRoulette() {
+        return russianRoulette;
+    }
+
+    public void setRussianRoulette(boolean russianRoulette) {
+        this.russianRoulette = russianRoulette;
+    }
+
+    public double getRussianRouletteWeight() {
+        return russianRouletteWeight;
+    }
+
+    public void setRussianRouletteWeight(double russianRouletteWeight) {
+        Preconditions.checkArgument(russianRouletteWeight > 0 && russianRouletteWeight <= 1);
+        this.russianRouletteWeight = russianRouletteWeight;
+    }
+
+    public int getLightSamples() {
+        return lightSamples;
+    }
+
+    public void setLightSamples(int lightSamples) {
+        Preconditions.checkArgument(lightSamples >= 0);
+        this.lightSamples = lightSamples;
+    }
+
+    public boolean isOccluderCache() {
+        return occluderCache;
+    }
+
+    /**
+     * test the primitive that last shadowed a light before traversing the scene for a shadow
+     * ray toward it, see OccluderCache
+     */
+    public void setOccluderCache(boolean occluderCache) {
+        this.occluderCache = occluderCache;
+    }
+}
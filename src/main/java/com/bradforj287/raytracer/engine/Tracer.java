@@ -2,9 +2,15 @@ package com.bradforj287.raytracer.engine;
 
 import com.bradforj287.raytracer.geometry.Ray3d;
 import com.bradforj287.raytracer.geometry.RgbColor;
+import com.bradforj287.raytracer.model.RayPacket;
 import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
 
 public interface Tracer {
     RgbColor getColorForRay(final Ray3d ray);
+
+    /**
+     * traces all rays of a packet together, writing the color of ray i to colors[i]
+     */
+    void getColorsForPacket(final RayPacket packet, final RgbColor[] colors);
     KdTreeQueryStats getKdTreeQueryStats();
 }
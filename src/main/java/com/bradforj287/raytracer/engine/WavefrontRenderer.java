@@ -0,0 +1,331 @@
+package com.bradforj287.raytracer.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import com.bradforj287.raytracer.Globals;
+import com.bradforj287.raytracer.ProgramArguments;
+import com.bradforj287.raytracer.geometry.*;
+import com.bradforj287.raytracer.model.RayPacket;
+import com.bradforj287.raytracer.model.SceneModel;
+import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
+import com.bradforj287.raytracer.model.light.LightTree;
+import com.google.common.base.Preconditions;
+
+/**
+ * Traces a large wave of primary rays breadth first. Instead of following one pixel to the end
+ * before starting the next, every stage runs over all the rays of the wave before the next
+ * stage starts, with the rays waiting in RayQueues in between:
+ *
+ * intersect - closest hits of the queued rays, traced as ray packets and split over the executor
+ * shade - emitted and ambient light go straight to the pixels, mirrors and glass queue the rays
+ * they spawn for the next bounce and lit surfaces queue a shadow ray per light
+ * shadow - any hit tests of the shadow rays split over the executor, unblocked rays add their
+ * light to their pixel
+ *
+ * Bounce and shadow rays are sorted by direction octant and origin before they are traced, so
+ * the rays of a packet or a thread take nearly the same path through the scene again.
+ *
+ * Shades like RayTracer with the same ShadingConfig, images only differ by rounding. Not thread
+ * safe, and the stages wait on Globals.executorService so a renderer can't be used from a task
+ * running on it.
+ */
+public class WavefrontRenderer {
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final SceneModel scene;
+    private final ShadingConfig config;
+    private final KdTreeQueryStats kdTreeQueryStats = new KdTreeQueryStats();
+    private final Random random = new Random();
+
+    private RayQueue queue = new RayQueue();
+    private RayQueue nextQueue = new RayQueue();
+    private final RayQueue shadowQueue = new RayQueue();
+
+    // color of every pixel of the wave
+    private double[] red = new double[0];
+    private double[] green = new double[0];
+    private double[] blue = new double[0];
+
+    // lighting scratch space
+    private final double[] lightPdf = new double[1];
+    private int[] lightIndices = new int[0];
+
+    public WavefrontRenderer(final SceneModel model) {
+        this(model, new ShadingConfig());
+    }
+
+    public WavefrontRenderer(final SceneModel model, final ShadingConfig config) {
+        this.scene = Preconditions.checkNotNull(model);
+        this.config = new ShadingConfig(config);
+    }
+
+    public KdTreeQueryStats getKdTreeQueryStats() {
+        return kdTreeQueryStats;
+    }
+
+    /**
+     * writes the color of each of the first count primary rays to colors
+     */
+    public void trace(final Ray3d[] primaryRays, final int count, final RgbColor[] colors) {
+        Preconditions.checkArgument(count <= primaryRays.length && count <= colors.length);
+        if (red.length < count) {
+            red = new double[count];
+            green = new double[count];
+            blue = new double[count];
+        }
+        Arrays.fill(red, 0, count, 0);
+        Arrays.fill(green, 0, count, 0);
+        Arrays.fill(blue, 0, count, 0);
+
+        // primary rays come in screen order, which is coherent already
+        queue.clear();
+        for (int i = 0; i < count; i++) {
+            queue.addBounce(primaryRays[i], 1, 0, i);
+        }
+
+        AxisAlignedBoundingBox3d bounds = scene.getBounds();
+        while (queue.size() > 0) {
+            intersect(queue);
+
+            nextQueue.clear();
+            shadowQueue.clear();
+            shade(queue, nextQueue, shadowQueue);
+
+            if (shadowQueue.size() > 0) {
+                shadowQueue.sort(bounds);
+                shadow(shadowQueue);
+            }
+
+            nextQueue.sort(bounds);
+            RayQueue traced = queue;
+            queue = nextQueue;
+            nextQueue = traced;
+        }
+        queue.clear();
+        nextQueue.clear();
+        shadowQueue.clear();
+
+        for (int i = 0; i < count; i++) {
+            colors[i] = new RgbColor(red[i], green[i], blue[i]);
+        }
+    }
+
+    /**
+     * finds the closest hit of every ray in q, consecutive rays traced as one packet
+     */
+    private void intersect(final RayQueue q) {
+        parallel(q.size(), (start, end, stats) -> {
+            RayPacket packet = new RayPacket();
+            for (int first = start; first < end; first += RayPacket.MAX_SIZE) {
+                int last = Math.min(end, first + RayPacket.MAX_SIZE);
+                packet.clear();
+                for (int i = first; i < last; i++) {
+                    packet.add(q.getRay(i), q.tMax[i]);
+                }
+                scene.closestHit(packet, stats);
+                for (int i = first; i < last; i++) {
+                    q.hits[i] = packet.getHit(i - first);
+                }
+            }
+        });
+    }
+
+    /**
+     * tests every shadow ray of q for a blocker, then adds the light of the unblocked ones
+     */
+    private void shadow(final RayQueue q) {
+        parallel(q.size(), (start, end, stats) -> {
+            OccluderCache occluders = config.isOccluderCache() ? new OccluderCache() : null;
+            for (int i = start; i < end; i++) {
+                q.blocked[i] = occluders != null
+                        ? occluders.isBlocked(q.lights[i], q.getRay(i), q.tMax[i], scene, stats)
+                        : scene.anyHit(q.getRay(i), q.tMax[i], stats);
+            }
+        });
+        for (int i = 0; i < q.size(); i++) {
+            if (!q.blocked[i]) {
+                addToPixel(q.pixels[i], q.red[i], q.green[i], q.blue[i]);
+            }
+        }
+    }
+
+    private interface ChunkTask {
+        void run(int start, int end, KdTreeQueryStats stats);
+    }
+
+    /**
+     * runs task over count rays split in packet aligned chunks on the executor and waits for it
+     */
+    private void parallel(final int count, final ChunkTask task) {
+        int chunks = Globals.NUM_THREADS * CHUNKS_PER_THREAD;
+        int packets = (count + RayPacket.MAX_SIZE - 1) / RayPacket.MAX_SIZE;
+        final int chunkSize = ((packets + chunks - 1) / chunks) * RayPacket.MAX_SIZE;
+
+        List<Future<KdTreeQueryStats>> futures = new ArrayList<>();
+        for (int start = 0; start < count; start += chunkSize) {
+            final int first = start;
+            final int last = Math.min(count, start + chunkSize);
+            futures.add(Globals.executorService.submit(() -> {
+                KdTreeQueryStats stats = new KdTreeQueryStats();
+                task.run(first, last, stats);
+                return stats;
+            }));
+        }
+        for (Future<KdTreeQueryStats> f : futures) {
+            try {
+                kdTreeQueryStats.add(f.get());
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * shades the hit of every ray of q, see RayTracer.getColorForHit
+     */
+    private void shade(final RayQueue q, final RayQueue bounces, final RayQueue shadows) {
+        for (int i = 0; i < q.size(); i++) {
+            ShapeHit hit = q.hits[i];
+            if (hit == null) {
+                continue;
+            }
+            Ray3d ray = q.getRay(i);
+            double weight = q.weights[i];
+            int depth = q.depths[i];
+            int pixel = q.pixels[i];
+            boolean canRecurseFurther = depth < config.getMaxDepth();
+
+            Surface surface = hit.getHitShape().getSurface();
+            Vector3d intersectLoc = ray.getPoint().add(ray.getDirection().multiply(hit.getT()));
+            Vector3d normalToShape = hit.getNormal(intersectLoc);
+
+            if (canRecurseFurther) {
+                if (surface.isRefractive() && surface.isReflective()) {
+                    Vector3d dir = ray.getDirection().toUnitVector();
+                    RayTracer.FresnelResult fresnelResult = RayTracer.fresnel(dir, normalToShape, surface.getIof());
+                    if (fresnelResult.kr < 1) {
+                        Vector3d refractionDirection = RayTracer.getRefractionVector(dir, normalToShape, surface.getIof()).toUnitVector();
+                        push(bounces, Ray3d.createShiftedRay(intersectLoc, refractionDirection, normalToShape, scene.getGeometryPrecision()),
+                                weight * (1 - fresnelResult.kr), depth + 1, pixel);
+                    }
+                    Vector3d reflectionDirection = RayTracer.getReflectionVector(dir, normalToShape).toUnitVector();
+                    push(bounces, Ray3d.createShiftedRay(intersectLoc, reflectionDirection, normalToShape, scene.getGeometryPrecision()),
+                            weight * fresnelResult.kr, depth + 1, pixel);
+                    continue;
+                } else if (surface.isRefractive()) {
+                    Vector3d refractDir = RayTracer.getRefractionVector(ray.getDirection().toUnitVector(), normalToShape, surface.getIof());
+                    push(bounces, Ray3d.createShiftedRay(intersectLoc, refractDir, normalToShape, scene.getGeometryPrecision()),
+                            weight, depth + 1, pixel);
+                    continue;
+                } else if (surface.isReflective()) {
+                    Vector3d reflectDir = RayTracer.getReflectionVector(ray, normalToShape);
+                    push(bounces, Ray3d.createShiftedRay(intersectLoc, reflectDir, normalToShape, scene.getGeometryPrecision()),
+                            weight, depth + 1, pixel);
+                    continue;
+                }
+            }
+            light(surface, intersectLoc, normalToShape, weight, pixel, canRecurseFurther, shadows);
+        }
+    }
+
+    /**
+     * adds a bounce ray to q unless it weighs too little to matter, see RayTracer.push
+     */
+    private void push(final RayQueue q, final Ray3d ray, double weight, final int depth, final int pixel) {
+        if (weight < config.getMinContribution()) {
+            kdTreeQueryStats.rayTerminated();
+            return;
+        }
+        if (config.isRussianRoulette() && weight < config.getRussianRouletteWeight()) {
+            if (random.nextDouble() * config.getRussianRouletteWeight() >= weight) {
+                kdTreeQueryStats.rayTerminated();
+                return;
+            }
+            weight = config.getRussianRouletteWeight();
+        }
+        q.addBounce(ray, weight, depth, pixel);
+    }
+
+    /**
+     * adds the ambient share of the surface color to the pixel and queues a shadow ray for the
+     * share of each light, see RayTracer.getColorShadowAdusted
+     */
+    private void light(Surface surface, Vector3d intersectLoc, Vector3d normalToShape, double weight, int pixel,
+                       boolean canRecurseFurther, RayQueue shadows) {
+        RgbColor color = surface.getColor();
+        double r = weight * color.getRed();
+        double g = weight * color.getGreen();
+        double b = weight * color.getBlue();
+        if (surface.isLightSource()) {
+            addToPixel(pixel, r, g, b);
+            return;
+        }
+        double ambient = ProgramArguments.AMBIENT_LIGHT;
+        addToPixel(pixel, r * ambient, g * ambient, b * ambient);
+        r *= 1 - ambient;
+        g *= 1 - ambient;
+        b *= 1 - ambient;
+
+        LightTree lights = scene.getLights();
+        int samples = config.getLightSamples();
+        if (samples > 0) {
+            for (int i = 0; i < samples; i++) {
+                int light = lights.sample(intersectLoc, random, lightPdf);
+                if (light >= 0) {
+                    double lightWeight = 1 / (lightPdf[0] * samples);
+                    queueLight(lights.getLight(light), light, r * lightWeight, g * lightWeight,
+                            b * lightWeight, intersectLoc, normalToShape, pixel, canRecurseFurther, shadows);
+                }
+            }
+        } else if (lights.getLightCount() > 0) {
+            if (lightIndices.length < lights.getLightCount()) {
+                lightIndices = new int[lights.getLightCount()];
+            }
+            int count = lights.collect(intersectLoc, lightIndices);
+            for (int i = 0; i < count; i++) {
+                queueLight(lights.getLight(lightIndices[i]), lightIndices[i], r, g, b,
+                        intersectLoc, normalToShape, pixel, canRecurseFurther, shadows);
+            }
+        }
+    }
+
+    /**
+     * queues the shadow ray toward the light with the color it adds to the pixel, r g b being
+     * the lit share of the weighted surface color. Rays that can't recurse any further aren't
+     * shadowed, like in RayTracer.
+     */
+    private void queueLight(PointLight light, int lightNumber, double r, double g, double b, Vector3d intersectLoc,
+                            Vector3d normalToShape, int pixel, boolean canRecurseFurther, RayQueue shadows) {
+        Vector3d lightLocation = light.samplePosition(random);
+        Vector3d toLight = lightLocation.subtract(intersectLoc);
+        double angleBetweenNormalAndLight = normalToShape.dot(toLight.toUnitVector());
+        if (angleBetweenNormalAndLight <= 0) {
+            return;
+        }
+        double attenuation = light.getAttenuation(toLight.getMagnitude());
+        if (attenuation == 0) {
+            return;
+        }
+        double scalar = angleBetweenNormalAndLight * light.getIntensity() * attenuation;
+        RgbColor lightColor = light.getColor();
+        double lr = r * scalar * (lightColor.getRed() / 255);
+        double lg = g * scalar * (lightColor.getGreen() / 255);
+        double lb = b * scalar * (lightColor.getBlue() / 255);
+        if (!canRecurseFurther) {
+            addToPixel(pixel, lr, lg, lb);
+            return;
+        }
+        Ray3d shadowRay = Ray3d.createShiftedRay(intersectLoc, toLight, normalToShape, scene.getGeometryPrecision());
+        double tThatHitsLight = (lightLocation.x - intersectLoc.x) / toLight.x;
+        shadows.addShadow(shadowRay, tThatHitsLight, lightNumber, pixel, lr, lg, lb);
+    }
+
+    private void addToPixel(int pixel, double r, double g, double b) {
+        red[pixel] += r;
+        green[pixel] += g;
+        blue[pixel] += b;
+    }
+}
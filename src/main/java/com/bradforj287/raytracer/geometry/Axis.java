@@ -1,13 +1,22 @@
 package com.bradforj287.raytracer.geometry;
 
 public enum Axis {
-    X("x"),
-    Y("y"),
-    Z("z");
+    X("x", 0),
+    Y("y", 1),
+    Z("z", 2);
 
     private String axis;
-    Axis(String axis) {
+    private int index;
+    Axis(String axis, int index) {
         this.axis = axis;
+        this.index = index;
+    }
+
+    /**
+     * 0, 1 or 2, the offset of the axis in x,y,z arrays
+     */
+    public int getIndex() {
+        return index;
     }
 
     @Override
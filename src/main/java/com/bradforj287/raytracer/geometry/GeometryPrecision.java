@@ -0,0 +1,27 @@
+package com.bradforj287.raytracer.geometry;
+
+/**
+ * How triangle meshes store and intersect their triangles. FLOAT halves the memory of vertices
+ * and precomputed triangles and tests rays in float arithmetic, at the cost of hits that are off
+ * by a few float rounding steps. Secondary rays of a FLOAT scene are offset from the surface by
+ * that error, see Ray3d.createShiftedRay.
+ */
+public enum GeometryPrecision {
+    // the fixed shift of secondary rays covers double rounding
+    DOUBLE(0),
+    // about 16 float rounding steps relative to the largest coordinate of the hit point
+    FLOAT(16.0 / (1 << 24));
+
+    private final double relativeError;
+
+    GeometryPrecision(double relativeError) {
+        this.relativeError = relativeError;
+    }
+
+    /**
+     * bound on the error of a hit point relative to its largest coordinate
+     */
+    public double getRelativeError() {
+        return relativeError;
+    }
+}
@@ -0,0 +1,66 @@
+package com.bradforj287.raytracer.geometry;
+
+/**
+ * The closest hit found so far by a query, updated in place as candidates are tested so that
+ * only the final hit becomes a ShapeHit. One record is reused for every primitive of a query.
+ */
+public class HitRecord {
+    private double t;
+    private Shape3d shape;
+    private int primitive;
+    // set when the shape already had to create the ShapeHit
+    private ShapeHit shapeHit;
+
+    public HitRecord(double maxT) {
+        reset(maxT);
+    }
+
+    /**
+     * forgets the hit, only candidates closer than maxT are recorded after this
+     */
+    public void reset(double maxT) {
+        t = maxT;
+        shape = null;
+        shapeHit = null;
+    }
+
+    public double getT() {
+        return t;
+    }
+
+    public Shape3d getShape() {
+        return shape;
+    }
+
+    public int getPrimitive() {
+        return primitive;
+    }
+
+    public boolean isHit() {
+        return shape != null;
+    }
+
+    public void set(double t, Shape3d shape, int primitive) {
+        this.t = t;
+        this.shape = shape;
+        this.primitive = primitive;
+        this.shapeHit = null;
+    }
+
+    public void set(ShapeHit hit, Shape3d shape, int primitive) {
+        this.t = hit.getT();
+        this.shape = shape;
+        this.primitive = primitive;
+        this.shapeHit = hit;
+    }
+
+    /**
+     * the recorded hit, or null if there is none
+     */
+    public ShapeHit toShapeHit() {
+        if (shape == null) {
+            return null;
+        }
+        return shapeHit != null ? shapeHit : shape.createPrimitiveHit(primitive, t);
+    }
+}
@@ -99,4 +99,84 @@ public class Matrix3d {
         Matrix3d rot = Matrix3d.matrixMultiply(xRot, yRot);
         return Matrix3d.matrixMultiply(rot, zRot);
     }
+
+    public static Matrix3d getTranslationMatrix(Vector3d v) {
+        Matrix3d result = getIdentityMatrix();
+        result.matrix[0][3] = v.x;
+        result.matrix[1][3] = v.y;
+        result.matrix[2][3] = v.z;
+        return result;
+    }
+
+    public static Matrix3d getScaleMatrix(double scale) {
+        Matrix3d result = getIdentityMatrix();
+        result.matrix[0][0] = scale;
+        result.matrix[1][1] = scale;
+        result.matrix[2][2] = scale;
+        return result;
+    }
+
+    /**
+     * multiplies v by the upper 3x3 part of a, which transforms a direction without translating it
+     */
+    public static Vector3d transformDirection(Matrix3d a, Vector3d v) {
+        double[][] m = a.matrix;
+        return new Vector3d(
+                m[0][0] * v.x + m[0][1] * v.y + m[0][2] * v.z,
+                m[1][0] * v.x + m[1][1] * v.y + m[1][2] * v.z,
+                m[2][0] * v.x + m[2][1] * v.y + m[2][2] * v.z);
+    }
+
+    public Matrix3d transpose() {
+        Matrix3d result = new Matrix3d();
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                result.matrix[i][j] = matrix[j][i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * inverts the matrix with Gauss-Jordan elimination and partial pivoting
+     */
+    public Matrix3d inverse() {
+        double[][] a = new double[4][8];
+        for (int i = 0; i < 4; i++) {
+            System.arraycopy(matrix[i], 0, a[i], 0, 4);
+            a[i][4 + i] = 1;
+        }
+        for (int col = 0; col < 4; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < 4; row++) {
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            if (Math.abs(a[pivot][col]) < 1e-12) {
+                throw new IllegalArgumentException("matrix is not invertible");
+            }
+            double[] tmp = a[col];
+            a[col] = a[pivot];
+            a[pivot] = tmp;
+
+            double scale = 1 / a[col][col];
+            for (int j = 0; j < 8; j++) {
+                a[col][j] *= scale;
+            }
+            for (int row = 0; row < 4; row++) {
+                if (row != col && a[row][col] != 0) {
+                    double factor = a[row][col];
+                    for (int j = 0; j < 8; j++) {
+                        a[row][j] -= factor * a[col][j];
+                    }
+                }
+            }
+        }
+        Matrix3d result = new Matrix3d();
+        for (int i = 0; i < 4; i++) {
+            System.arraycopy(a[i], 4, result.matrix[i], 0, 4);
+        }
+        return result;
+    }
 };
\ No newline at end of file
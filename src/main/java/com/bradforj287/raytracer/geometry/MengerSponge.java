@@ -1,23 +1,45 @@
 package com.bradforj287.raytracer.geometry;
 
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Collectors;
+import com.google.common.base.Preconditions;
 
 /**
- * recursively defined menger sponge
+ * Menger sponge intersected analytically, no triangles or child boxes are created.
+ *
+ * The ray is clipped to the bounds and walked through the sponge cell by cell like a DDA. A cell
+ * at level k is given by its integer coordinates in a 3^k grid, and it is removed when two or
+ * more of its coordinates are the middle of their parent. Removed cells are skipped whole by
+ * stepping out of them, solid cells are descended into until the sponge level is reached, and
+ * the ray hits the face of that cell it entered through.
+ *
+ * Work per ray grows with the number of cells the ray passes rather than with the number of
+ * boxes in the sponge, so high levels are practical.
  */
 public class MengerSponge extends Shape3d {
+    // 3^19 still fits in an int
+    public static final int MAX_LEVEL = 19;
+
     final private int level;
     final private Surface surface;
     final private AxisAlignedBoundingBox3d aabb;
 
+    // 3^k for every level
+    private final int[] cellsPerAxis;
+
     public MengerSponge(AxisAlignedBoundingBox3d aabb, int level, Surface surface) {
+        Preconditions.checkNotNull(aabb);
+        Preconditions.checkArgument(level >= 0 && level <= MAX_LEVEL, "level must be between 0 and " + MAX_LEVEL);
         this.level = level;
         this.surface = surface;
         this.aabb = aabb;
+        cellsPerAxis = new int[level + 1];
+        cellsPerAxis[0] = 1;
+        for (int k = 1; k <= level; k++) {
+            cellsPerAxis[k] = cellsPerAxis[k - 1] * 3;
+        }
+    }
+
+    public int getLevel() {
+        return level;
     }
 
     @Override
@@ -35,63 +57,210 @@ public class MengerSponge extends Shape3d {
         return aabb.getMin().add(aabb.getMax()).multiply(.5);
     }
 
+    /**
+     * normal of the wall of a level cell the point lies on, the cell boundary nearest the point,
+     * pointing out of the material. Hits carry the normal of the face they entered through
+     * already, this is for callers that only have a point.
+     */
     @Override
     public Vector3d normalAtSurfacePoint(Vector3d intersectPoint) {
-        throw new NotImplementedException();
-    }
-
-    private ShapeHit mengerTriangleHit(Ray3d ray, double t1, List<AxisAlignedBoundingBox3d> boxes) {
-        List<Triangle3d> triangles = new ArrayList<>();
-        boxes.forEach(b -> triangles.addAll(ShapeFactory.buildAxisAlignedTriangleBox(b, this.surface)));
+        final Vector3d min = aabb.getMin();
+        final double[] lengths = {aabb.xLength(), aabb.yLength(), aabb.zLength()};
+        final int n = cellsPerAxis[level];
+        final double[] u = new double[3];
+        final int[] c = new int[3];
+        int axis = 0;
+        double nearest = Double.POSITIVE_INFINITY;
+        for (int a = 0; a < 3; a++) {
+            u[a] = (intersectPoint.getCoordinate(a) - min.getCoordinate(a)) / lengths[a] * n;
+            c[a] = Math.max(0, Math.min(n - 1, (int) Math.floor(u[a])));
+            double distance = Math.abs(u[a] - Math.rint(u[a])) * lengths[a] / n;
+            if (distance < nearest) {
+                nearest = distance;
+                axis = a;
+            }
+        }
 
-        double minHitT = Double.MIN_VALUE;
-        Triangle3d minHit = null;
+        // the wall lies between the cells on both sides of the boundary, the normal points from
+        // the solid one to the other
+        int boundary = (int) Math.rint(u[axis]);
+        c[axis] = boundary - 1;
+        boolean lowerSolid = isSolidCell(c);
+        double[] normal = new double[3];
+        normal[axis] = lowerSolid ? 1 : -1;
+        return new Vector3d(normal[0], normal[1], normal[2]);
+    }
 
-        for (Triangle3d tri : triangles) {
-            ShapeHit shapeHit = tri.isHitByRay(ray, t1);
-            if (shapeHit != null) {
-                if (minHit == null || shapeHit.getT() < minHitT) {
-                    minHit = tri;
-                    minHitT = shapeHit.getT();
-                }
+    /**
+     * true if the cell c of the sponge level is inside the bounds and not removed
+     */
+    private boolean isSolidCell(int[] c) {
+        for (int a = 0; a < 3; a++) {
+            if (c[a] < 0 || c[a] >= cellsPerAxis[level]) {
+                return false;
             }
         }
+        return removedLevel(c[0], c[1], c[2], level) == 0;
+    }
 
-        if (minHit == null) {
-            return null;
-        } else {
-           return new ShapeHit(minHitT, minHit);
+    /**
+     * shallowest level at which the cell c of level k or one of its ancestors is removed, or 0 if
+     * the cell is solid
+     */
+    private int removedLevel(int cx, int cy, int cz, int k) {
+        for (int j = 1; j <= k; j++) {
+            int div = cellsPerAxis[k - j];
+            int middles = 0;
+            if ((cx / div) % 3 == 1) {
+                middles++;
+            }
+            if ((cy / div) % 3 == 1) {
+                middles++;
+            }
+            if ((cz / div) % 3 == 1) {
+                middles++;
+            }
+            if (middles >= 2) {
+                return j;
+            }
         }
+        return 0;
     }
 
     @Override
     public ShapeHit isHitByRay(Ray3d ray, double t1) {
-        List<AxisAlignedBoundingBox3d> lookAt = new ArrayList<>();
-        lookAt.add(aabb);
+        // unit cube space, scaling each axis keeps t the same as in world space
+        final Vector3d min = aabb.getMin();
+        final double sx = aabb.xLength(), sy = aabb.yLength(), sz = aabb.zLength();
+        final double[] o = {(ray.getPoint().x - min.x) / sx, (ray.getPoint().y - min.y) / sy, (ray.getPoint().z - min.z) / sz};
+        final double[] d = {ray.getDirection().x / sx, ray.getDirection().y / sy, ray.getDirection().z / sz};
+        final double[] inv = {1 / d[0], 1 / d[1], 1 / d[2]};
+        final int[] step = {d[0] > 0 ? 1 : -1, d[1] > 0 ? 1 : -1, d[2] > 0 ? 1 : -1};
+
+        // clip to the unit cube, remembering the axis the ray enters through
+        double t = 0;
+        double tExit = t1;
+        int entryAxis = -1;
+        for (int a = 0; a < 3; a++) {
+            double near = ((step[a] > 0 ? 0 : 1) - o[a]) * inv[a];
+            double far = ((step[a] > 0 ? 1 : 0) - o[a]) * inv[a];
+            if (Double.isNaN(near) || Double.isNaN(far)) {
+                // parallel to the axis and starting on a face of the cube
+                near = Double.NEGATIVE_INFINITY;
+                far = Double.POSITIVE_INFINITY;
+            }
+            if (near > t) {
+                t = near;
+                entryAxis = a;
+            }
+            tExit = Math.min(tExit, far);
+        }
+        if (t > tExit) {
+            return null;
+        }
 
-        for (int lvl = 0; lvl <= this.level; lvl++) {
-            // filter
-            List<AxisAlignedBoundingBox3d> filtered = lookAt.stream()
-                    .filter(ab -> ab.rayItersects(ray))
-                    .collect(Collectors.toList());
+        final int[] c = new int[3];
+        if (entryAxis < 0) {
+            // starting inside the bounds, possibly in the material itself
+            for (int a = 0; a < 3; a++) {
+                c[a] = Math.max(0, Math.min(cellsPerAxis[level] - 1, (int) Math.floor(o[a] * cellsPerAxis[level])));
+            }
+            if (removedLevel(c[0], c[1], c[2], level) == 0) {
+                return exitSolid(c, o, inv, step, t, tExit);
+            }
+            c[0] = c[1] = c[2] = 0;
+        }
 
-            if (filtered.isEmpty()) {
-                return null;
+        int k = 0;
+        while (true) {
+            int removed = removedLevel(c[0], c[1], c[2], k);
+            // a ray starting in a hole has no entry axis until it steps into another cell, and
+            // can't reach the level in its starting cell since that cell is removed
+            if (removed == 0 && k == level) {
+                return new ShapeHit(t, this, faceNormal(entryAxis, step));
             }
 
-            // if last iteration then check triangles
-            boolean lastItr = (lvl == this.level);
-            if (lastItr) {
-                return mengerTriangleHit(ray, t1, filtered);
+            if (removed == 0) {
+                // descend into the child holding the point the ray is at
+                double size = 1.0 / cellsPerAxis[k + 1];
+                for (int a = 0; a < 3; a++) {
+                    int child;
+                    if (a == entryAxis) {
+                        child = step[a] > 0 ? 0 : 2;
+                    } else {
+                        child = (int) Math.floor((o[a] + d[a] * t) / size) - 3 * c[a];
+                        child = Math.max(0, Math.min(2, child));
+                    }
+                    c[a] = 3 * c[a] + child;
+                }
+                k++;
+                continue;
+            }
+
+            // skip the removed ancestor by stepping out of it into its neighbor
+            int div = cellsPerAxis[k - removed];
+            for (int a = 0; a < 3; a++) {
+                c[a] /= div;
+            }
+            k = removed;
+            double size = 1.0 / cellsPerAxis[k];
+            double next = Double.POSITIVE_INFINITY;
+            int axis = 0;
+            for (int a = 0; a < 3; a++) {
+                double ta = ((c[a] + (step[a] > 0 ? 1 : 0)) * size - o[a]) * inv[a];
+                if (ta < next) {
+                    next = ta;
+                    axis = a;
+                }
             }
+            t = Math.max(t, next);
+            if (t > tExit) {
+                return null;
+            }
+            c[axis] += step[axis];
+            if (c[axis] < 0 || c[axis] >= cellsPerAxis[k]) {
+                return null;
+            }
+            entryAxis = axis;
+        }
+    }
 
-            // compute next iteration
-            lookAt = new ArrayList<>();
-            for (AxisAlignedBoundingBox3d box : filtered) {
-                lookAt.addAll(ShapeFactory.mengerSplit(box));
+    /**
+     * walks a ray that starts inside the material through the cells of the sponge level until it
+     * reaches a removed cell or leaves the bounds. The hit is that face, with its normal pointing
+     * out of the material like the faces of the triangle sponge.
+     */
+    private ShapeHit exitSolid(int[] c, double[] o, double[] inv, int[] step, double t, double tExit) {
+        final double size = 1.0 / cellsPerAxis[level];
+        while (true) {
+            double next = Double.POSITIVE_INFINITY;
+            int axis = 0;
+            for (int a = 0; a < 3; a++) {
+                double ta = ((c[a] + (step[a] > 0 ? 1 : 0)) * size - o[a]) * inv[a];
+                if (ta < next) {
+                    next = ta;
+                    axis = a;
+                }
+            }
+            t = Math.max(t, next);
+            if (t > tExit) {
+                return null;
+            }
+            c[axis] += step[axis];
+            if (c[axis] < 0 || c[axis] >= cellsPerAxis[level] || removedLevel(c[0], c[1], c[2], level) != 0) {
+                double[] n = new double[3];
+                n[axis] = step[axis];
+                return new ShapeHit(t, this, new Vector3d(n[0], n[1], n[2]));
             }
         }
+    }
 
-        return null;
+    /**
+     * faces the ray, on the axis it entered the cell through
+     */
+    private static Vector3d faceNormal(int entryAxis, int[] step) {
+        double[] n = new double[3];
+        n[entryAxis] = -step[entryAxis];
+        return new Vector3d(n[0], n[1], n[2]);
     }
 }
@@ -1,14 +1,37 @@
 package com.bradforj287.raytracer.geometry;
 
+import java.util.Random;
+import com.google.common.base.Preconditions;
+
+/**
+ * A light at a position. A light with a radius is a spherical area light, shadow rays aim at a
+ * random point inside the sphere so shadows get soft edges.
+ *
+ * The light reaches range units with a smooth falloff to zero, see getAttenuation. A light with
+ * an infinite range lights everything at full intensity.
+ */
 public class PointLight {
     private final Vector3d position;
     private final RgbColor color;
     private final double intensity;
+    private final double radius;
+    private final double range;
 
     public PointLight(Vector3d position, double intensity, RgbColor color) {
+        this(position, intensity, color, 0, Double.POSITIVE_INFINITY);
+    }
+
+    public PointLight(Vector3d position, double intensity, RgbColor color, double radius, double range) {
+        Preconditions.checkNotNull(position);
+        Preconditions.checkNotNull(color);
+        Preconditions.checkArgument(intensity >= 0);
+        Preconditions.checkArgument(radius >= 0);
+        Preconditions.checkArgument(range > 0);
         this.intensity = intensity;
         this.position = position;
         this.color = color;
+        this.radius = radius;
+        this.range = range;
     }
 
     public RgbColor getContribution(Vector3d hitPoint, Surface hitSurface) {
@@ -24,6 +47,51 @@ public class PointLight {
         }
     }
 
+    /**
+     * share of the intensity that reaches distance, 1 at the light falling smoothly to 0 at
+     * the range
+     */
+    public double getAttenuation(double distance) {
+        return attenuation(distance, range);
+    }
+
+    public static double attenuation(double distance, double range) {
+        if (range == Double.POSITIVE_INFINITY) {
+            return 1;
+        }
+        double x = distance / range;
+        if (x >= 1) {
+            return 0;
+        }
+        double window = 1 - x * x;
+        return window * window;
+    }
+
+    /**
+     * a point of the light to aim a shadow ray at, the position itself for a point light
+     */
+    public Vector3d samplePosition(Random random) {
+        if (radius == 0) {
+            return position;
+        }
+        while (true) {
+            double x = 2 * random.nextDouble() - 1;
+            double y = 2 * random.nextDouble() - 1;
+            double z = 2 * random.nextDouble() - 1;
+            if (x * x + y * y + z * z <= 1) {
+                return position.add(new Vector3d(x * radius, y * radius, z * radius));
+            }
+        }
+    }
+
+    /**
+     * intensity times the average channel of the color, how strongly the light is picked when
+     * lights are sampled
+     */
+    public double getPower() {
+        return intensity * (color.getRed() + color.getGreen() + color.getBlue()) / (3 * 255);
+    }
+
     public Vector3d getPosition() {
         return position;
     }
@@ -35,4 +103,12 @@ public class PointLight {
     public RgbColor getColor() {
         return color;
     }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    public double getRange() {
+        return range;
+    }
 }
@@ -22,6 +22,21 @@ public class Ray3d {
         return new Ray3d(newPoint, direction);
     }
 
+    /**
+     * like createShiftedRay, but first moves the point off the surface with the given unit
+     * normal, to the side the direction leaves on, by the hit point error of the precision.
+     * The fixed shift along the direction alone fails for rays leaving at grazing angles once
+     * that error is larger than the shift.
+     */
+    public static Ray3d createShiftedRay(Vector3d point, Vector3d direction, Vector3d normal, GeometryPrecision precision) {
+        double offset = precision.getRelativeError()
+                * Math.max(Math.abs(point.x), Math.max(Math.abs(point.y), Math.abs(point.z)));
+        if (offset > 0) {
+            point = point.add(normal.multiply(direction.dot(normal) < 0 ? -offset : offset));
+        }
+        return createShiftedRay(point, direction);
+    }
+
     public Vector3d getPointAtT(double t) {
         return point.add(direction.multiply(t));
     }
@@ -22,6 +22,18 @@ public class RgbColor {
         this.rgb[2] = b;
     }
 
+    public double getRed() {
+        return rgb[0];
+    }
+
+    public double getGreen() {
+        return rgb[1];
+    }
+
+    public double getBlue() {
+        return rgb[2];
+    }
+
     public int asInt() {
         double red = rgb[0];
         double green = rgb[1];
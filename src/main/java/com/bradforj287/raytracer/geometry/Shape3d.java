@@ -12,6 +12,82 @@ public abstract class Shape3d {
 
     public abstract ShapeHit isHitByRay(Ray3d ray, double t1);
 
+    /**
+     * true if the shape blocks the ray before t1. Shapes that can answer this cheaper than
+     * finding the closest hit should override it.
+     */
+    public boolean isOccludingRay(Ray3d ray, double t1) {
+        return isHitByRay(ray, t1) != null;
+    }
+
+    /**
+     * number of primitives the shape is made of. Acceleration structures index every primitive
+     * separately through the methods below, most shapes are a single one.
+     */
+    public int getPrimitiveCount() {
+        return 1;
+    }
+
+    /**
+     * bounds of a primitive into out as min x,y,z then max x,y,z
+     */
+    public void getPrimitiveBounds(int primitive, double[] out) {
+        AxisAlignedBoundingBox3d box = getBoundingBox();
+        out[0] = box.getMin().x;
+        out[1] = box.getMin().y;
+        out[2] = box.getMin().z;
+        out[3] = box.getMax().x;
+        out[4] = box.getMax().y;
+        out[5] = box.getMax().z;
+    }
+
+    /**
+     * centroid of a primitive into out as x,y,z
+     */
+    public void getPrimitiveCentroid(int primitive, double[] out) {
+        Vector3d centroid = getCentroid();
+        out[0] = centroid.x;
+        out[1] = centroid.y;
+        out[2] = centroid.z;
+    }
+
+    public ShapeHit intersectPrimitive(int primitive, Ray3d ray, double t1) {
+        return isHitByRay(ray, t1);
+    }
+
+    public boolean isPrimitiveOccludingRay(int primitive, Ray3d ray, double t1) {
+        return isOccludingRay(ray, t1);
+    }
+
+    /**
+     * records a hit on the primitive closer than the hit already in the record and returns true,
+     * or leaves the record alone. Shapes that can test without creating a ShapeHit override this
+     * together with createPrimitiveHit.
+     */
+    public boolean intersectPrimitive(int primitive, Ray3d ray, HitRecord record) {
+        ShapeHit hit = intersectPrimitive(primitive, ray, record.getT());
+        if (hit == null || !(hit.getT() < record.getT())) {
+            return false;
+        }
+        record.set(hit, this, primitive);
+        return true;
+    }
+
+    /**
+     * writes the primitive into out in the layout of TriangleKernel and returns true if it is a
+     * triangle, returns false for anything else
+     */
+    public boolean getPrimitiveTriangle(int primitive, double[] out) {
+        return false;
+    }
+
+    /**
+     * the ShapeHit for a hit on the primitive at t
+     */
+    public ShapeHit createPrimitiveHit(int primitive, double t) {
+        return new ShapeHit(t, this);
+    }
+
     public double minX() {
         return getBoundingBox().getMin().getX();
     }
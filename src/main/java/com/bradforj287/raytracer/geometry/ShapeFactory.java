@@ -111,6 +111,10 @@ public class ShapeFactory {
         return r;
     }
 
+    /**
+     * the sponge as 12 triangles for every box, 20^level boxes. Use buildProceduralMengerSponge
+     * beyond the first few levels.
+     */
     public static List<Triangle3d> buildMengerSponge(AxisAlignedBoundingBox3d bb, Surface surface, int level) {
         List<Triangle3d> r = new ArrayList<>();
 
@@ -132,6 +136,13 @@ public class ShapeFactory {
         return r;
     }
 
+    /**
+     * the sponge as a single shape intersected analytically, for any level up to MengerSponge.MAX_LEVEL
+     */
+    public static MengerSponge buildProceduralMengerSponge(AxisAlignedBoundingBox3d bb, Surface surface, int level) {
+        return new MengerSponge(bb, level, surface);
+    }
+
     private static Triangle3d correctNormal(Triangle3d tri) {
         Vector3d fromOriginToTriangle = tri.v1.toUnitVector();
         Vector3d normal = tri.getNormalVector();
@@ -4,9 +4,17 @@ public class ShapeHit {
     private final double t;
     private final Shape3d hitShape;
 
+    // surface normal at the hit in world space. Null when the hit shape can compute it itself
+    private final Vector3d normal;
+
     public ShapeHit(double t, Shape3d hitShape) {
+        this(t, hitShape, null);
+    }
+
+    public ShapeHit(double t, Shape3d hitShape, Vector3d normal) {
         this.t = t;
         this.hitShape = hitShape;
+        this.normal = normal;
     }
 
     public double getT() {
@@ -16,4 +24,15 @@ public class ShapeHit {
     public Shape3d getHitShape() {
         return hitShape;
     }
+
+    public Vector3d getNormal() {
+        return normal;
+    }
+
+    /**
+     * normal at the hit point, from the hit itself if known or else from the hit shape
+     */
+    public Vector3d getNormal(Vector3d hitPoint) {
+        return normal != null ? normal : hitShape.normalAtSurfacePoint(hitPoint);
+    }
 }
@@ -18,6 +18,16 @@ public class Sphere3d extends Shape3d {
         return new AxisAlignedBoundingBox3d(min, max);
     }
 
+    @Override
+    public void getPrimitiveBounds(int primitive, double[] out) {
+        out[0] = center.x - radius;
+        out[1] = center.y - radius;
+        out[2] = center.z - radius;
+        out[3] = center.x + radius;
+        out[4] = center.y + radius;
+        out[5] = center.z + radius;
+    }
+
     @Override
     public Vector3d normalAtSurfacePoint(Vector3d intersectPoint) {
         return intersectPoint.subtract(this.center).toUnitVector();
@@ -1,5 +1,7 @@
 package com.bradforj287.raytracer.geometry;
 
+import com.google.common.base.Preconditions;
+
 public class Triangle3d extends Shape3d {
 
     public final Vector3d v1;
@@ -9,15 +11,34 @@ public class Triangle3d extends Shape3d {
     private final Surface surface;
     private Vector3d normal; // cached for performance
 
+    private final TriangleKernel kernel;
+    // first vertex and both edges, see TriangleKernel
+    private final double[] precomputed = new double[TriangleKernel.STRIDE];
+    private final AxisAlignedBoundingBox3d boundingBox;
+
     public Triangle3d(Vector3d a, Vector3d b, Vector3d c, Surface surface) {
+        this(a, b, c, surface, TriangleKernel.CRAMER);
+    }
+
+    public Triangle3d(Vector3d a, Vector3d b, Vector3d c, Surface surface, TriangleKernel kernel) {
         v1 = a;
         v2 = b;
         v3 = c;
         this.surface = surface;
+        this.kernel = Preconditions.checkNotNull(kernel);
+        TriangleKernel.precompute(a, b, c, precomputed, 0);
+
+        double[] box = new double[6];
+        getPrimitiveBounds(0, box);
+        boundingBox = new AxisAlignedBoundingBox3d(new Vector3d(box[0], box[1], box[2]), new Vector3d(box[3], box[4], box[5]));
     }
 
     public Triangle3d getFlippedNormal() {
-        return new Triangle3d(v2, v1, v3, this.surface);
+        return new Triangle3d(v2, v1, v3, this.surface, kernel);
+    }
+
+    public TriangleKernel getKernel() {
+        return kernel;
     }
 
     @Override
@@ -37,100 +58,51 @@ public class Triangle3d extends Shape3d {
 
     @Override
     public ShapeHit isHitByRay(Ray3d ray, double t1) {
+        double t = kernel.intersect(precomputed, 0, ray, t1);
+        return Double.isNaN(t) ? null : new ShapeHit(t, this);
+    }
 
-        Vector3d eye = ray.getPoint();
-        Vector3d dir = ray.getDirection();
-
-        Vector3d v_a = this.v1;
-        Vector3d v_b = this.v2;
-        Vector3d v_c = this.v3;
-
-        double a = v_a.x - v_b.x;
-        double b = v_a.y - v_b.y;
-        double c = v_a.z - v_b.z;
-        double d = v_a.x - v_c.x;
-        double e = v_a.y - v_c.y;
-        double f = v_a.z - v_c.z;
-        double g = dir.x;
-        double h = dir.y;
-        double i = dir.z;
-
-        double j = v_a.x - eye.x;
-        double k = v_a.y - eye.y;
-        double l = v_a.z - eye.z;
-
-        // compute M
-        double M = a * (e * i - h * f) + b * (g * f - d * i) + c
-                * (d * h - e * g);
-        // compute t
-        double t = (-1 * (f * (a * k - j * b) + e * (j * c - a * l) + d
-                * (b * l - k * c)))
-                / M;
-
-        if (t < 0 || t > t1) {
-            return null;
-        }
-
-        // compute gamma
-        double gamma = (i * (a * k - j * b) + h * (j * c - a * l) + g
-                * (b * l - k * c))
-                / M;
-
-        if (gamma < 0 || gamma > 1) {
-            return null;
-        }
-        // compute beta
-        double beta = (j * (e * i - h * f) + k * (g * f - d * i) + l
-                * (d * h - e * g))
-                / M;
+    @Override
+    public boolean isOccludingRay(Ray3d ray, double t1) {
+        return !Double.isNaN(kernel.intersect(precomputed, 0, ray, t1));
+    }
 
-        if (beta < 0 || beta > 1 - gamma) {
-            return null;
+    @Override
+    public boolean intersectPrimitive(int primitive, Ray3d ray, HitRecord record) {
+        double t = kernel.intersect(precomputed, 0, ray, record.getT());
+        if (!(t < record.getT())) {
+            return false;
         }
-
-        // set return arguments
-        return new ShapeHit(t, this);
+        record.set(t, this, primitive);
+        return true;
     }
 
-    private Vector3d[] toVertexArray() {
-        Vector3d[] r = new Vector3d[3];
-        r[0] = v1;
-        r[1] = v2;
-        r[2] = v3;
-        return r;
+    @Override
+    public AxisAlignedBoundingBox3d getBoundingBox() {
+        return boundingBox;
     }
 
-    private double getMin(final Axis axis) {
-        final String coord = axis.toCoordinateName();
-        Vector3d[] r = toVertexArray();
-        double min = r[0].getCoordiateByName(coord);
-        for (int i = 1; i < r.length; i++) {
-            double val = r[i].getCoordiateByName(coord);
-            if (val < min) {
-                min = val;
-            }
-        }
-        return min;
+    @Override
+    public boolean getPrimitiveTriangle(int primitive, double[] out) {
+        System.arraycopy(precomputed, 0, out, 0, TriangleKernel.STRIDE);
+        return true;
     }
 
-    private double getMax(final Axis axis) {
-        final String coord = axis.toCoordinateName();
-        Vector3d[] r = toVertexArray();
-        double max = r[0].getCoordiateByName(coord);
-        for (int i = 1; i < r.length; i++) {
-            double val = r[i].getCoordiateByName(coord);
-            if (val > max) {
-                max = val;
-            }
-        }
-        return max;
+    @Override
+    public void getPrimitiveBounds(int primitive, double[] out) {
+        out[0] = Math.min(v1.x, Math.min(v2.x, v3.x));
+        out[1] = Math.min(v1.y, Math.min(v2.y, v3.y));
+        out[2] = Math.min(v1.z, Math.min(v2.z, v3.z));
+        out[3] = Math.max(v1.x, Math.max(v2.x, v3.x));
+        out[4] = Math.max(v1.y, Math.max(v2.y, v3.y));
+        out[5] = Math.max(v1.z, Math.max(v2.z, v3.z));
     }
 
     @Override
-    public AxisAlignedBoundingBox3d getBoundingBox() {
-        Vector3d min = new Vector3d(getMin(Axis.X), getMin(Axis.Y), getMin(Axis.Z));
-        Vector3d max = new Vector3d(getMax(Axis.X), getMax(Axis.Y), getMax(Axis.Z));
-        return new AxisAlignedBoundingBox3d(min, max);
+    public void getPrimitiveCentroid(int primitive, double[] out) {
+        out[0] = (v1.x + v2.x + v3.x) / 3;
+        out[1] = (v1.y + v2.y + v3.y) / 3;
+        out[2] = (v1.z + v2.z + v3.z) / 3;
     }
 
     @Override
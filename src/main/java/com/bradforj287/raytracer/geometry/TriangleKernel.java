@@ -0,0 +1,250 @@
+package com.bradforj287.raytracer.geometry;
+
+/**
+ * Ray triangle intersection over triangles precomputed as STRIDE doubles, the first vertex
+ * followed by the edges to the second and third vertex. Triangles compute this once when they
+ * are created so a test only reads the array. Meshes can also be tested straight from their
+ * shared vertex buffer, the edges are then computed for every test the same way.
+ *
+ * CRAMER is the arithmetic Triangle3d has always used and gives the same results. MOLLER_TRUMBORE
+ * does fewer multiplies and tests every bound at once, results can differ in the last bits.
+ *
+ * Triangles of GeometryPrecision.FLOAT are stored as STRIDE floats and tested in float
+ * arithmetic with the same operations.
+ */
+public enum TriangleKernel {
+    CRAMER,
+    MOLLER_TRUMBORE;
+
+    public static final int STRIDE = 9;
+
+    public static void precompute(Vector3d a, Vector3d b, Vector3d c, double[] out, int offset) {
+        out[offset] = a.x;
+        out[offset + 1] = a.y;
+        out[offset + 2] = a.z;
+        out[offset + 3] = b.x - a.x;
+        out[offset + 4] = b.y - a.y;
+        out[offset + 5] = b.z - a.z;
+        out[offset + 6] = c.x - a.x;
+        out[offset + 7] = c.y - a.y;
+        out[offset + 8] = c.z - a.z;
+    }
+
+    /**
+     * the same rounded to float. The edges are taken between the rounded vertices so triangles
+     * sharing an edge still share it exactly.
+     */
+    public static void precompute(Vector3d a, Vector3d b, Vector3d c, float[] out, int offset) {
+        float ax = (float) a.x, ay = (float) a.y, az = (float) a.z;
+        out[offset] = ax;
+        out[offset + 1] = ay;
+        out[offset + 2] = az;
+        out[offset + 3] = (float) b.x - ax;
+        out[offset + 4] = (float) b.y - ay;
+        out[offset + 5] = (float) b.z - az;
+        out[offset + 6] = (float) c.x - ax;
+        out[offset + 7] = (float) c.y - ay;
+        out[offset + 8] = (float) c.z - az;
+    }
+
+    /**
+     * distance along the ray to the triangle at offset, or NaN if the ray misses it or hits
+     * beyond t1
+     */
+    public double intersect(double[] tri, int offset, Ray3d ray, double t1) {
+        return intersect(tri[offset], tri[offset + 1], tri[offset + 2],
+                tri[offset + 3], tri[offset + 4], tri[offset + 5],
+                tri[offset + 6], tri[offset + 7], tri[offset + 8], ray, t1);
+    }
+
+    /**
+     * the same for the triangle with vertices starting at a, b and c in a shared x,y,z vertex
+     * buffer, with the edges computed like precompute does
+     */
+    public double intersect(double[] vertices, int a, int b, int c, Ray3d ray, double t1) {
+        double ax = vertices[a], ay = vertices[a + 1], az = vertices[a + 2];
+        return intersect(ax, ay, az,
+                vertices[b] - ax, vertices[b + 1] - ay, vertices[b + 2] - az,
+                vertices[c] - ax, vertices[c + 1] - ay, vertices[c + 2] - az, ray, t1);
+    }
+
+    private double intersect(double v0x, double v0y, double v0z, double e1x, double e1y, double e1z,
+                             double e2x, double e2y, double e2z, Ray3d ray, double t1) {
+        switch (this) {
+            case CRAMER:
+                return cramer(v0x, v0y, v0z, e1x, e1y, e1z, e2x, e2y, e2z, ray, t1);
+            case MOLLER_TRUMBORE:
+                return mollerTrumbore(v0x, v0y, v0z, e1x, e1y, e1z, e2x, e2y, e2z, ray, t1);
+            default:
+                throw new IllegalStateException("unknown kernel " + this);
+        }
+    }
+
+    /**
+     * the same for a triangle stored as floats, the ray is rounded to float for the test
+     */
+    public double intersect(float[] tri, int offset, Ray3d ray, double t1) {
+        return intersect(tri[offset], tri[offset + 1], tri[offset + 2],
+                tri[offset + 3], tri[offset + 4], tri[offset + 5],
+                tri[offset + 6], tri[offset + 7], tri[offset + 8], ray, t1);
+    }
+
+    /**
+     * the same for a triangle in a shared float vertex buffer
+     */
+    public double intersect(float[] vertices, int a, int b, int c, Ray3d ray, double t1) {
+        float ax = vertices[a], ay = vertices[a + 1], az = vertices[a + 2];
+        return intersect(ax, ay, az,
+                vertices[b] - ax, vertices[b + 1] - ay, vertices[b + 2] - az,
+                vertices[c] - ax, vertices[c + 1] - ay, vertices[c + 2] - az, ray, t1);
+    }
+
+    private double intersect(float v0x, float v0y, float v0z, float e1x, float e1y, float e1z,
+                             float e2x, float e2y, float e2z, Ray3d ray, double t1) {
+        switch (this) {
+            case CRAMER:
+                return cramer(v0x, v0y, v0z, e1x, e1y, e1z, e2x, e2y, e2z, ray, t1);
+            case MOLLER_TRUMBORE:
+                return mollerTrumbore(v0x, v0y, v0z, e1x, e1y, e1z, e2x, e2y, e2z, ray, t1);
+            default:
+                throw new IllegalStateException("unknown kernel " + this);
+        }
+    }
+
+    private static double cramer(double v0x, double v0y, double v0z, double e1x, double e1y, double e1z,
+                                 double e2x, double e2y, double e2z, Ray3d ray, double t1) {
+        Vector3d eye = ray.getPoint();
+        Vector3d dir = ray.getDirection();
+
+        // the edges are stored from the first vertex, Cramer's rule wants them towards it
+        double a = -e1x;
+        double b = -e1y;
+        double c = -e1z;
+        double d = -e2x;
+        double e = -e2y;
+        double f = -e2z;
+        double g = dir.x;
+        double h = dir.y;
+        double i = dir.z;
+
+        double j = v0x - eye.x;
+        double k = v0y - eye.y;
+        double l = v0z - eye.z;
+
+        double eiMinusHf = e * i - h * f;
+        double gfMinusDi = g * f - d * i;
+        double dhMinusEg = d * h - e * g;
+        double akMinusJb = a * k - j * b;
+        double jcMinusAl = j * c - a * l;
+        double blMinusKc = b * l - k * c;
+
+        double M = a * eiMinusHf + b * gfMinusDi + c * dhMinusEg;
+        double t = (-1 * (f * akMinusJb + e * jcMinusAl + d * blMinusKc)) / M;
+        if (t < 0 || t > t1) {
+            return Double.NaN;
+        }
+        double gamma = (i * akMinusJb + h * jcMinusAl + g * blMinusKc) / M;
+        if (gamma < 0 || gamma > 1) {
+            return Double.NaN;
+        }
+        double beta = (j * eiMinusHf + k * gfMinusDi + l * dhMinusEg) / M;
+        if (beta < 0 || beta > 1 - gamma) {
+            return Double.NaN;
+        }
+        return t;
+    }
+
+    private static double mollerTrumbore(double v0x, double v0y, double v0z, double e1x, double e1y, double e1z,
+                                         double e2x, double e2y, double e2z, Ray3d ray, double t1) {
+        Vector3d orig = ray.getPoint();
+        Vector3d dir = ray.getDirection();
+
+        double px = dir.y * e2z - dir.z * e2y;
+        double py = dir.z * e2x - dir.x * e2z;
+        double pz = dir.x * e2y - dir.y * e2x;
+        double inv = 1 / (e1x * px + e1y * py + e1z * pz);
+
+        double sx = orig.x - v0x;
+        double sy = orig.y - v0y;
+        double sz = orig.z - v0z;
+        double u = (sx * px + sy * py + sz * pz) * inv;
+
+        double qx = sy * e1z - sz * e1y;
+        double qy = sz * e1x - sx * e1z;
+        double qz = sx * e1y - sy * e1x;
+        double v = (dir.x * qx + dir.y * qy + dir.z * qz) * inv;
+        double t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+
+        // a parallel ray divides by zero and fails one of these as NaN or infinity
+        boolean hit = (u >= 0) & (v >= 0) & (u + v <= 1) & (t >= 0) & (t <= t1);
+        return hit ? t : Double.NaN;
+    }
+
+    private static double cramer(float v0x, float v0y, float v0z, float e1x, float e1y, float e1z,
+                                 float e2x, float e2y, float e2z, Ray3d ray, double t1) {
+        Vector3d eye = ray.getPoint();
+        Vector3d dir = ray.getDirection();
+
+        float a = -e1x;
+        float b = -e1y;
+        float c = -e1z;
+        float d = -e2x;
+        float e = -e2y;
+        float f = -e2z;
+        float g = (float) dir.x;
+        float h = (float) dir.y;
+        float i = (float) dir.z;
+
+        float j = v0x - (float) eye.x;
+        float k = v0y - (float) eye.y;
+        float l = v0z - (float) eye.z;
+
+        float eiMinusHf = e * i - h * f;
+        float gfMinusDi = g * f - d * i;
+        float dhMinusEg = d * h - e * g;
+        float akMinusJb = a * k - j * b;
+        float jcMinusAl = j * c - a * l;
+        float blMinusKc = b * l - k * c;
+
+        float M = a * eiMinusHf + b * gfMinusDi + c * dhMinusEg;
+        float t = (-1 * (f * akMinusJb + e * jcMinusAl + d * blMinusKc)) / M;
+        if (t < 0 || t > t1) {
+            return Double.NaN;
+        }
+        float gamma = (i * akMinusJb + h * jcMinusAl + g * blMinusKc) / M;
+        if (gamma < 0 || gamma > 1) {
+            return Double.NaN;
+        }
+        float beta = (j * eiMinusHf + k * gfMinusDi + l * dhMinusEg) / M;
+        if (beta < 0 || beta > 1 - gamma) {
+            return Double.NaN;
+        }
+        return t;
+    }
+
+    private static double mollerTrumbore(float v0x, float v0y, float v0z, float e1x, float e1y, float e1z,
+                                         float e2x, float e2y, float e2z, Ray3d ray, double t1) {
+        Vector3d orig = ray.getPoint();
+        Vector3d dir = ray.getDirection();
+        float dx = (float) dir.x, dy = (float) dir.y, dz = (float) dir.z;
+
+        float px = dy * e2z - dz * e2y;
+        float py = dz * e2x - dx * e2z;
+        float pz = dx * e2y - dy * e2x;
+        float inv = 1 / (e1x * px + e1y * py + e1z * pz);
+
+        float sx = (float) orig.x - v0x;
+        float sy = (float) orig.y - v0y;
+        float sz = (float) orig.z - v0z;
+        float u = (sx * px + sy * py + sz * pz) * inv;
+
+        float qx = sy * e1z - sz * e1y;
+        float qy = sz * e1x - sx * e1z;
+        float qz = sx * e1y - sy * e1x;
+        float v = (dx * qx + dy * qy + dz * qz) * inv;
+        float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+
+        boolean hit = (u >= 0) & (v >= 0) & (u + v <= 1) & (t >= 0) & (t <= t1);
+        return hit ? t : Double.NaN;
+    }
+}
@@ -0,0 +1,347 @@
+package com.bradforj287.raytracer.geometry;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Triangles sharing one vertex buffer and one surface. Vertices are stored as x,y,z in a flat
+ * array and every triangle is three vertex indices, so a vertex shared by several faces is only
+ * stored once and no object exists per triangle. Acceleration structures index the triangles as
+ * the primitives of the mesh.
+ *
+ * Triangles are wound like Triangle3d, the normal of (a, b, c) is (b - a) x (c - a). Ray tests
+ * read the shared buffers and compute the edges of the triangle as they go. A mesh created with
+ * precomputed triangles keeps a copy of every triangle laid out for the kernel instead, which
+ * saves that work per test but costs STRIDE more values per triangle than the ~36 bytes of the
+ * shared buffers.
+ *
+ * A mesh of GeometryPrecision.FLOAT rounds its vertices to float, keeps both buffers as floats
+ * and tests rays in float arithmetic. Everything else reads the rounded vertices widened to
+ * double, so bounds and normals match the triangles that are tested.
+ */
+public class TriangleMesh extends Shape3d {
+    // how far normalAtSurfacePoint looks outside the bounds of a triangle, relative to the mesh
+    private static final double NORMAL_BOUNDS_TOLERANCE = 1e-6;
+
+    // one of the two, depending on the precision
+    private final double[] vertices;
+    private final float[] floatVertices;
+    private final int[] indices;
+    private final Surface surface;
+    private final AxisAlignedBoundingBox3d boundingBox;
+
+    private final TriangleKernel kernel;
+    private final GeometryPrecision precision;
+    // STRIDE doubles or floats per triangle when asked for, see TriangleKernel
+    private final double[] precomputed;
+    private final float[] floatPrecomputed;
+
+    public TriangleMesh(double[] vertices, int[] indices, Surface surface) {
+        this(vertices, indices, surface, TriangleKernel.CRAMER);
+    }
+
+    public TriangleMesh(double[] vertices, int[] indices, Surface surface, TriangleKernel kernel) {
+        this(vertices, indices, surface, kernel, GeometryPrecision.DOUBLE);
+    }
+
+    public TriangleMesh(double[] vertices, int[] indices, Surface surface, TriangleKernel kernel, GeometryPrecision precision) {
+        this(vertices, indices, surface, kernel, precision, false);
+    }
+
+    public TriangleMesh(double[] vertices, int[] indices, Surface surface, TriangleKernel kernel,
+                        GeometryPrecision precision, boolean precomputeTriangles) {
+        Preconditions.checkArgument(vertices.length % 3 == 0);
+        Preconditions.checkArgument(indices.length > 0 && indices.length % 3 == 0);
+        int vertexCount = vertices.length / 3;
+        for (int index : indices) {
+            Preconditions.checkArgument(index >= 0 && index < vertexCount, "vertex index out of range");
+        }
+        this.precision = Preconditions.checkNotNull(precision);
+        if (precision == GeometryPrecision.FLOAT) {
+            this.vertices = null;
+            this.floatVertices = new float[vertices.length];
+            for (int i = 0; i < vertices.length; i++) {
+                floatVertices[i] = (float) vertices[i];
+            }
+        } else {
+            this.vertices = vertices;
+            this.floatVertices = null;
+        }
+        this.indices = indices;
+        this.surface = surface;
+
+        double[] box = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int index : indices) {
+            for (int axis = 0; axis < 3; axis++) {
+                box[axis] = Math.min(box[axis], coordinate(index * 3 + axis));
+                box[axis + 3] = Math.max(box[axis + 3], coordinate(index * 3 + axis));
+            }
+        }
+        this.boundingBox = new AxisAlignedBoundingBox3d(new Vector3d(box[0], box[1], box[2]), new Vector3d(box[3], box[4], box[5]));
+
+        this.kernel = Preconditions.checkNotNull(kernel);
+        int size = precomputeTriangles ? getTriangleCount() * TriangleKernel.STRIDE : 0;
+        this.precomputed = precomputeTriangles && precision == GeometryPrecision.DOUBLE ? new double[size] : null;
+        this.floatPrecomputed = precomputeTriangles && precision == GeometryPrecision.FLOAT ? new float[size] : null;
+        for (int triangle = 0; precomputeTriangles && triangle < getTriangleCount(); triangle++) {
+            Vector3d a = getVertex(triangle, 0), b = getVertex(triangle, 1), c = getVertex(triangle, 2);
+            if (precomputed != null) {
+                TriangleKernel.precompute(a, b, c, precomputed, triangle * TriangleKernel.STRIDE);
+            } else {
+                TriangleKernel.precompute(a, b, c, floatPrecomputed, triangle * TriangleKernel.STRIDE);
+            }
+        }
+    }
+
+    private double coordinate(int i) {
+        return vertices != null ? vertices[i] : floatVertices[i];
+    }
+
+    public TriangleKernel getKernel() {
+        return kernel;
+    }
+
+    public GeometryPrecision getPrecision() {
+        return precision;
+    }
+
+    public boolean isPrecomputed() {
+        return precomputed != null || floatPrecomputed != null;
+    }
+
+    /**
+     * bytes held by the vertex, index and precomputed buffers
+     */
+    public long getMemoryBytes() {
+        int bytesPerValue = precision == GeometryPrecision.FLOAT ? 4 : 8;
+        long precomputedValues = precomputed != null ? precomputed.length
+                : floatPrecomputed != null ? floatPrecomputed.length : 0;
+        return (long) bytesPerValue * (getVertexCount() * 3 + precomputedValues) + 4L * indices.length;
+    }
+
+    public int getTriangleCount() {
+        return indices.length / 3;
+    }
+
+    public int getVertexCount() {
+        return vertices != null ? vertices.length / 3 : floatVertices.length / 3;
+    }
+
+    /**
+     * vertex 0, 1 or 2 of a triangle
+     */
+    public Vector3d getVertex(int triangle, int corner) {
+        int v = indices[triangle * 3 + corner] * 3;
+        return new Vector3d(coordinate(v), coordinate(v + 1), coordinate(v + 2));
+    }
+
+    public Vector3d getTriangleNormal(int triangle) {
+        int a = indices[triangle * 3] * 3;
+        int b = indices[triangle * 3 + 1] * 3;
+        int c = indices[triangle * 3 + 2] * 3;
+        double e1x = coordinate(b) - coordinate(a);
+        double e1y = coordinate(b + 1) - coordinate(a + 1);
+        double e1z = coordinate(b + 2) - coordinate(a + 2);
+        double e2x = coordinate(c) - coordinate(a);
+        double e2y = coordinate(c + 1) - coordinate(a + 1);
+        double e2z = coordinate(c + 2) - coordinate(a + 2);
+        return new Vector3d(e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z, e1x * e2y - e1y * e2x).toUnitVector();
+    }
+
+    /**
+     * distance along the ray to the triangle, or NaN if the ray misses it or hits beyond t1
+     */
+    public double intersectTriangle(int triangle, Ray3d ray, double t1) {
+        if (precomputed != null) {
+            return kernel.intersect(precomputed, triangle * TriangleKernel.STRIDE, ray, t1);
+        } else if (floatPrecomputed != null) {
+            return kernel.intersect(floatPrecomputed, triangle * TriangleKernel.STRIDE, ray, t1);
+        }
+        int a = indices[triangle * 3] * 3;
+        int b = indices[triangle * 3 + 1] * 3;
+        int c = indices[triangle * 3 + 2] * 3;
+        if (vertices != null) {
+            return kernel.intersect(vertices, a, b, c, ray, t1);
+        }
+        return kernel.intersect(floatVertices, a, b, c, ray, t1);
+    }
+
+    @Override
+    public int getPrimitiveCount() {
+        return getTriangleCount();
+    }
+
+    /**
+     * float triangles come out widened to double
+     */
+    @Override
+    public boolean getPrimitiveTriangle(int primitive, double[] out) {
+        int offset = primitive * TriangleKernel.STRIDE;
+        if (precomputed != null) {
+            System.arraycopy(precomputed, offset, out, 0, TriangleKernel.STRIDE);
+        } else if (floatPrecomputed != null) {
+            for (int i = 0; i < TriangleKernel.STRIDE; i++) {
+                out[i] = floatPrecomputed[offset + i];
+            }
+        } else if (precision == GeometryPrecision.FLOAT) {
+            // edges between the float vertices like the float precompute
+            float[] tri = new float[TriangleKernel.STRIDE];
+            TriangleKernel.precompute(getVertex(primitive, 0), getVertex(primitive, 1), getVertex(primitive, 2), tri, 0);
+            for (int i = 0; i < TriangleKernel.STRIDE; i++) {
+                out[i] = tri[i];
+            }
+        } else {
+            TriangleKernel.precompute(getVertex(primitive, 0), getVertex(primitive, 1), getVertex(primitive, 2), out, 0);
+        }
+        return true;
+    }
+
+    @Override
+    public void getPrimitiveBounds(int primitive, double[] out) {
+        out[0] = out[1] = out[2] = Double.POSITIVE_INFINITY;
+        out[3] = out[4] = out[5] = Double.NEGATIVE_INFINITY;
+        for (int corner = 0; corner < 3; corner++) {
+            int v = indices[primitive * 3 + corner] * 3;
+            for (int axis = 0; axis < 3; axis++) {
+                out[axis] = Math.min(out[axis], coordinate(v + axis));
+                out[axis + 3] = Math.max(out[axis + 3], coordinate(v + axis));
+            }
+        }
+    }
+
+    @Override
+    public void getPrimitiveCentroid(int primitive, double[] out) {
+        int a = indices[primitive * 3] * 3;
+        int b = indices[primitive * 3 + 1] * 3;
+        int c = indices[primitive * 3 + 2] * 3;
+        for (int axis = 0; axis < 3; axis++) {
+            out[axis] = (coordinate(a + axis) + coordinate(b + axis) + coordinate(c + axis)) / 3;
+        }
+    }
+
+    @Override
+    public ShapeHit intersectPrimitive(int primitive, Ray3d ray, double t1) {
+        double t = intersectTriangle(primitive, ray, t1);
+        if (Double.isNaN(t)) {
+            return null;
+        }
+        return createPrimitiveHit(primitive, t);
+    }
+
+    @Override
+    public boolean intersectPrimitive(int primitive, Ray3d ray, HitRecord record) {
+        double t = intersectTriangle(primitive, ray, record.getT());
+        if (!(t < record.getT())) {
+            return false;
+        }
+        record.set(t, this, primitive);
+        return true;
+    }
+
+    @Override
+    public ShapeHit createPrimitiveHit(int primitive, double t) {
+        return new ShapeHit(t, this, getTriangleNormal(primitive));
+    }
+
+    @Override
+    public boolean isPrimitiveOccludingRay(int primitive, Ray3d ray, double t1) {
+        return !Double.isNaN(intersectTriangle(primitive, ray, t1));
+    }
+
+    /**
+     * tests every triangle. Scenes should hand the mesh to an acceleration structure which
+     * tests the triangles through the primitive methods instead.
+     */
+    @Override
+    public ShapeHit isHitByRay(Ray3d ray, double t1) {
+        ShapeHit best = null;
+        double bestT = t1;
+        for (int triangle = 0; triangle < getTriangleCount(); triangle++) {
+            double t = intersectTriangle(triangle, ray, bestT);
+            if (!Double.isNaN(t) && (best == null || t < bestT)) {
+                bestT = t;
+                best = new ShapeHit(t, this, getTriangleNormal(triangle));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * normal of the triangle closest to the point. Only triangles whose primitive bounds hold the
+     * point are measured, every triangle when the point is off the surface. Hits already carry
+     * the normal of their triangle in the ShapeHit.
+     */
+    @Override
+    public Vector3d normalAtSurfacePoint(Vector3d intersectPoint) {
+        double tolerance = NORMAL_BOUNDS_TOLERANCE
+                * boundingBox.getMax().subtract(boundingBox.getMin()).getMagnitude();
+        int closest = closestTriangle(intersectPoint, tolerance);
+        if (closest < 0) {
+            closest = closestTriangle(intersectPoint, Double.POSITIVE_INFINITY);
+        }
+        return getTriangleNormal(closest);
+    }
+
+    /**
+     * the closest of the triangles whose bounds grown by tolerance hold the point, or -1
+     */
+    private int closestTriangle(Vector3d p, double tolerance) {
+        double[] bounds = new double[6];
+        int closest = -1;
+        double closestDistance = Double.POSITIVE_INFINITY;
+        for (int triangle = 0; triangle < getTriangleCount(); triangle++) {
+            getPrimitiveBounds(triangle, bounds);
+            if (p.x < bounds[0] - tolerance || p.y < bounds[1] - tolerance || p.z < bounds[2] - tolerance
+                    || p.x > bounds[3] + tolerance || p.y > bounds[4] + tolerance || p.z > bounds[5] + tolerance) {
+                continue;
+            }
+            double distance = squaredDistanceToTriangle(triangle, p);
+            if (distance < closestDistance) {
+                closestDistance = distance;
+                closest = triangle;
+            }
+        }
+        return closest;
+    }
+
+    private double squaredDistanceToTriangle(int triangle, Vector3d p) {
+        Vector3d a = getVertex(triangle, 0), b = getVertex(triangle, 1), c = getVertex(triangle, 2);
+        Vector3d n = b.subtract(a).cross(c.subtract(a));
+        double area = n.dot(n);
+        if (area > 0) {
+            // inside when p lies on the inner side of all three edges
+            Vector3d ap = p.subtract(a), bp = p.subtract(b), cp = p.subtract(c);
+            if (b.subtract(a).cross(ap).dot(n) >= 0 && c.subtract(b).cross(bp).dot(n) >= 0
+                    && a.subtract(c).cross(cp).dot(n) >= 0) {
+                double planeDistance = ap.dot(n);
+                return planeDistance * planeDistance / area;
+            }
+        }
+        return Math.min(squaredDistanceToSegment(p, a, b),
+                Math.min(squaredDistanceToSegment(p, b, c), squaredDistanceToSegment(p, c, a)));
+    }
+
+    private static double squaredDistanceToSegment(Vector3d p, Vector3d a, Vector3d b) {
+        Vector3d ab = b.subtract(a);
+        Vector3d ap = p.subtract(a);
+        double length = ab.dot(ab);
+        double f = length > 0 ? Math.max(0, Math.min(1, ap.dot(ab) / length)) : 0;
+        Vector3d d = ap.subtract(ab.multiply(f));
+        return d.dot(d);
+    }
+
+    @Override
+    public AxisAlignedBoundingBox3d getBoundingBox() {
+        return boundingBox;
+    }
+
+    @Override
+    public Vector3d getCentroid() {
+        return boundingBox.getMin().add(boundingBox.getMax()).multiply(0.5);
+    }
+
+    @Override
+    public Surface getSurface() {
+        return surface;
+    }
+}
@@ -1,8 +1,5 @@
 package com.bradforj287.raytracer.geometry;
 
-import java.lang.reflect.Field;
-import org.apache.commons.lang3.reflect.FieldUtils;
-
 /**
  * Class for 3d vector. Immutable
  *
@@ -103,15 +100,35 @@ public class Vector3d {
     }
 
     public double getCoordiateByAxis(final Axis axis) {
-        return getCoordiateByName(axis.toCoordinateName());
+        return getCoordinate(axis.getIndex());
+    }
+
+    /**
+     * x, y or z for an axis index of 0, 1 or 2
+     */
+    public double getCoordinate(final int axis) {
+        switch (axis) {
+            case 0:
+                return x;
+            case 1:
+                return y;
+            case 2:
+                return z;
+            default:
+                throw new IllegalArgumentException("no axis " + axis);
+        }
     }
 
     public double getCoordiateByName(final String coord) {
-        Field coordField = FieldUtils.getField(Vector3d.class, coord);
-        try {
-            return coordField.getDouble(this);
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
+        switch (coord) {
+            case "x":
+                return x;
+            case "y":
+                return y;
+            case "z":
+                return z;
+            default:
+                throw new IllegalArgumentException("no coordinate " + coord);
         }
     }
 
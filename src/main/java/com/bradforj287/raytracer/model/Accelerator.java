@@ -0,0 +1,51 @@
+package com.bradforj287.raytracer.model;
+
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.HitRecord;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
+
+/**
+ * Spatial index over the shapes of a scene. Implementations must be safe for concurrent queries.
+ */
+public interface Accelerator {
+
+    KdTreeQueryStats visitPossibleIntersections(Ray3d ray, ShapeVisitor visitor);
+
+    /**
+     * closest shape hit by the ray with t no greater than maxT, or null
+     */
+    ShapeHit closestHit(Ray3d ray, double maxT, KdTreeQueryStats queryStats);
+
+    /**
+     * closest hit of every ray in the packet, recorded in the packet
+     */
+    void closestHit(RayPacket packet, KdTreeQueryStats queryStats);
+
+    /**
+     * true if any shape blocks the ray with t no greater than maxT
+     */
+    boolean anyHit(Ray3d ray, double maxT, KdTreeQueryStats queryStats);
+
+    /**
+     * like anyHit, and records the shape and primitive that block the ray in occluder, with
+     * maxT as its t. Implementations that can't tell which primitive it was leave occluder
+     * alone.
+     */
+    default boolean anyHit(Ray3d ray, double maxT, KdTreeQueryStats queryStats, HitRecord occluder) {
+        return anyHit(ray, maxT, queryStats);
+    }
+
+    AxisAlignedBoundingBox3d getBounds();
+
+    /**
+     * applies the shape changes of an animation step
+     */
+    void update(SceneUpdate update);
+
+    /**
+     * approximate bytes held by the index itself, not counting the shapes
+     */
+    long estimateMemoryBytes();
+}
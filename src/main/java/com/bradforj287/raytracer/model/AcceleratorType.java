@@ -0,0 +1,29 @@
+package com.bradforj287.raytracer.model;
+
+import java.util.List;
+import com.bradforj287.raytracer.geometry.Shape3d;
+import com.bradforj287.raytracer.model.bvh.BVH;
+import com.bradforj287.raytracer.model.grid.UniformGrid;
+import com.bradforj287.raytracer.model.kdtree.KDTree;
+
+/**
+ * The accelerators a scene can be built with. Which one is fastest depends on the scene.
+ */
+public enum AcceleratorType {
+    KD_TREE,
+    BVH,
+    GRID;
+
+    public Accelerator build(List<Shape3d> shapes) {
+        switch (this) {
+            case KD_TREE:
+                return new KDTree(shapes);
+            case BVH:
+                return new BVH(shapes);
+            case GRID:
+                return new UniformGrid(shapes);
+            default:
+                throw new IllegalStateException("unknown accelerator " + this);
+        }
+    }
+}
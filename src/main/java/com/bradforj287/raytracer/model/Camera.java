@@ -3,24 +3,43 @@ package com.bradforj287.raytracer.model;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.Future;
 import com.bradforj287.raytracer.Globals;
 import com.bradforj287.raytracer.ProgramArguments;
+import com.bradforj287.raytracer.engine.PathTracer;
 import com.bradforj287.raytracer.engine.RayTracer;
+import com.bradforj287.raytracer.engine.ShadingConfig;
 import com.bradforj287.raytracer.engine.Tracer;
+import com.bradforj287.raytracer.engine.WavefrontRenderer;
 import com.bradforj287.raytracer.geometry.Matrix3d;
 import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.RgbColor;
 import com.bradforj287.raytracer.geometry.Vector3d;
 import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
+import com.google.common.base.Preconditions;
 
 public class Camera {
     private static int PARALLEL_TASKS = Runtime.getRuntime().availableProcessors()*10;
 
+    // tiles are traced as one ray packet so TILE_SIZE^2 can't exceed RayPacket.MAX_SIZE
+    private static final int TILE_SIZE = 8;
+
+    // tiles traced together by the wavefront renderer, TILE_SIZE^2 rays each
+    private static final int WAVE_TILES = 1024;
+
     final private Dimension screenResolution;
     private Vector3d screenPosition;
     private Matrix3d rotation;
     private final SceneModel sceneModel;
+    private ShadingConfig shadingConfig = new ShadingConfig();
+    private boolean wavefront = false;
+    private boolean progressive = false;
+
+    // running sum of the passes since the camera last moved, rgb per pixel
+    private float[] accumulation;
+    private int passes;
     private double thetax = 0;
     private double thetay = 0;
     private double thetaz = 0;
@@ -41,6 +60,7 @@ public class Camera {
         Matrix3d zRot = Matrix3d.getZRotationMatrix(thetaz);
         Matrix3d rot = Matrix3d.matrixMultiply(xRot, yRot);
         rotation = Matrix3d.matrixMultiply(rot, zRot);
+        resetAccumulation();
     }
 
     public double getThetax() {
@@ -73,32 +93,43 @@ public class Camera {
         // first clear the screen to the background color
         clearImage(image);
 
+        // a progressive pass adds one path per pixel to the running sum
+        final int pass;
+        if (progressive) {
+            if (accumulation == null) {
+                accumulation = new float[screenResolution.width * screenResolution.height * 3];
+            }
+            pass = ++passes;
+        } else {
+            pass = 0;
+        }
+
         // create some arguments for the trace call
         final double xIncrement = ProgramArguments.SCREEN_WIDTH / screenResolution.getWidth();
         final double yIncrement = ProgramArguments.SCREEN_HEIGHT / screenResolution.getHeight();
         final double xstart = -1 * ProgramArguments.SCREEN_WIDTH / 2;
         final double ystart = -1 * ProgramArguments.SCREEN_HEIGHT / 2;
-        final int threadWidth = screenResolution.width / PARALLEL_TASKS;
+        final int tilesX = (screenResolution.width + TILE_SIZE - 1) / TILE_SIZE;
+        final int tilesY = (screenResolution.height + TILE_SIZE - 1) / TILE_SIZE;
+        final int tileCount = tilesX * tilesY;
+        final Vector3d screenPos = screenPosition;
+        final Matrix3d screenRotation = rotation;
+
+        if (wavefront && !progressive) {
+            KdTreeQueryStats stats = traceWaves(image, tilesX, tileCount, xIncrement, yIncrement,
+                    xstart, ystart, screenPos, screenRotation);
+            return new CameraTraceResult(stats, image);
+        }
 
         ArrayList<Future<KdTreeQueryStats>> futures = new ArrayList<>();
 
-        // create the tasks
+        // create the tasks. Tiles are dealt out round robin so every task gets a mix of cheap
+        // and expensive parts of the screen.
         for (int i = 0; i < PARALLEL_TASKS; i++) {
-            // calculate width and height for this thread
-            int width = threadWidth;
-            int height = screenResolution.height;
-
-            if (i == PARALLEL_TASKS - 1) {
-                width += screenResolution.width % PARALLEL_TASKS;
-            }
-
-            // pass this to thread
-            final Rectangle threadRect = new Rectangle(i * threadWidth, 0,
-                    width, height);
-
+            final int taskIndex = i;
             Future<KdTreeQueryStats> future = Globals.executorService.submit(() -> {
-                return iterateOverScreenRegion(image, threadRect, xIncrement,
-                        yIncrement, xstart, ystart, screenPosition, rotation);
+                return iterateOverTiles(image, taskIndex, tilesX, tileCount, xIncrement,
+                        yIncrement, xstart, ystart, screenPos, screenRotation, pass);
             });
 
             futures.add(future);
@@ -119,75 +150,254 @@ public class Camera {
     }
 
     /**
-     * Iterates over a subset of the screen resolution specified by Region. The
-     * purpose of this is to distribute across threads.
+     * Traces every PARALLEL_TASKS'th tile of the screen starting at firstTile. The pixels of a
+     * tile are traced together as one ray packet per antialiasing sample since neighbouring
+     * primary rays take nearly the same path through the scene.
+     *
+     * Progressive passes trace one path per pixel through a random point of it with a
+     * PathTracer, add it to the accumulation and write the average of all passes so far.
      */
-    private KdTreeQueryStats iterateOverScreenRegion(BufferedImage image, Rectangle region,
-                                                     double xIncrement, double yIncrement,
-                                                     double xStart, double yStart,
-                                                     Vector3d screenPos, Matrix3d screenRotation) {
+    private KdTreeQueryStats iterateOverTiles(BufferedImage image, int firstTile, int tilesX, int tileCount,
+                                              double xIncrement, double yIncrement,
+                                              double xStart, double yStart,
+                                              Vector3d screenPos, Matrix3d screenRotation, int pass) {
         Random rand = new Random();
 
-        Tracer tracer = new RayTracer(sceneModel);
-
-        // iterate over all pixels in resolution
-        for (int i = region.x; i < region.x + region.width; i++) {
-            for (int j = 0; j < region.height; j++) {
-                int aveR = 0;
-                int aveG = 0;
-                int aveB = 0;
-                int aveA = 0;
-                for (int a = 0; a < ProgramArguments.ANTIALIASING_SAMPLES; a++) {
-                    double xOffset;
-                    double yOffset;
-
-                    if (ProgramArguments.ANTIALIASING_SAMPLES > 1) {
-                        xOffset = rand.nextDouble() * xIncrement;
-                        yOffset = rand.nextDouble() * yIncrement;
-                    } else {
-                        xOffset = .5 * xIncrement;
-                        yOffset = .5 * yIncrement;
+        Tracer tracer = progressive ? new PathTracer(sceneModel, shadingConfig) : new RayTracer(sceneModel, shadingConfig);
+        int samples = progressive ? 1 : ProgramArguments.ANTIALIASING_SAMPLES;
+        RayPacket packet = new RayPacket();
+        RgbColor[] colors = new RgbColor[RayPacket.MAX_SIZE];
+        int[] sumR = new int[RayPacket.MAX_SIZE];
+        int[] sumG = new int[RayPacket.MAX_SIZE];
+        int[] sumB = new int[RayPacket.MAX_SIZE];
+
+        // the eye is shared by every ray. Rotate it then move to screen position.
+        Vector3d eyePosition = new Vector3d(0, 0, ProgramArguments.EYE_CAMERA_DISTANCE);
+        eyePosition = eyePosition.multiplyByMatrix(screenRotation).add(screenPos);
+
+        for (int tile = firstTile; tile < tileCount; tile += PARALLEL_TASKS) {
+            int x0 = (tile % tilesX) * TILE_SIZE;
+            int y0 = (tile / tilesX) * TILE_SIZE;
+            int x1 = Math.min(x0 + TILE_SIZE, screenResolution.width);
+            int y1 = Math.min(y0 + TILE_SIZE, screenResolution.height);
+
+            Arrays.fill(sumR, 0);
+            Arrays.fill(sumG, 0);
+            Arrays.fill(sumB, 0);
+
+            for (int a = 0; a < samples; a++) {
+                packet.clear();
+                for (int j = y0; j < y1; j++) {
+                    for (int i = x0; i < x1; i++) {
+                        packet.add(createPrimaryRay(rand, samples > 1 || progressive, i, j, xIncrement, yIncrement,
+                                xStart, yStart, eyePosition, screenPos, screenRotation), Double.MAX_VALUE);
                     }
+                }
+
+                tracer.getColorsForPacket(packet, colors);
+
+                for (int k = 0; k < packet.size(); k++) {
+                    Color c = new Color(colors[k].asInt());
+                    sumR[k] += c.getRed();
+                    sumG[k] += c.getGreen();
+                    sumB[k] += c.getBlue();
+                }
+            }
+
+            if (progressive) {
+                accumulate(image, colors, x0, y0, x1, y1, pass);
+                continue;
+            }
 
-                    // calculate pointOnScreen and eyePoint
-                    Vector3d pointOnScreen = new Vector3d(xStart + i * xIncrement + xOffset,
-                            yStart + j * yIncrement + yOffset, 0);
-                    Vector3d eyePosition = new Vector3d(0, 0, ProgramArguments.EYE_CAMERA_DISTANCE);
+            int k = 0;
+            for (int j = y0; j < y1; j++) {
+                for (int i = x0; i < x1; i++, k++) {
+                    Color c1 = new Color(sumR[k] / ProgramArguments.ANTIALIASING_SAMPLES,
+                            sumG[k] / ProgramArguments.ANTIALIASING_SAMPLES,
+                            sumB[k] / ProgramArguments.ANTIALIASING_SAMPLES);
+                    //set screen coordiates. Need to mirror on y axis for output to buffered image
+                    int si = (screenResolution.width - 1) - i;
+                    image.setRGB(si, j, c1.getRGB());
+                }
+            }
+        }
 
-                    // rotate both points according to theta
-                    pointOnScreen = pointOnScreen.multiplyByMatrix(screenRotation);
-                    eyePosition = eyePosition.multiplyByMatrix(screenRotation);
+        return tracer.getKdTreeQueryStats();
+    }
 
-                    // move to screen position
-                    pointOnScreen = pointOnScreen.add(screenPos);
-                    eyePosition = eyePosition.add(screenPos);
+    /**
+     * Traces the screen WAVE_TILES tiles at a time with a WavefrontRenderer, which splits its
+     * stages over the executor itself. Pixels are queued tile by tile so primary rays stay
+     * coherent.
+     */
+    private KdTreeQueryStats traceWaves(BufferedImage image, int tilesX, int tileCount,
+                                        double xIncrement, double yIncrement,
+                                        double xStart, double yStart,
+                                        Vector3d screenPos, Matrix3d screenRotation) {
+        Random rand = new Random();
 
-                    // calculate view ray
-                    Vector3d eyeDirection = pointOnScreen.subtract(eyePosition);
+        WavefrontRenderer renderer = new WavefrontRenderer(sceneModel, shadingConfig);
+        int waveSize = WAVE_TILES * TILE_SIZE * TILE_SIZE;
+        Ray3d[] rays = new Ray3d[waveSize];
+        RgbColor[] colors = new RgbColor[waveSize];
+        int[] sumR = new int[waveSize];
+        int[] sumG = new int[waveSize];
+        int[] sumB = new int[waveSize];
+
+        Vector3d eyePosition = new Vector3d(0, 0, ProgramArguments.EYE_CAMERA_DISTANCE);
+        eyePosition = eyePosition.multiplyByMatrix(screenRotation).add(screenPos);
+
+        for (int firstTile = 0; firstTile < tileCount; firstTile += WAVE_TILES) {
+            int lastTile = Math.min(tileCount, firstTile + WAVE_TILES);
+
+            Arrays.fill(sumR, 0);
+            Arrays.fill(sumG, 0);
+            Arrays.fill(sumB, 0);
+
+            int count = 0;
+            for (int a = 0; a < ProgramArguments.ANTIALIASING_SAMPLES; a++) {
+                count = 0;
+                for (int tile = firstTile; tile < lastTile; tile++) {
+                    int x0 = (tile % tilesX) * TILE_SIZE;
+                    int y0 = (tile / tilesX) * TILE_SIZE;
+                    int x1 = Math.min(x0 + TILE_SIZE, screenResolution.width);
+                    int y1 = Math.min(y0 + TILE_SIZE, screenResolution.height);
+                    for (int j = y0; j < y1; j++) {
+                        for (int i = x0; i < x1; i++) {
+                            rays[count++] = createPrimaryRay(rand, ProgramArguments.ANTIALIASING_SAMPLES > 1, i, j,
+                                    xIncrement, yIncrement, xStart, yStart, eyePosition, screenPos, screenRotation);
+                        }
+                    }
+                }
 
-                    Ray3d ray = new Ray3d(eyePosition, eyeDirection);
-                    int color = tracer.getColorForRay(ray).asInt();
+                renderer.trace(rays, count, colors);
+
+                for (int k = 0; k < count; k++) {
+                    Color c = new Color(colors[k].asInt());
+                    sumR[k] += c.getRed();
+                    sumG[k] += c.getGreen();
+                    sumB[k] += c.getBlue();
+                }
+            }
 
-                    Color c = new Color(color);
-                    aveR = aveR + c.getRed();
-                    aveG = aveG + c.getGreen();
-                    aveB = aveB + c.getBlue();
-                    aveA = aveA + c.getAlpha();
+            int k = 0;
+            for (int tile = firstTile; tile < lastTile; tile++) {
+                int x0 = (tile % tilesX) * TILE_SIZE;
+                int y0 = (tile / tilesX) * TILE_SIZE;
+                int x1 = Math.min(x0 + TILE_SIZE, screenResolution.width);
+                int y1 = Math.min(y0 + TILE_SIZE, screenResolution.height);
+                for (int j = y0; j < y1; j++) {
+                    for (int i = x0; i < x1; i++, k++) {
+                        Color c1 = new Color(sumR[k] / ProgramArguments.ANTIALIASING_SAMPLES,
+                                sumG[k] / ProgramArguments.ANTIALIASING_SAMPLES,
+                                sumB[k] / ProgramArguments.ANTIALIASING_SAMPLES);
+                        int si = (screenResolution.width - 1) - i;
+                        image.setRGB(si, j, c1.getRGB());
+                    }
                 }
+            }
+            Arrays.fill(rays, null);
+        }
 
-                aveR = aveR / ProgramArguments.ANTIALIASING_SAMPLES;
-                aveG = aveG / ProgramArguments.ANTIALIASING_SAMPLES;
-                aveB = aveB / ProgramArguments.ANTIALIASING_SAMPLES;
-                aveA = aveA / ProgramArguments.ANTIALIASING_SAMPLES;
+        return renderer.getKdTreeQueryStats();
+    }
 
-                Color c1 = new Color(aveR, aveG, aveB, aveA);
-                //set screen coordiates. Need to mirror on y axis for output to buffered image
+    /**
+     * adds the colors of a tile traced by a progressive pass to the accumulation and writes the
+     * average of the passes to the image
+     */
+    private void accumulate(BufferedImage image, RgbColor[] colors, int x0, int y0, int x1, int y1, int pass) {
+        int k = 0;
+        for (int j = y0; j < y1; j++) {
+            for (int i = x0; i < x1; i++, k++) {
+                int p = (j * screenResolution.width + i) * 3;
+                accumulation[p] += colors[k].getRed();
+                accumulation[p + 1] += colors[k].getGreen();
+                accumulation[p + 2] += colors[k].getBlue();
+                RgbColor average = new RgbColor(accumulation[p] / pass, accumulation[p + 1] / pass,
+                        accumulation[p + 2] / pass);
                 int si = (screenResolution.width - 1) - i;
-                image.setRGB(si, j, c1.getRGB());
+                image.setRGB(si, j, average.asInt());
             }
         }
+    }
 
-        return tracer.getKdTreeQueryStats();
+    /**
+     * view ray through pixel i, j, through a random point of it when jittered and its center
+     * otherwise
+     */
+    private static Ray3d createPrimaryRay(Random rand, boolean jitter, int i, int j, double xIncrement,
+                                          double yIncrement, double xStart, double yStart, Vector3d eyePosition,
+                                          Vector3d screenPos, Matrix3d screenRotation) {
+        double xOffset;
+        double yOffset;
+
+        if (jitter) {
+            xOffset = rand.nextDouble() * xIncrement;
+            yOffset = rand.nextDouble() * yIncrement;
+        } else {
+            xOffset = .5 * xIncrement;
+            yOffset = .5 * yIncrement;
+        }
+
+        // calculate pointOnScreen, rotate according to theta and move to screen position
+        Vector3d pointOnScreen = new Vector3d(xStart + i * xIncrement + xOffset,
+                yStart + j * yIncrement + yOffset, 0);
+        pointOnScreen = pointOnScreen.multiplyByMatrix(screenRotation).add(screenPos);
+
+        // calculate view ray
+        Vector3d eyeDirection = pointOnScreen.subtract(eyePosition);
+        return new Ray3d(eyePosition, eyeDirection);
+    }
+
+    public ShadingConfig getShadingConfig() {
+        return shadingConfig;
+    }
+
+    public void setShadingConfig(ShadingConfig shadingConfig) {
+        this.shadingConfig = Preconditions.checkNotNull(shadingConfig);
+        resetAccumulation();
+    }
+
+    public boolean isWavefront() {
+        return wavefront;
+    }
+
+    /**
+     * trace with a WavefrontRenderer instead of one RayTracer per task
+     */
+    public void setWavefront(boolean wavefront) {
+        this.wavefront = wavefront;
+    }
+
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    /**
+     * Every capture adds one path traced sample per pixel to a running average instead of
+     * rendering a full image, so the first frames come fast and noisy and keep converging for
+     * as long as the camera stays put. Moving or rotating the camera starts over, call
+     * resetAccumulation when the scene changes. Takes precedence over wavefront.
+     */
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+        resetAccumulation();
+    }
+
+    /**
+     * progressive passes averaged in the last image
+     */
+    public int getPasses() {
+        return passes;
+    }
+
+    /**
+     * drops the progressive passes so far, the next capture starts a new average
+     */
+    public void resetAccumulation() {
+        accumulation = null;
+        passes = 0;
     }
 
     public Dimension getScreenResolution() {
@@ -200,5 +410,6 @@ public class Camera {
 
     public void setScreenPosition(Vector3d screenPosition) {
         this.screenPosition = screenPosition;
+        resetAccumulation();
     }
 }
@@ -0,0 +1,84 @@
+package com.bradforj287.raytracer.model;
+
+import java.util.List;
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.Shape3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.geometry.Surface;
+import com.bradforj287.raytracer.geometry.Vector3d;
+import com.bradforj287.raytracer.model.kdtree.KDTree;
+import com.bradforj287.raytracer.model.kdtree.KDTreeConfig;
+import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
+import com.google.common.base.Preconditions;
+
+/**
+ * Shapes in their own object space with a bottom level tree built once. A mesh is placed in a
+ * scene any number of times through MeshInstance, which all share this tree.
+ */
+public class Mesh {
+    // length of the first probe rays of normalAtSurfacePoint relative to the diagonal of the bounds
+    private static final double PROBE_DISTANCE = 1e-6;
+    private static final Vector3d[] AXES = {
+            new Vector3d(1, 0, 0), new Vector3d(0, 1, 0), new Vector3d(0, 0, 1)};
+
+    private final Surface surface;
+    private final KDTree tree;
+
+    public Mesh(final List<Shape3d> shapes) {
+        this(shapes, new KDTreeConfig());
+    }
+
+    public Mesh(final List<Shape3d> shapes, final KDTreeConfig config) {
+        Preconditions.checkNotNull(shapes);
+        Preconditions.checkArgument(!shapes.isEmpty());
+        this.surface = shapes.get(0).getSurface();
+        this.tree = new KDTree(shapes, config);
+    }
+
+    public ShapeHit closestHit(Ray3d ray, double maxT, KdTreeQueryStats queryStats) {
+        return tree.closestHit(ray, maxT, queryStats);
+    }
+
+    public boolean anyHit(Ray3d ray, double maxT, KdTreeQueryStats queryStats) {
+        return tree.anyHit(ray, maxT, queryStats);
+    }
+
+    public AxisAlignedBoundingBox3d getBounds() {
+        return tree.getBounds();
+    }
+
+    /**
+     * surface of the first shape, meshes are usually made of one material
+     */
+    public Surface getSurface() {
+        return surface;
+    }
+
+    /**
+     * normal of the mesh where the point lies on its surface. Short rays through the point along
+     * each axis are traced through the tree and the hit closest to the point gives the normal, the
+     * rays grow until one of them hits.
+     */
+    public Vector3d normalAtSurfacePoint(Vector3d point) {
+        AxisAlignedBoundingBox3d bounds = getBounds();
+        double diagonal = bounds.getMax().subtract(bounds.getMin()).getMagnitude();
+        KdTreeQueryStats queryStats = new KdTreeQueryStats();
+        for (double epsilon = PROBE_DISTANCE * diagonal; epsilon <= diagonal; epsilon *= 100) {
+            Vector3d normal = null;
+            double closestDistance = Double.POSITIVE_INFINITY;
+            for (Vector3d axis : AXES) {
+                Ray3d probe = new Ray3d(point.subtract(axis.multiply(epsilon)), axis);
+                ShapeHit hit = tree.closestHit(probe, 2 * epsilon, queryStats);
+                if (hit != null && Math.abs(hit.getT() - epsilon) < closestDistance) {
+                    closestDistance = Math.abs(hit.getT() - epsilon);
+                    normal = hit.getNormal(probe.getPointAtT(hit.getT()));
+                }
+            }
+            if (normal != null) {
+                return normal;
+            }
+        }
+        throw new IllegalArgumentException("point " + point + " is not on the surface of the mesh");
+    }
+}
@@ -0,0 +1,130 @@
+package com.bradforj287.raytracer.model;
+
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.Matrix3d;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.Shape3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.geometry.Surface;
+import com.bradforj287.raytracer.geometry.Vector3d;
+import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
+import com.google.common.base.Preconditions;
+
+/**
+ * A mesh placed in the scene with a transform. Instances go into the top level tree of the scene
+ * like any other shape. Rays are moved into object space with the inverse transform and traced
+ * through the shared bottom level tree of the mesh.
+ *
+ * The object space direction is not normalized so t is the same in both spaces. Hits report the
+ * shape of the mesh that was hit along with the normal transformed back to world space.
+ */
+public class MeshInstance extends Shape3d {
+    private final Mesh mesh;
+    private final Matrix3d transform;
+    private final Matrix3d inverse;
+    // transforms object space normals to world space
+    private final Matrix3d normalTransform;
+    private final AxisAlignedBoundingBox3d bounds;
+
+    public MeshInstance(Mesh mesh, Matrix3d transform) {
+        Preconditions.checkNotNull(mesh);
+        Preconditions.checkNotNull(transform);
+        this.mesh = mesh;
+        this.transform = transform;
+        this.inverse = transform.inverse();
+        this.normalTransform = inverse.transpose();
+        this.bounds = transformBounds(mesh.getBounds(), transform);
+    }
+
+    private static AxisAlignedBoundingBox3d transformBounds(AxisAlignedBoundingBox3d box, Matrix3d transform) {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, minZ = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+        for (int corner = 0; corner < 8; corner++) {
+            Vector3d p = new Vector3d(
+                    (corner & 1) == 0 ? box.getMin().x : box.getMax().x,
+                    (corner & 2) == 0 ? box.getMin().y : box.getMax().y,
+                    (corner & 4) == 0 ? box.getMin().z : box.getMax().z);
+            Vector3d t = Matrix3d.matrixMultiply(transform, p);
+            minX = Math.min(minX, t.x);
+            minY = Math.min(minY, t.y);
+            minZ = Math.min(minZ, t.z);
+            maxX = Math.max(maxX, t.x);
+            maxY = Math.max(maxY, t.y);
+            maxZ = Math.max(maxZ, t.z);
+        }
+        return new AxisAlignedBoundingBox3d(new Vector3d(minX, minY, minZ), new Vector3d(maxX, maxY, maxZ));
+    }
+
+    public Mesh getMesh() {
+        return mesh;
+    }
+
+    public Matrix3d getTransform() {
+        return transform;
+    }
+
+    private Ray3d toObjectSpace(Ray3d ray) {
+        return new Ray3d(Matrix3d.matrixMultiply(inverse, ray.getPoint()),
+                Matrix3d.transformDirection(inverse, ray.getDirection()));
+    }
+
+    /**
+     * closest hit before t1. The traversal of the mesh tree is counted into queryStats, as a ray
+     * cast of its own.
+     */
+    public ShapeHit closestHit(Ray3d ray, double t1, KdTreeQueryStats queryStats) {
+        Ray3d objectRay = toObjectSpace(ray);
+        ShapeHit hit = mesh.closestHit(objectRay, t1, queryStats);
+        if (hit == null) {
+            return null;
+        }
+        Vector3d objectNormal = hit.getNormal(objectRay.getPointAtT(hit.getT()));
+        return new ShapeHit(hit.getT(), hit.getHitShape(), toWorldNormal(objectNormal));
+    }
+
+    public boolean anyHit(Ray3d ray, double t1, KdTreeQueryStats queryStats) {
+        return mesh.anyHit(toObjectSpace(ray), t1, queryStats);
+    }
+
+    private Vector3d toWorldNormal(Vector3d objectNormal) {
+        return Matrix3d.transformDirection(normalTransform, objectNormal).toUnitVector();
+    }
+
+    @Override
+    public ShapeHit isHitByRay(Ray3d ray, double t1) {
+        return closestHit(ray, t1, new KdTreeQueryStats());
+    }
+
+    @Override
+    public boolean isOccludingRay(Ray3d ray, double t1) {
+        return anyHit(ray, t1, new KdTreeQueryStats());
+    }
+
+    /**
+     * the surface of the mesh, hits report the surface of the mesh shape that was hit
+     */
+    @Override
+    public Surface getSurface() {
+        return mesh.getSurface();
+    }
+
+    @Override
+    public AxisAlignedBoundingBox3d getBoundingBox() {
+        return bounds;
+    }
+
+    /**
+     * the normal of the mesh at the point moved into object space, transformed back to world
+     * space
+     */
+    @Override
+    public Vector3d normalAtSurfacePoint(Vector3d intersectPoint) {
+        Vector3d objectPoint = Matrix3d.matrixMultiply(inverse, intersectPoint);
+        return toWorldNormal(mesh.normalAtSurfacePoint(objectPoint));
+    }
+
+    @Override
+    public Vector3d getCentroid() {
+        return bounds.getMin().add(bounds.getMax()).multiply(0.5);
+    }
+}
@@ -0,0 +1,152 @@
+package com.bradforj287.raytracer.model;
+
+import java.util.Arrays;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.geometry.Vector3d;
+import com.google.common.base.Preconditions;
+
+/**
+ * A bundle of up to 64 coherent rays stored as structure of arrays, traced through the scene
+ * together. Active rays are tracked with a bit mask so the packet size is capped at 64.
+ *
+ * Not thread safe. Meant to be reused by a single thread.
+ */
+public class RayPacket {
+    public static final int MAX_SIZE = 64;
+
+    private final Ray3d[] rays = new Ray3d[MAX_SIZE];
+    private final ShapeHit[] hits = new ShapeHit[MAX_SIZE];
+
+    // origin, inverse direction and current max t of every ray
+    public final double[] ox = new double[MAX_SIZE];
+    public final double[] oy = new double[MAX_SIZE];
+    public final double[] oz = new double[MAX_SIZE];
+    public final double[] ix = new double[MAX_SIZE];
+    public final double[] iy = new double[MAX_SIZE];
+    public final double[] iz = new double[MAX_SIZE];
+    public final double[] tMax = new double[MAX_SIZE];
+
+    // bounds over all rays of origin, inverse direction and max t for conservative whole packet tests
+    final double[] originMin = new double[3];
+    final double[] originMax = new double[3];
+    final double[] inverseMin = new double[3];
+    final double[] inverseMax = new double[3];
+    double tMaxBound;
+
+    private int size;
+
+    public RayPacket() {
+        clear();
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            rays[i] = null;
+            hits[i] = null;
+        }
+        size = 0;
+        Arrays.fill(originMin, Double.POSITIVE_INFINITY);
+        Arrays.fill(inverseMin, Double.POSITIVE_INFINITY);
+        Arrays.fill(originMax, Double.NEGATIVE_INFINITY);
+        Arrays.fill(inverseMax, Double.NEGATIVE_INFINITY);
+        tMaxBound = 0;
+    }
+
+    /**
+     * adds a ray to the packet and returns its index
+     */
+    public int add(Ray3d ray, double maxT) {
+        Preconditions.checkState(size < MAX_SIZE);
+        Vector3d point = ray.getPoint();
+        Vector3d dir = ray.getDirection();
+        int i = size++;
+        rays[i] = ray;
+        hits[i] = null;
+        ox[i] = point.x;
+        oy[i] = point.y;
+        oz[i] = point.z;
+        ix[i] = 1 / dir.x;
+        iy[i] = 1 / dir.y;
+        iz[i] = 1 / dir.z;
+        tMax[i] = maxT;
+
+        growInterval(0, ox[i], ix[i]);
+        growInterval(1, oy[i], iy[i]);
+        growInterval(2, oz[i], iz[i]);
+        tMaxBound = Math.max(tMaxBound, maxT);
+        return i;
+    }
+
+    private void growInterval(int axis, double origin, double inverse) {
+        originMin[axis] = Math.min(originMin[axis], origin);
+        originMax[axis] = Math.max(originMax[axis], origin);
+        inverseMin[axis] = Math.min(inverseMin[axis], inverse);
+        inverseMax[axis] = Math.max(inverseMax[axis], inverse);
+    }
+
+    /**
+     * true when every ray points the same way along each axis, which is what makes the interval
+     * bounds of the packet usable for conservative culling
+     */
+    public boolean isCoherent() {
+        for (int axis = 0; axis < 3; axis++) {
+            if (Double.isInfinite(inverseMin[axis]) || Double.isInfinite(inverseMax[axis])
+                    || Math.signum(inverseMin[axis]) != Math.signum(inverseMax[axis])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * conservative slab test of the whole packet against a box using interval arithmetic.
+     * Returns false only if no ray of the packet can enter the box before tMaxBound.
+     */
+    public boolean mayIntersect(double[] bounds, int b) {
+        double tNear = 0;
+        double tFar = tMaxBound;
+        for (int axis = 0; axis < 3; axis++) {
+            double inverseLow = inverseMin[axis];
+            double inverseHigh = inverseMax[axis];
+            double nearPlane = inverseLow > 0 ? bounds[b + axis] : bounds[b + 3 + axis];
+            double farPlane = inverseLow > 0 ? bounds[b + 3 + axis] : bounds[b + axis];
+
+            tNear = Math.max(tNear, minProduct(nearPlane - originMax[axis], nearPlane - originMin[axis], inverseLow, inverseHigh));
+            tFar = Math.min(tFar, maxProduct(farPlane - originMax[axis], farPlane - originMin[axis], inverseLow, inverseHigh));
+        }
+        return tNear <= tFar;
+    }
+
+    private static double minProduct(double aLow, double aHigh, double bLow, double bHigh) {
+        return Math.min(Math.min(aLow * bLow, aLow * bHigh), Math.min(aHigh * bLow, aHigh * bHigh));
+    }
+
+    private static double maxProduct(double aLow, double aHigh, double bLow, double bHigh) {
+        return Math.max(Math.max(aLow * bLow, aLow * bHigh), Math.max(aHigh * bLow, aHigh * bHigh));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getFullMask() {
+        return size == MAX_SIZE ? -1L : (1L << size) - 1;
+    }
+
+    public Ray3d getRay(int i) {
+        return rays[i];
+    }
+
+    public ShapeHit getHit(int i) {
+        return hits[i];
+    }
+
+    /**
+     * records a hit for ray i and shortens the ray to it
+     */
+    public void setHit(int i, ShapeHit hit) {
+        hits[i] = hit;
+        tMax[i] = hit.getT();
+    }
+}
@@ -1,30 +1,140 @@
 package com.bradforj287.raytracer.model;
 
+import java.util.Collections;
 import java.util.List;
+import com.bradforj287.raytracer.ProgramArguments;
 import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.GeometryPrecision;
+import com.bradforj287.raytracer.geometry.HitRecord;
+import com.bradforj287.raytracer.geometry.PointLight;
 import com.bradforj287.raytracer.geometry.Ray3d;
 import com.bradforj287.raytracer.geometry.Shape3d;
+import com.bradforj287.raytracer.geometry.RgbColor;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.geometry.TriangleMesh;
 import com.bradforj287.raytracer.model.kdtree.KDTree;
+import com.bradforj287.raytracer.model.kdtree.KDTreeConfig;
 import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
+import com.bradforj287.raytracer.model.light.LightTree;
 import com.google.common.base.Preconditions;
 
 public class SceneModel {
 
-    private KDTree shapesTree;
+    private final Accelerator accelerator;
+    private GeometryPrecision geometryPrecision;
+    private volatile LightTree lights = new LightTree(Collections.singletonList(new PointLight(
+            ProgramArguments.LIGHT_LOCATION, ProgramArguments.LIGHT_INTENSITY, new RgbColor(255, 255, 255))));
 
     public SceneModel(final List<Shape3d> shapes) {
+        this(shapes, new KDTreeConfig());
+    }
+
+    public SceneModel(final List<Shape3d> shapes, final KDTreeConfig config) {
+        this(new KDTree(checkShapes(shapes), config), precisionOf(shapes));
+    }
+
+    public SceneModel(final List<Shape3d> shapes, final AcceleratorType acceleratorType) {
+        this(acceleratorType.build(checkShapes(shapes)), precisionOf(shapes));
+    }
+
+    /**
+     * the accelerator doesn't tell which shapes it holds, so the geometry precision is DOUBLE.
+     * Accelerators holding FLOAT meshes need the constructor taking the precision.
+     */
+    public SceneModel(final Accelerator accelerator) {
+        this(accelerator, GeometryPrecision.DOUBLE);
+    }
+
+    public SceneModel(final Accelerator accelerator, final GeometryPrecision geometryPrecision) {
+        Preconditions.checkNotNull(accelerator);
+        Preconditions.checkNotNull(geometryPrecision);
+        this.accelerator = accelerator;
+        this.geometryPrecision = geometryPrecision;
+    }
+
+    private static List<Shape3d> checkShapes(final List<Shape3d> shapes) {
         Preconditions.checkNotNull(shapes);
         Preconditions.checkArgument(!shapes.isEmpty());
+        return shapes;
+    }
+
+    /**
+     * FLOAT if any of the shapes is a FLOAT mesh
+     */
+    private static GeometryPrecision precisionOf(final List<Shape3d> shapes) {
+        for (Shape3d shape : shapes) {
+            if (shape instanceof TriangleMesh && ((TriangleMesh) shape).getPrecision() == GeometryPrecision.FLOAT) {
+                return GeometryPrecision.FLOAT;
+            }
+        }
+        return GeometryPrecision.DOUBLE;
+    }
+
+    public Accelerator getAccelerator() {
+        return accelerator;
+    }
 
-        shapesTree = new KDTree(shapes);
+    /**
+     * precision of the least precise geometry in the scene, which decides how far tracers offset
+     * secondary rays from surfaces. Scenes built from a list of shapes take it from their meshes.
+     */
+    public GeometryPrecision getGeometryPrecision() {
+        return geometryPrecision;
+    }
+
+    /**
+     * overrides the precision taken from the shapes, PrecisionComparison uses it to show what
+     * offsets that are too small do to a FLOAT mesh
+     */
+    public void setGeometryPrecision(GeometryPrecision geometryPrecision) {
+        this.geometryPrecision = Preconditions.checkNotNull(geometryPrecision);
+    }
+
+    /**
+     * the lights of the scene, by default the single white light of ProgramArguments
+     */
+    public LightTree getLights() {
+        return lights;
+    }
+
+    public void setLights(List<PointLight> lights) {
+        this.lights = new LightTree(lights);
+    }
+
+    /**
+     * applies the shape changes of an animation step. How much work that takes depends on the
+     * accelerator, the KD tree only refits or rebuilds the parts touched by the changed shapes.
+     */
+    public void update(SceneUpdate update) {
+        Preconditions.checkNotNull(update);
+        accelerator.update(update);
     }
 
     public KdTreeQueryStats visitPossibleIntersections(Ray3d ray, ShapeVisitor visitor) {
-        return shapesTree.visitPossibleIntersections(ray, visitor);
+        return accelerator.visitPossibleIntersections(ray, visitor);
+    }
+
+    public ShapeHit closestHit(Ray3d ray, double maxT, KdTreeQueryStats queryStats) {
+        return accelerator.closestHit(ray, maxT, queryStats);
+    }
+
+    public void closestHit(RayPacket packet, KdTreeQueryStats queryStats) {
+        accelerator.closestHit(packet, queryStats);
+    }
+
+    public boolean anyHit(Ray3d ray, double maxT, KdTreeQueryStats queryStats) {
+        return accelerator.anyHit(ray, maxT, queryStats);
+    }
+
+    /**
+     * see Accelerator.anyHit
+     */
+    public boolean anyHit(Ray3d ray, double maxT, KdTreeQueryStats queryStats, HitRecord occluder) {
+        return accelerator.anyHit(ray, maxT, queryStats, occluder);
     }
 
     public AxisAlignedBoundingBox3d getBounds() {
-        return shapesTree.getBounds();
+        return accelerator.getBounds();
     }
 
 }
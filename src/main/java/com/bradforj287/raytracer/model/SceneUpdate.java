@@ -0,0 +1,70 @@
+package com.bradforj287.raytracer.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.bradforj287.raytracer.geometry.Shape3d;
+import com.google.common.base.Preconditions;
+
+/**
+ * Shape changes of one animation step, applied with SceneModel.update. Shapes are matched by
+ * identity. Shapes are immutable so moving one means replacing it with a new shape.
+ */
+public class SceneUpdate {
+    private final Map<Shape3d, Shape3d> moved = new IdentityHashMap<>();
+    private final List<Shape3d> added = new ArrayList<>();
+    private final List<Shape3d> removed = new ArrayList<>();
+
+    /**
+     * replaces a shape in the scene with its moved version
+     */
+    public void move(Shape3d from, Shape3d to) {
+        Preconditions.checkNotNull(from);
+        Preconditions.checkNotNull(to);
+        moved.put(from, to);
+    }
+
+    public void add(Shape3d shape) {
+        Preconditions.checkNotNull(shape);
+        added.add(shape);
+    }
+
+    public void remove(Shape3d shape) {
+        Preconditions.checkNotNull(shape);
+        removed.add(shape);
+    }
+
+    public Map<Shape3d, Shape3d> getMoved() {
+        return moved;
+    }
+
+    public Collection<Shape3d> getAdded() {
+        return added;
+    }
+
+    public Collection<Shape3d> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * the shapes after this update, for accelerators that simply rebuild
+     */
+    public List<Shape3d> applyTo(List<Shape3d> shapes) {
+        Set<Shape3d> removedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        removedSet.addAll(removed);
+        List<Shape3d> result = new ArrayList<>(shapes.size() + added.size());
+        for (Shape3d shape : shapes) {
+            if (removedSet.contains(shape)) {
+                continue;
+            }
+            Shape3d replacement = moved.get(shape);
+            result.add(replacement != null ? replacement : shape);
+        }
+        result.addAll(added);
+        return result;
+    }
+}
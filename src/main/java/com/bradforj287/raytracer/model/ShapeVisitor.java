@@ -4,4 +4,12 @@ import com.bradforj287.raytracer.geometry.Shape3d;
 
 public interface ShapeVisitor {
     void visit(Shape3d shape);
+
+    /**
+     * visits one primitive of a shape. Shapes of several primitives, like a TriangleMesh, are
+     * visited once per primitive, visitors that test them should override this.
+     */
+    default void visit(Shape3d shape, int primitive) {
+        visit(shape);
+    }
 }
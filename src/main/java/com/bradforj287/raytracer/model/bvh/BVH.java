@@ -0,0 +1,305 @@
+package com.bradforj287.raytracer.model.bvh;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.HitRecord;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.Shape3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.geometry.Vector3d;
+import com.bradforj287.raytracer.model.Accelerator;
+import com.bradforj287.raytracer.model.RayPacket;
+import com.bradforj287.raytracer.model.SceneUpdate;
+import com.bradforj287.raytracer.model.ShapeVisitor;
+import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
+import com.bradforj287.raytracer.model.kdtree.PrimitiveBoundsTable;
+import com.bradforj287.raytracer.model.kdtree.PrimitiveList;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Classic bounding volume hierarchy. Nodes are split at the median centroid along the axis the
+ * centroids spread the most, which builds fast and balanced but without the SAH tuning of the
+ * KDTree. Nodes are flattened depth first like FlatKDTree, interior nodes also keep their split
+ * axis so traversal can visit the near child first from the sign of the ray direction alone.
+ *
+ * Updates rebuild the whole hierarchy.
+ */
+public class BVH implements Accelerator {
+    private static final int STRIDE = 6;
+    private static final int MAX_LEAF_SIZE = 4;
+
+    private volatile Nodes nodes;
+    private List<Shape3d> shapes;
+
+    public BVH(List<Shape3d> shapes) {
+        Preconditions.checkNotNull(shapes);
+        Preconditions.checkArgument(!shapes.isEmpty());
+        this.shapes = shapes;
+        this.nodes = build(shapes);
+    }
+
+    /**
+     * flattened hierarchy. Interior nodes store {second child, -(split axis + 1)}, leaves
+     * {first primitive, primitive count}. The first child always follows its parent.
+     */
+    private static class Nodes {
+        double[] bounds = new double[64 * STRIDE];
+        int[] data = new int[64 * 2];
+        int count;
+        int maxDepth;
+        PrimitiveList primitives;
+
+        int add(double[] box, int depth) {
+            if (count * 2 == data.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            System.arraycopy(box, 0, bounds, count * STRIDE, STRIDE);
+            maxDepth = Math.max(maxDepth, depth);
+            return count++;
+        }
+    }
+
+    private static Nodes build(List<Shape3d> shapes) {
+        System.out.println("building bvh of " + shapes.size() + " shapes");
+        Stopwatch sw = Stopwatch.createStarted();
+        PrimitiveList all = new PrimitiveList(shapes);
+        PrimitiveBoundsTable table = new PrimitiveBoundsTable(all);
+        int[] order = new int[all.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Nodes nodes = new Nodes();
+        buildNode(table, order, 0, order.length, 0, nodes);
+        nodes.bounds = Arrays.copyOf(nodes.bounds, nodes.count * STRIDE);
+        nodes.data = Arrays.copyOf(nodes.data, nodes.count * 2);
+        nodes.primitives = all.reorder(order);
+        System.out.println("created bvh of " + nodes.count + " nodes in " + sw.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        return nodes;
+    }
+
+    private static int buildNode(PrimitiveBoundsTable table, int[] order, int start, int end, int depth, Nodes nodes) {
+        double[] box = new double[STRIDE];
+        table.getBounds(order, start, end, box);
+        int node = nodes.add(box, depth);
+
+        int axis = widestCentroidAxis(table, order, start, end);
+        if (end - start <= MAX_LEAF_SIZE || axis < 0) {
+            nodes.data[node * 2] = start;
+            nodes.data[node * 2 + 1] = end - start;
+            return node;
+        }
+
+        int mid = (start + end) >>> 1;
+        select(table, order, start, end - 1, mid, axis);
+        buildNode(table, order, start, mid, depth + 1, nodes);
+        int second = buildNode(table, order, mid, end, depth + 1, nodes);
+        nodes.data[node * 2] = second;
+        nodes.data[node * 2 + 1] = -(axis + 1);
+        return node;
+    }
+
+    /**
+     * axis along which the centroids spread the most, or -1 if they all coincide
+     */
+    private static int widestCentroidAxis(PrimitiveBoundsTable table, int[] order, int start, int end) {
+        int best = -1;
+        double bestExtent = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i++) {
+                double c = table.getCentroid(order[i], axis);
+                min = Math.min(min, c);
+                max = Math.max(max, c);
+            }
+            if (max - min > bestExtent) {
+                bestExtent = max - min;
+                best = axis;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * quickselect, partially orders order[low, high] so order[k] holds the primitive with the k-th
+     * smallest centroid on axis, smaller ones before it and larger ones after it
+     */
+    private static void select(PrimitiveBoundsTable table, int[] order, int low, int high, int k, int axis) {
+        while (high > low) {
+            double pivot = table.getCentroid(order[(low + high) >>> 1], axis);
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (table.getCentroid(order[i], axis) < pivot) {
+                    i++;
+                }
+                while (table.getCentroid(order[j], axis) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = order[i];
+                    order[i++] = order[j];
+                    order[j--] = tmp;
+                }
+            }
+            if (k <= j) {
+                high = j;
+            } else if (k >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static boolean hitsBox(double[] bounds, int b, double ox, double oy, double oz,
+                                   double ix, double iy, double iz, double maxT) {
+        double t1 = (bounds[b] - ox) * ix;
+        double t2 = (bounds[b + 3] - ox) * ix;
+        double tmin = Math.min(t1, t2);
+        double tmax = Math.max(t1, t2);
+
+        t1 = (bounds[b + 1] - oy) * iy;
+        t2 = (bounds[b + 4] - oy) * iy;
+        tmin = Math.max(tmin, Math.min(t1, t2));
+        tmax = Math.min(tmax, Math.max(t1, t2));
+
+        t1 = (bounds[b + 2] - oz) * iz;
+        t2 = (bounds[b + 5] - oz) * iz;
+        tmin = Math.max(tmin, Math.min(t1, t2));
+        tmax = Math.min(tmax, Math.max(t1, t2));
+
+        // NaN from a ray in the plane of a flat box counts as a miss
+        return tmax >= tmin && tmax > 0 && tmin <= maxT;
+    }
+
+    @Override
+    public ShapeHit closestHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        return traverse(nodes, ray, maxT, false, null, queryStats, new HitRecord(maxT));
+    }
+
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        return traverse(nodes, ray, maxT, true, null, queryStats, new HitRecord(maxT)) != null;
+    }
+
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats, final HitRecord occluder) {
+        HitRecord record = new HitRecord(maxT);
+        if (traverse(nodes, ray, maxT, true, null, queryStats, record) == null) {
+            return false;
+        }
+        if (occluder != null) {
+            occluder.set(maxT, record.getShape(), record.getPrimitive());
+        }
+        return true;
+    }
+
+    @Override
+    public KdTreeQueryStats visitPossibleIntersections(final Ray3d ray, final ShapeVisitor visitor) {
+        KdTreeQueryStats queryStats = new KdTreeQueryStats();
+        traverse(nodes, ray, Double.POSITIVE_INFINITY, false, visitor, queryStats, new HitRecord(Double.POSITIVE_INFINITY));
+        return queryStats;
+    }
+
+    /**
+     * depth first traversal, near child first by the direction sign on the split axis. Finds the
+     * closest hit, stops at the first hit when anyHit is set, or only hands the shapes of every
+     * leaf the ray enters to the visitor when one is given. The hit is kept in record.
+     */
+    private static ShapeHit traverse(final Nodes tree, final Ray3d ray, final double maxT, final boolean anyHit,
+                                     final ShapeVisitor visitor, final KdTreeQueryStats queryStats,
+                                     final HitRecord record) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+        final boolean[] dirIsNegative = {ix < 0, iy < 0, iz < 0};
+
+        final double[] bounds = tree.bounds;
+        final int[] data = tree.data;
+        final PrimitiveList primitives = tree.primitives;
+        final int[] stack = new int[tree.maxDepth + 1];
+        int stackSize = 0;
+        int node = 0;
+        long nodesVisited = 0;
+        long shapesVisited = 0;
+
+        double bestT = maxT;
+
+        while (true) {
+            nodesVisited++;
+            if (hitsBox(bounds, node * STRIDE, ox, oy, oz, ix, iy, iz, bestT)) {
+                int count = data[node * 2 + 1];
+                if (count < 0) {
+                    int axis = -count - 1;
+                    if (dirIsNegative[axis]) {
+                        stack[stackSize++] = node + 1;
+                        node = data[node * 2];
+                    } else {
+                        stack[stackSize++] = data[node * 2];
+                        node = node + 1;
+                    }
+                    continue;
+                }
+                shapesVisited += count;
+                for (int i = data[node * 2], end = i + count; i < end; i++) {
+                    if (visitor != null) {
+                        primitives.visit(i, visitor);
+                        continue;
+                    }
+                    if (primitives.intersect(i, ray, record, queryStats)) {
+                        bestT = record.getT();
+                        if (anyHit) {
+                            queryStats.add(nodesVisited, shapesVisited, 1);
+                            return record.toShapeHit();
+                        }
+                    }
+                }
+            }
+            if (stackSize == 0) {
+                queryStats.add(nodesVisited, shapesVisited, 1);
+                return record.toShapeHit();
+            }
+            node = stack[--stackSize];
+        }
+    }
+
+    /**
+     * packets are traced one ray at a time
+     */
+    @Override
+    public void closestHit(final RayPacket packet, final KdTreeQueryStats queryStats) {
+        final Nodes tree = nodes;
+        for (int i = 0; i < packet.size(); i++) {
+            ShapeHit hit = traverse(tree, packet.getRay(i), packet.tMax[i], false, null, queryStats, new HitRecord(packet.tMax[i]));
+            if (hit != null) {
+                packet.setHit(i, hit);
+            }
+        }
+    }
+
+    @Override
+    public AxisAlignedBoundingBox3d getBounds() {
+        double[] b = nodes.bounds;
+        return new AxisAlignedBoundingBox3d(new Vector3d(b[0], b[1], b[2]), new Vector3d(b[3], b[4], b[5]));
+    }
+
+    @Override
+    public synchronized void update(SceneUpdate update) {
+        List<Shape3d> updated = update.applyTo(shapes);
+        Preconditions.checkArgument(!updated.isEmpty(), "update would leave the bvh empty");
+        nodes = build(updated);
+        shapes = updated;
+    }
+
+    @Override
+    public long estimateMemoryBytes() {
+        Nodes tree = nodes;
+        return 8L * tree.bounds.length + 4L * tree.data.length + tree.primitives.getMemoryBytes();
+    }
+}
@@ -0,0 +1,333 @@
+package com.bradforj287.raytracer.model.grid;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.HitRecord;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.Shape3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.geometry.Vector3d;
+import com.bradforj287.raytracer.model.Accelerator;
+import com.bradforj287.raytracer.model.RayPacket;
+import com.bradforj287.raytracer.model.SceneUpdate;
+import com.bradforj287.raytracer.model.ShapeVisitor;
+import com.bradforj287.raytracer.model.kdtree.KdTreeQueryStats;
+import com.bradforj287.raytracer.model.kdtree.PrimitiveBoundsTable;
+import com.bradforj287.raytracer.model.kdtree.PrimitiveList;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Uniform grid over the scene bounds. Every cell lists the shapes whose bounding box overlaps it,
+ * stored compactly as one index array with per cell offsets. Rays walk the cells they pass
+ * through in order with a 3D-DDA, so the closest hit search stops at the first cell that holds a
+ * hit before its far side.
+ *
+ * A shape spanning several cells would be tested once per cell, so each thread keeps a mailbox
+ * recording the last ray every shape was tested against.
+ *
+ * Works best for evenly spread shapes of similar size. Updates rebuild the whole grid.
+ */
+public class UniformGrid implements Accelerator {
+    // target number of cells per shape
+    private static final double CELLS_PER_SHAPE = 2;
+    private static final int MAX_RESOLUTION = 256;
+
+    private volatile Cells cells;
+    private List<Shape3d> shapes;
+
+    public UniformGrid(List<Shape3d> shapes) {
+        Preconditions.checkNotNull(shapes);
+        Preconditions.checkArgument(!shapes.isEmpty());
+        this.shapes = shapes;
+        this.cells = build(shapes);
+    }
+
+    private static class Cells {
+        final double[] min = new double[3];
+        final double[] max = new double[3];
+        final int[] resolution = new int[3];
+        final double[] cellSize = new double[3];
+        // primitives of cell c are shapeIndices[cellStart[c], cellStart[c + 1])
+        int[] cellStart;
+        int[] shapeIndices;
+        PrimitiveList primitives;
+
+        // per thread {stamps per primitive..., current ray}
+        final ThreadLocal<int[]> mailbox = new ThreadLocal<>();
+
+        int cellIndex(int x, int y, int z) {
+            return (z * resolution[1] + y) * resolution[0] + x;
+        }
+
+        int cellCoordinate(int axis, double p) {
+            int c = (int) ((p - min[axis]) / cellSize[axis]);
+            return Math.max(0, Math.min(resolution[axis] - 1, c));
+        }
+
+        /**
+         * starts a new ray in this thread's mailbox and returns it
+         */
+        int[] openMailbox() {
+            int[] box = mailbox.get();
+            if (box == null) {
+                box = new int[primitives.size() + 1];
+                mailbox.set(box);
+            }
+            int ray = ++box[primitives.size()];
+            if (ray == Integer.MAX_VALUE) {
+                Arrays.fill(box, 0);
+                box[primitives.size()] = 1;
+            }
+            return box;
+        }
+    }
+
+    private static Cells build(List<Shape3d> shapes) {
+        System.out.println("building grid of " + shapes.size() + " shapes");
+        Stopwatch sw = Stopwatch.createStarted();
+        PrimitiveList primitives = new PrimitiveList(shapes);
+        PrimitiveBoundsTable table = new PrimitiveBoundsTable(primitives);
+        int[] all = new int[primitives.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        double[] sceneBox = new double[6];
+        table.getBounds(all, 0, all.length, sceneBox);
+
+        Cells grid = new Cells();
+        grid.primitives = primitives;
+        double volume = 1;
+        double[] extent = new double[3];
+        for (int axis = 0; axis < 3; axis++) {
+            // pad so shapes on the boundary fall strictly inside
+            double pad = Math.max(1e-9, (sceneBox[axis + 3] - sceneBox[axis]) * 1e-6);
+            grid.min[axis] = sceneBox[axis] - pad;
+            grid.max[axis] = sceneBox[axis + 3] + pad;
+            extent[axis] = grid.max[axis] - grid.min[axis];
+            volume *= extent[axis];
+        }
+        double cellsPerUnit = Math.cbrt(CELLS_PER_SHAPE * primitives.size() / volume);
+        for (int axis = 0; axis < 3; axis++) {
+            int res = (int) Math.round(extent[axis] * cellsPerUnit);
+            grid.resolution[axis] = Math.max(1, Math.min(MAX_RESOLUTION, res));
+            grid.cellSize[axis] = extent[axis] / grid.resolution[axis];
+        }
+
+        // count shapes per cell, turn counts into offsets, then fill
+        int cellCount = grid.resolution[0] * grid.resolution[1] * grid.resolution[2];
+        int[] cellStart = new int[cellCount + 1];
+        int[] range = new int[6];
+        for (int i = 0; i < all.length; i++) {
+            cellRange(grid, table, i, range);
+            forEachCell(grid, range, c -> cellStart[c + 1]++);
+        }
+        for (int c = 0; c < cellCount; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] fill = new int[cellCount];
+        int[] shapeIndices = new int[cellStart[cellCount]];
+        for (int i = 0; i < all.length; i++) {
+            final int shape = i;
+            cellRange(grid, table, i, range);
+            forEachCell(grid, range, c -> shapeIndices[cellStart[c] + fill[c]++] = shape);
+        }
+        grid.cellStart = cellStart;
+        grid.shapeIndices = shapeIndices;
+
+        System.out.println("created " + grid.resolution[0] + "x" + grid.resolution[1] + "x" + grid.resolution[2]
+                + " grid with " + shapeIndices.length + " references in " + sw.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        return grid;
+    }
+
+    private interface CellConsumer {
+        void accept(int cell);
+    }
+
+    private static void cellRange(Cells grid, PrimitiveBoundsTable table, int shape, int[] range) {
+        double[] box = new double[6];
+        table.getBounds(shape, box);
+        for (int axis = 0; axis < 3; axis++) {
+            range[axis] = grid.cellCoordinate(axis, box[axis]);
+            range[axis + 3] = grid.cellCoordinate(axis, box[axis + 3]);
+        }
+    }
+
+    private static void forEachCell(Cells grid, int[] range, CellConsumer consumer) {
+        for (int z = range[2]; z <= range[5]; z++) {
+            for (int y = range[1]; y <= range[4]; y++) {
+                for (int x = range[0]; x <= range[3]; x++) {
+                    consumer.accept(grid.cellIndex(x, y, z));
+                }
+            }
+        }
+    }
+
+    /**
+     * walks the cells along the ray with a 3D-DDA. Finds the closest hit, stops at the first hit
+     * when anyHit is set, or hands every shape of the visited cells to the visitor once when one is
+     * given. The hit is kept in record.
+     */
+    private static ShapeHit traverse(final Cells grid, final Ray3d ray, final double maxT, final boolean anyHit,
+                                     final ShapeVisitor visitor, final KdTreeQueryStats queryStats,
+                                     final HitRecord record) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double[] o = {orig.x, orig.y, orig.z};
+        final double[] d = {dir.x, dir.y, dir.z};
+
+        // clip the ray to the grid box
+        double tEnter = 0;
+        double tExit = maxT;
+        for (int axis = 0; axis < 3; axis++) {
+            double inverse = 1 / d[axis];
+            double t1 = (grid.min[axis] - o[axis]) * inverse;
+            double t2 = (grid.max[axis] - o[axis]) * inverse;
+            tEnter = Math.max(tEnter, Math.min(t1, t2));
+            tExit = Math.min(tExit, Math.max(t1, t2));
+        }
+        if (!(tExit >= tEnter)) {
+            queryStats.add(0, 0, 1);
+            return null;
+        }
+
+        int[] cell = new int[3];
+        int[] step = new int[3];
+        int[] end = new int[3];
+        double[] tNext = new double[3];
+        double[] tDelta = new double[3];
+        for (int axis = 0; axis < 3; axis++) {
+            double p = o[axis] + d[axis] * tEnter;
+            cell[axis] = grid.cellCoordinate(axis, p);
+            if (d[axis] > 0) {
+                step[axis] = 1;
+                end[axis] = grid.resolution[axis];
+                tNext[axis] = tEnter + (grid.min[axis] + (cell[axis] + 1) * grid.cellSize[axis] - p) / d[axis];
+                tDelta[axis] = grid.cellSize[axis] / d[axis];
+            } else if (d[axis] < 0) {
+                step[axis] = -1;
+                end[axis] = -1;
+                tNext[axis] = tEnter + (grid.min[axis] + cell[axis] * grid.cellSize[axis] - p) / d[axis];
+                tDelta[axis] = -grid.cellSize[axis] / d[axis];
+            } else {
+                step[axis] = 0;
+                end[axis] = -1;
+                tNext[axis] = Double.POSITIVE_INFINITY;
+                tDelta[axis] = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        final int[] mailbox = grid.openMailbox();
+        final int rayStamp = mailbox[grid.primitives.size()];
+        long cellsVisited = 0;
+        long shapesVisited = 0;
+        double bestT = maxT;
+
+        while (true) {
+            cellsVisited++;
+            int c = grid.cellIndex(cell[0], cell[1], cell[2]);
+            for (int i = grid.cellStart[c], last = grid.cellStart[c + 1]; i < last; i++) {
+                int shape = grid.shapeIndices[i];
+                if (mailbox[shape] == rayStamp) {
+                    continue;
+                }
+                mailbox[shape] = rayStamp;
+                shapesVisited++;
+                if (visitor != null) {
+                    grid.primitives.visit(shape, visitor);
+                    continue;
+                }
+                if (grid.primitives.intersect(shape, ray, record, queryStats)) {
+                    bestT = record.getT();
+                    if (anyHit) {
+                        queryStats.add(cellsVisited, shapesVisited, 1);
+                        return record.toShapeHit();
+                    }
+                }
+            }
+
+            int axis = tNext[0] < tNext[1] ? (tNext[0] < tNext[2] ? 0 : 2) : (tNext[1] < tNext[2] ? 1 : 2);
+            // a hit no farther than the far side of this cell can't be beaten by a later cell
+            if (bestT <= tNext[axis] || tNext[axis] > tExit) {
+                queryStats.add(cellsVisited, shapesVisited, 1);
+                return record.toShapeHit();
+            }
+            cell[axis] += step[axis];
+            if (cell[axis] == end[axis]) {
+                queryStats.add(cellsVisited, shapesVisited, 1);
+                return record.toShapeHit();
+            }
+            tNext[axis] += tDelta[axis];
+        }
+    }
+
+    @Override
+    public ShapeHit closestHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        return traverse(cells, ray, maxT, false, null, queryStats, new HitRecord(maxT));
+    }
+
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        return traverse(cells, ray, maxT, true, null, queryStats, new HitRecord(maxT)) != null;
+    }
+
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats, final HitRecord occluder) {
+        HitRecord record = new HitRecord(maxT);
+        if (traverse(cells, ray, maxT, true, null, queryStats, record) == null) {
+            return false;
+        }
+        if (occluder != null) {
+            occluder.set(maxT, record.getShape(), record.getPrimitive());
+        }
+        return true;
+    }
+
+    @Override
+    public KdTreeQueryStats visitPossibleIntersections(final Ray3d ray, final ShapeVisitor visitor) {
+        KdTreeQueryStats queryStats = new KdTreeQueryStats();
+        traverse(cells, ray, Double.POSITIVE_INFINITY, false, visitor, queryStats, new HitRecord(Double.POSITIVE_INFINITY));
+        return queryStats;
+    }
+
+    /**
+     * packets are traced one ray at a time
+     */
+    @Override
+    public void closestHit(final RayPacket packet, final KdTreeQueryStats queryStats) {
+        final Cells grid = cells;
+        for (int i = 0; i < packet.size(); i++) {
+            ShapeHit hit = traverse(grid, packet.getRay(i), packet.tMax[i], false, null, queryStats, new HitRecord(packet.tMax[i]));
+            if (hit != null) {
+                packet.setHit(i, hit);
+            }
+        }
+    }
+
+    @Override
+    public AxisAlignedBoundingBox3d getBounds() {
+        Cells grid = cells;
+        return new AxisAlignedBoundingBox3d(new Vector3d(grid.min[0], grid.min[1], grid.min[2]),
+                new Vector3d(grid.max[0], grid.max[1], grid.max[2]));
+    }
+
+    @Override
+    public synchronized void update(SceneUpdate update) {
+        List<Shape3d> updated = update.applyTo(shapes);
+        Preconditions.checkArgument(!updated.isEmpty(), "update would leave the grid empty");
+        cells = build(updated);
+        shapes = updated;
+    }
+
+    /**
+     * cell offsets and shape references. Mailboxes add 4 bytes per shape for every rendering
+     * thread on top of this.
+     */
+    @Override
+    public long estimateMemoryBytes() {
+        Cells grid = cells;
+        return 4L * grid.cellStart.length + 4L * grid.shapeIndices.length + grid.primitives.getMemoryBytes();
+    }
+}
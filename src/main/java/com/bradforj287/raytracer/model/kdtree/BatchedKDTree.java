@@ -0,0 +1,243 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.HitRecord;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.geometry.Vector3d;
+import com.bradforj287.raytracer.model.RayPacket;
+import com.bradforj287.raytracer.model.ShapeVisitor;
+import com.google.common.base.Preconditions;
+
+/**
+ * Traversal of a FlatKDTree that tests the triangles of a leaf as one batch through a
+ * TriangleBatchKernel, several at a time when the vector kernel is available. Other primitives
+ * in a leaf are tested one at a time as usual.
+ *
+ * Batched triangles are always tested with Moller-Trumbore arithmetic whatever kernel they were
+ * created with. Leaves need to hold a few times the kernel width for batching to pay off, so
+ * raise the max leaf size along with it.
+ */
+public class BatchedKDTree implements TreeTraversal {
+    private final FlatKDTree tree;
+    private final TriangleBatch batch;
+    private final TriangleBatchKernel kernel;
+
+    private BatchedKDTree(FlatKDTree tree, TriangleBatch batch, TriangleBatchKernel kernel) {
+        this.tree = tree;
+        this.batch = batch;
+        this.kernel = kernel;
+    }
+
+    public static BatchedKDTree fromFlatTree(FlatKDTree tree, TriangleBatchKernel kernel) {
+        Preconditions.checkNotNull(tree);
+        Preconditions.checkNotNull(kernel);
+        return new BatchedKDTree(tree, TriangleBatch.of(tree.primitives), kernel);
+    }
+
+    public TriangleBatchKernel getKernel() {
+        return kernel;
+    }
+
+    @Override
+    public void visitPossibleIntersections(final Ray3d ray, final ShapeVisitor visitor, final KdTreeQueryStats queryStats) {
+        tree.visitPossibleIntersections(ray, visitor, queryStats);
+    }
+
+    /**
+     * same nearest child first traversal as FlatKDTree
+     */
+    @Override
+    public ShapeHit closestHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double dx = dir.x, dy = dir.y, dz = dir.z;
+        final double ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+
+        final int[] data = tree.nodeData;
+        final PrimitiveList primitives = tree.primitives;
+        final int[] stack = new int[tree.maxDepth + 1];
+        final double[] stackEntry = new double[tree.maxDepth + 1];
+        final double[] batchT = new double[1];
+        int stackSize = 0;
+
+        double bestT = maxT;
+        final HitRecord record = new HitRecord(maxT);
+
+        int node = 0;
+        double entry = tree.intersectNode(0, ox, oy, oz, ix, iy, iz);
+        if (entry > bestT) {
+            return null;
+        }
+
+        while (true) {
+            queryStats.nodesVisited++;
+            int d = node * FlatKDTree.DATA_STRIDE;
+            int count = data[d + 1];
+            if (count < 0) {
+                int left = node + 1;
+                int right = data[d];
+                double leftEntry = tree.intersectNode(left, ox, oy, oz, ix, iy, iz);
+                double rightEntry = tree.intersectNode(right, ox, oy, oz, ix, iy, iz);
+                boolean hitLeft = leftEntry <= bestT;
+                boolean hitRight = rightEntry <= bestT;
+                if (hitLeft && hitRight) {
+                    if (rightEntry < leftEntry) {
+                        stack[stackSize] = left;
+                        stackEntry[stackSize++] = leftEntry;
+                        node = right;
+                    } else {
+                        stack[stackSize] = right;
+                        stackEntry[stackSize++] = rightEntry;
+                        node = left;
+                    }
+                    continue;
+                } else if (hitLeft) {
+                    node = left;
+                    continue;
+                } else if (hitRight) {
+                    node = right;
+                    continue;
+                }
+            } else {
+                queryStats.shapesVisited += count;
+                int start = data[d], end = start + count;
+                int hit = kernel.closestHit(batch, start, end, ox, oy, oz, dx, dy, dz, bestT, batchT);
+                if (hit >= 0) {
+                    bestT = batchT[0];
+                    record.set(bestT, primitives.getShape(hit), primitives.getIndex(hit));
+                }
+                if (!batch.isAllTriangles(start, end)) {
+                    for (int i = start; i < end; i++) {
+                        if (!batch.isTriangle(i) && primitives.intersect(i, ray, record, queryStats)) {
+                            bestT = record.getT();
+                        }
+                    }
+                }
+            }
+
+            do {
+                if (stackSize == 0) {
+                    return record.toShapeHit();
+                }
+                node = stack[--stackSize];
+                entry = stackEntry[stackSize];
+            } while (entry > bestT);
+        }
+    }
+
+    /**
+     * same larger child first traversal as FlatKDTree
+     */
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        return anyHit(ray, maxT, queryStats, null);
+    }
+
+    /**
+     * the kernel only says a leaf blocks the ray, the triangle is found again one at a time
+     * when an occluder is asked for
+     */
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats, final HitRecord occluder) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double dx = dir.x, dy = dir.y, dz = dir.z;
+        final double ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+
+        if (tree.intersectNode(0, ox, oy, oz, ix, iy, iz) > maxT) {
+            return false;
+        }
+
+        final int[] data = tree.nodeData;
+        final PrimitiveList primitives = tree.primitives;
+        final int[] stack = new int[tree.maxDepth + 1];
+        int stackSize = 0;
+        int node = 0;
+
+        while (true) {
+            queryStats.nodesVisited++;
+            int d = node * FlatKDTree.DATA_STRIDE;
+            int count = data[d + 1];
+            if (count < 0) {
+                int first = node + 1;
+                int second = data[d];
+                if (count == FlatKDTree.INTERIOR_OCCLUDE_RIGHT_FIRST) {
+                    first = second;
+                    second = node + 1;
+                }
+                boolean hitFirst = tree.intersectNode(first, ox, oy, oz, ix, iy, iz) <= maxT;
+                boolean hitSecond = tree.intersectNode(second, ox, oy, oz, ix, iy, iz) <= maxT;
+                if (hitFirst) {
+                    if (hitSecond) {
+                        stack[stackSize++] = second;
+                    }
+                    node = first;
+                    continue;
+                } else if (hitSecond) {
+                    node = second;
+                    continue;
+                }
+            } else {
+                queryStats.shapesVisited += count;
+                int start = data[d], end = start + count;
+                if (kernel.anyHit(batch, start, end, ox, oy, oz, dx, dy, dz, maxT)) {
+                    if (occluder != null) {
+                        for (int i = start; i < end; i++) {
+                            if (ScalarTriangleBatchKernel.intersect(batch, i, ox, oy, oz, dx, dy, dz) <= maxT) {
+                                occluder.set(maxT, primitives.getShape(i), primitives.getIndex(i));
+                                break;
+                            }
+                        }
+                    }
+                    return true;
+                }
+                if (!batch.isAllTriangles(start, end)) {
+                    for (int i = start; i < end; i++) {
+                        if (!batch.isTriangle(i) && primitives.isOccluding(i, ray, maxT, queryStats)) {
+                            if (occluder != null) {
+                                occluder.set(maxT, primitives.getShape(i), primitives.getIndex(i));
+                            }
+                            return true;
+                        }
+                    }
+                }
+            }
+
+            if (stackSize == 0) {
+                return false;
+            }
+            node = stack[--stackSize];
+        }
+    }
+
+    /**
+     * packets are traced one ray at a time
+     */
+    @Override
+    public void closestHit(final RayPacket packet, final int fallbackThreshold, final KdTreeQueryStats queryStats) {
+        for (int i = 0; i < packet.size(); i++) {
+            ShapeHit hit = closestHit(packet.getRay(i), packet.tMax[i], queryStats);
+            if (hit != null) {
+                packet.setHit(i, hit);
+            }
+        }
+    }
+
+    @Override
+    public AxisAlignedBoundingBox3d getRootBounds() {
+        return tree.getRootBounds();
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return tree.getMemoryBytes() + batch.getMemoryBytes();
+    }
+
+    @Override
+    public FlatKDTree toFlatTree() {
+        return tree;
+    }
+}
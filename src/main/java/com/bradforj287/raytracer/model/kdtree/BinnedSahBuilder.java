@@ -0,0 +1,413 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.bradforj287.raytracer.Globals;
+import com.google.common.base.Preconditions;
+
+/**
+ * Builds KD tree nodes using a binned Surface Area Heuristic (SAH). The builder works on a single
+ * array of primitive indices which is partitioned in place, so after a full build every leaf
+ * owns a contiguous range of the array and the ranges are in depth first order.
+ *
+ * Subtrees larger than the parallel build cutoff are forked onto the fork join pool. Nodes larger
+ * than the parallel binning cutoff also bin their primitives in parallel.
+ */
+public class BinnedSahBuilder {
+    private static final int STRIDE = PrimitiveBoundsTable.BOUNDS_STRIDE;
+
+    private final PrimitiveBoundsTable table;
+    private final int[] indices;
+    private final int binCount;
+    private final int maxLeafSize;
+    private final int parallelBuildCutoff;
+    private final int parallelBinningCutoff;
+    private final BuildProgressListener progressListener;
+
+    private final AtomicInteger builtShapesCount = new AtomicInteger();
+
+    public BinnedSahBuilder(PrimitiveBoundsTable table, int[] indices, KDTreeConfig config) {
+        Preconditions.checkArgument(table.size() == indices.length);
+        this.table = table;
+        this.indices = indices;
+        this.binCount = config.getSahBinCount();
+        this.maxLeafSize = config.getMaxLeafSize();
+        this.parallelBuildCutoff = config.getParallelBuildCutoff();
+        this.parallelBinningCutoff = config.getParallelBinningCutoff();
+        this.progressListener = config.getProgressListener();
+    }
+
+    public int getBuiltShapesCount() {
+        return builtShapesCount.get();
+    }
+
+    /**
+     * builds the tree over the whole index array on the shared fork join pool.
+     */
+    public KDNode build() {
+        return build(0, indices.length);
+    }
+
+    /**
+     * builds the tree over indices[start, end) on the shared fork join pool.
+     */
+    public KDNode build(final int start, final int end) {
+        Preconditions.checkArgument(end > start);
+        return Globals.forkJoinPool.invoke(new RecursiveTask<KDNode>() {
+            @Override
+            protected KDNode compute() {
+                double[] scan = scanRange(start, end);
+                KDNode root = buildNode(start, end, scan);
+                new BuildTask(root).compute();
+                return root;
+            }
+        });
+    }
+
+    private KDNode buildNode(int start, int end, double[] box) {
+        KDNode node = new KDNode();
+        node.setBoundingBox(PrimitiveBoundsTable.toBoundingBox(box));
+        node.setPrimitiveRange(start, end - start);
+        return node;
+    }
+
+    private void reportBuilt(int count) {
+        int built = builtShapesCount.addAndGet(count);
+        if (progressListener != null) {
+            progressListener.onProgress(built, indices.length);
+        }
+    }
+
+    private class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final KDNode node;
+
+        BuildTask(KDNode node) {
+            this.node = node;
+        }
+
+        @Override
+        protected void compute() {
+            if (node.getPrimitiveCount() <= parallelBuildCutoff) {
+                reportBuilt(populateSequential(node));
+                return;
+            }
+            if (!split(node)) {
+                reportBuilt(node.getPrimitiveCount());
+                return;
+            }
+            invokeAll(new BuildTask(node.getLeft()), new BuildTask(node.getRight()));
+        }
+    }
+
+    /**
+     * populates the subtree below node on the calling thread. Returns the number of shapes placed
+     * in leaves.
+     */
+    private int populateSequential(KDNode node) {
+        if (!split(node)) {
+            return node.getPrimitiveCount();
+        }
+        return populateSequential(node.getLeft()) + populateSequential(node.getRight());
+    }
+
+    /**
+     * splits a leaf node into two children. Returns false if the node should stay a leaf.
+     */
+    private boolean split(KDNode node) {
+        int start = node.getPrimitiveStart();
+        int end = start + node.getPrimitiveCount();
+
+        // base case #1 - min split
+        if (end - start <= maxLeafSize) {
+            return false;
+        }
+
+        // base case #2 - all centroids coincide so there is nothing to split on
+        SplitCandidate split = findSplit(start, end);
+        if (split == null) {
+            return false;
+        }
+
+        int mid = partition(start, end, split);
+        node.setLeft(buildNode(start, mid, split.leftBox));
+        node.setRight(buildNode(mid, end, split.rightBox));
+        return true;
+    }
+
+    private static class SplitCandidate {
+        private int axis;
+        private int bin;
+        private double centroidMin;
+        private double scale;
+        private final double[] leftBox = new double[STRIDE];
+        private final double[] rightBox = new double[STRIDE];
+    }
+
+    /**
+     * finds the cheapest SAH split of indices[start, end) over all three axes or null if the
+     * range can't be split.
+     */
+    private SplitCandidate findSplit(int start, int end) {
+        final boolean parallel = end - start > parallelBinningCutoff;
+        final int bins = binCount;
+
+        // centroid bounds of the range drive the bin placement
+        double[] scan = parallel ? new ScanTask(start, end).invoke() : scanRange(start, end);
+        double[] centroidMin = {scan[STRIDE], scan[STRIDE + 1], scan[STRIDE + 2]};
+        double[] scale = new double[3];
+        for (int axis = 0; axis < 3; axis++) {
+            double extent = scan[STRIDE + 3 + axis] - scan[STRIDE + axis];
+            scale[axis] = extent > 0 ? bins / extent : 0;
+        }
+
+        BinData binData = parallel
+                ? new BinTask(start, end, centroidMin, scale).invoke()
+                : binRange(start, end, centroidMin, scale);
+
+        double[] leftArea = new double[bins];
+        int[] leftCount = new int[bins];
+        double[] box = new double[STRIDE];
+
+        double bestCost = Double.POSITIVE_INFINITY;
+        int bestAxis = -1;
+        int bestBin = -1;
+
+        for (int axis = 0; axis < 3; axis++) {
+            if (scale[axis] == 0) {
+                continue;
+            }
+
+            // sweep from the left recording area and count up to each bin
+            PrimitiveBoundsTable.resetBounds(box);
+            int count = 0;
+            for (int b = 0; b < bins - 1; b++) {
+                binData.growBox(box, axis, b);
+                count += binData.count(axis, b);
+                leftArea[b] = PrimitiveBoundsTable.surfaceArea(box);
+                leftCount[b] = count;
+            }
+
+            // sweep from the right evaluating the split after each bin
+            PrimitiveBoundsTable.resetBounds(box);
+            count = 0;
+            for (int b = bins - 1; b > 0; b--) {
+                binData.growBox(box, axis, b);
+                count += binData.count(axis, b);
+                int lhs = leftCount[b - 1];
+                if (lhs == 0 || count == 0) {
+                    continue;
+                }
+                double cost = leftArea[b - 1] * lhs + PrimitiveBoundsTable.surfaceArea(box) * count;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = b - 1;
+                }
+            }
+        }
+
+        if (bestAxis < 0) {
+            return null;
+        }
+
+        SplitCandidate split = new SplitCandidate();
+        split.axis = bestAxis;
+        split.bin = bestBin;
+        split.centroidMin = centroidMin[bestAxis];
+        split.scale = scale[bestAxis];
+        PrimitiveBoundsTable.resetBounds(split.leftBox);
+        PrimitiveBoundsTable.resetBounds(split.rightBox);
+        for (int b = 0; b < bins; b++) {
+            binData.growBox(b <= bestBin ? split.leftBox : split.rightBox, bestAxis, b);
+        }
+        return split;
+    }
+
+    /**
+     * partitions indices[start, end) in place so bins up to and including the split bin come
+     * first. Returns the first index of the right hand side.
+     */
+    private int partition(int start, int end, SplitCandidate split) {
+        int i = start;
+        int j = end - 1;
+        while (i <= j) {
+            int p = indices[i];
+            if (binIndex(table.getCentroid(p, split.axis), split.centroidMin, split.scale) <= split.bin) {
+                i++;
+            } else {
+                indices[i] = indices[j];
+                indices[j--] = p;
+            }
+        }
+        return i;
+    }
+
+    private int binIndex(double centroid, double min, double scale) {
+        int b = (int) ((centroid - min) * scale);
+        return b >= binCount ? binCount - 1 : b;
+    }
+
+    /**
+     * bounds of indices[start, end) followed by the bounds of their centroids
+     */
+    private double[] scanRange(int start, int end) {
+        double[] r = new double[STRIDE * 2];
+        PrimitiveBoundsTable.resetBounds(r);
+        for (int i = 0; i < 3; i++) {
+            r[STRIDE + i] = Double.POSITIVE_INFINITY;
+            r[STRIDE + 3 + i] = Double.NEGATIVE_INFINITY;
+        }
+        for (int i = start; i < end; i++) {
+            int p = indices[i];
+            table.growBounds(r, p);
+            for (int axis = 0; axis < 3; axis++) {
+                double c = table.getCentroid(p, axis);
+                r[STRIDE + axis] = Math.min(r[STRIDE + axis], c);
+                r[STRIDE + 3 + axis] = Math.max(r[STRIDE + 3 + axis], c);
+            }
+        }
+        return r;
+    }
+
+    private static double[] mergeScans(double[] a, double[] b) {
+        for (int i = 0; i < 3; i++) {
+            a[i] = Math.min(a[i], b[i]);
+            a[i + 3] = Math.max(a[i + 3], b[i + 3]);
+            a[STRIDE + i] = Math.min(a[STRIDE + i], b[STRIDE + i]);
+            a[STRIDE + 3 + i] = Math.max(a[STRIDE + 3 + i], b[STRIDE + 3 + i]);
+        }
+        return a;
+    }
+
+    private BinData binRange(int start, int end, double[] centroidMin, double[] scale) {
+        BinData data = new BinData(binCount);
+        for (int i = start; i < end; i++) {
+            int p = indices[i];
+            for (int axis = 0; axis < 3; axis++) {
+                if (scale[axis] == 0) {
+                    continue;
+                }
+                int b = binIndex(table.getCentroid(p, axis), centroidMin[axis], scale[axis]);
+                data.add(table, axis, b, p);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * primitive count and bounds per bin for each of the three axes
+     */
+    private static class BinData {
+        private final int bins;
+        private final int[] counts;
+        private final double[] bounds;
+
+        BinData(int bins) {
+            this.bins = bins;
+            this.counts = new int[3 * bins];
+            this.bounds = new double[3 * bins * STRIDE];
+            for (int o = 0; o < bounds.length; o += STRIDE) {
+                bounds[o] = bounds[o + 1] = bounds[o + 2] = Double.POSITIVE_INFINITY;
+                bounds[o + 3] = bounds[o + 4] = bounds[o + 5] = Double.NEGATIVE_INFINITY;
+            }
+        }
+
+        int count(int axis, int bin) {
+            return counts[axis * bins + bin];
+        }
+
+        void add(PrimitiveBoundsTable table, int axis, int bin, int primitive) {
+            int slot = axis * bins + bin;
+            counts[slot]++;
+            int o = slot * STRIDE;
+            int b = primitive * STRIDE;
+            double[] primitiveBounds = table.bounds;
+            bounds[o] = Math.min(bounds[o], primitiveBounds[b]);
+            bounds[o + 1] = Math.min(bounds[o + 1], primitiveBounds[b + 1]);
+            bounds[o + 2] = Math.min(bounds[o + 2], primitiveBounds[b + 2]);
+            bounds[o + 3] = Math.max(bounds[o + 3], primitiveBounds[b + 3]);
+            bounds[o + 4] = Math.max(bounds[o + 4], primitiveBounds[b + 4]);
+            bounds[o + 5] = Math.max(bounds[o + 5], primitiveBounds[b + 5]);
+        }
+
+        void growBox(double[] box, int axis, int bin) {
+            int o = (axis * bins + bin) * STRIDE;
+            box[0] = Math.min(box[0], bounds[o]);
+            box[1] = Math.min(box[1], bounds[o + 1]);
+            box[2] = Math.min(box[2], bounds[o + 2]);
+            box[3] = Math.max(box[3], bounds[o + 3]);
+            box[4] = Math.max(box[4], bounds[o + 4]);
+            box[5] = Math.max(box[5], bounds[o + 5]);
+        }
+
+        BinData merge(BinData other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            for (int o = 0; o < bounds.length; o += STRIDE) {
+                bounds[o] = Math.min(bounds[o], other.bounds[o]);
+                bounds[o + 1] = Math.min(bounds[o + 1], other.bounds[o + 1]);
+                bounds[o + 2] = Math.min(bounds[o + 2], other.bounds[o + 2]);
+                bounds[o + 3] = Math.max(bounds[o + 3], other.bounds[o + 3]);
+                bounds[o + 4] = Math.max(bounds[o + 4], other.bounds[o + 4]);
+                bounds[o + 5] = Math.max(bounds[o + 5], other.bounds[o + 5]);
+            }
+            return this;
+        }
+    }
+
+    private class ScanTask extends RecursiveTask<double[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        ScanTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (end - start <= parallelBinningCutoff) {
+                return scanRange(start, end);
+            }
+            int mid = (start + end) >>> 1;
+            ScanTask right = new ScanTask(mid, end);
+            right.fork();
+            double[] left = new ScanTask(start, mid).compute();
+            return mergeScans(left, right.join());
+        }
+    }
+
+    private class BinTask extends RecursiveTask<BinData> {
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+        private final double[] centroidMin;
+        private final double[] scale;
+
+        BinTask(int start, int end, double[] centroidMin, double[] scale) {
+            this.start = start;
+            this.end = end;
+            this.centroidMin = centroidMin;
+            this.scale = scale;
+        }
+
+        @Override
+        protected BinData compute() {
+            if (end - start <= parallelBinningCutoff) {
+                return binRange(start, end, centroidMin, scale);
+            }
+            int mid = (start + end) >>> 1;
+            BinTask right = new BinTask(mid, end, centroidMin, scale);
+            right.fork();
+            BinData left = new BinTask(start, mid, centroidMin, scale).compute();
+            return left.merge(right.join());
+        }
+    }
+}
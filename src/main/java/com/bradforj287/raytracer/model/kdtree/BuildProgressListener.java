@@ -0,0 +1,9 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+/**
+ * Receives tree build progress. Called concurrently from builder threads so implementations
+ * must be thread safe.
+ */
+public interface BuildProgressListener {
+    void onProgress(int builtShapes, int totalShapes);
+}
@@ -0,0 +1,22 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prints build progress to stdout at most once per interval.
+ */
+public class ConsoleProgressListener implements BuildProgressListener {
+    private static final long PRINT_INTERVAL_MILLIS = 5000;
+
+    private final AtomicLong lastPrinted = new AtomicLong(System.currentTimeMillis());
+
+    @Override
+    public void onProgress(int builtShapes, int totalShapes) {
+        long now = System.currentTimeMillis();
+        long last = lastPrinted.get();
+        if (now - last < PRINT_INTERVAL_MILLIS || !lastPrinted.compareAndSet(last, now)) {
+            return;
+        }
+        System.out.println(String.format("built %s/%s    %s", builtShapes, totalShapes, ((double) builtShapes / (double) totalShapes)));
+    }
+}
@@ -0,0 +1,531 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import java.util.List;
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.HitRecord;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.Shape3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.geometry.Vector3d;
+import com.bradforj287.raytracer.model.RayPacket;
+import com.bradforj287.raytracer.model.ShapeVisitor;
+import com.google.common.base.Preconditions;
+
+/**
+ * Linearized form of a built KD tree. Nodes are stored in depth first order in primitive arrays
+ * so traversal never touches KDNode objects. The left child of an interior node is always the
+ * next node in the array, the right child index is stored explicitly.
+ *
+ * Immutable after construction. Dynamic scenes get a new tree from IncrementalUpdater. Nodes left
+ * empty by an update have NaN bounds, which every box test treats as a miss.
+ */
+public class FlatKDTree implements TreeTraversal {
+    public static final int BOUNDS_STRIDE = 6;
+    public static final int DATA_STRIDE = 2;
+
+    // mark an interior node in the second data slot. Leaves store their primitive count there.
+    // Occlusion queries visit the child with the larger surface area first, the second marker
+    // records that this is the right child.
+    static final int INTERIOR = -1;
+    static final int INTERIOR_OCCLUDE_RIGHT_FIRST = -2;
+
+    // min x,y,z then max x,y,z for every node
+    final double[] nodeBounds;
+
+    // interior: {right child index, INTERIOR marker}. leaf: {first primitive, primitive count}
+    final int[] nodeData;
+
+    // leaf primitives in depth first order
+    final PrimitiveList primitives;
+
+    // position of each leaf primitive in the primitive list the tree was built from
+    final int[] primitiveOrder;
+
+    final int nodeCount;
+    final int maxDepth;
+
+    FlatKDTree(double[] nodeBounds, int[] nodeData, int[] primitiveOrder, List<Shape3d> shapes, int maxDepth) {
+        this(nodeBounds, nodeData, primitiveOrder, new PrimitiveList(shapes), maxDepth);
+    }
+
+    FlatKDTree(double[] nodeBounds, int[] nodeData, int[] primitiveOrder, PrimitiveList allPrimitives, int maxDepth) {
+        this(primitiveOrder, checkedReorder(allPrimitives, primitiveOrder), nodeBounds, nodeData, maxDepth);
+    }
+
+    /**
+     * tree over primitives that are already in leaf order
+     */
+    FlatKDTree(double[] nodeBounds, int[] nodeData, PrimitiveList primitives, int maxDepth) {
+        this(identityOrder(primitives.size()), primitives, nodeBounds, nodeData, maxDepth);
+    }
+
+    private FlatKDTree(int[] primitiveOrder, PrimitiveList primitives, double[] nodeBounds, int[] nodeData, int maxDepth) {
+        Preconditions.checkArgument(nodeBounds.length / BOUNDS_STRIDE == nodeData.length / DATA_STRIDE);
+        Preconditions.checkArgument(primitiveOrder.length == primitives.size());
+        this.nodeCount = nodeData.length / DATA_STRIDE;
+        this.maxDepth = maxDepth;
+        this.nodeBounds = nodeBounds;
+        this.nodeData = nodeData;
+        this.primitiveOrder = primitiveOrder;
+        this.primitives = primitives;
+    }
+
+    private static PrimitiveList checkedReorder(PrimitiveList allPrimitives, int[] primitiveOrder) {
+        Preconditions.checkArgument(primitiveOrder.length == allPrimitives.size());
+        return allPrimitives.reorder(primitiveOrder);
+    }
+
+    private static int[] identityOrder(int size) {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+
+    /**
+     * linearizes a built node graph. Leaf ranges of the nodes index into primitiveOrder which
+     * maps to positions in the primitives of shapes.
+     */
+    public static FlatKDTree fromNodes(KDNode root, int[] primitiveOrder, List<Shape3d> shapes) {
+        return fromNodes(root, primitiveOrder, new PrimitiveList(shapes));
+    }
+
+    public static FlatKDTree fromNodes(KDNode root, int[] primitiveOrder, PrimitiveList primitives) {
+        Preconditions.checkNotNull(root);
+        int[] counts = new int[2];
+        countNodes(root, 0, counts);
+        double[] nodeBounds = new double[counts[0] * BOUNDS_STRIDE];
+        int[] nodeData = new int[counts[0] * DATA_STRIDE];
+        writeNode(root, 0, nodeBounds, nodeData);
+        return new FlatKDTree(nodeBounds, nodeData, primitiveOrder, primitives, counts[1]);
+    }
+
+    // counts[0] = nodes, counts[1] = max depth
+    private static void countNodes(KDNode node, int depth, int[] counts) {
+        counts[0]++;
+        counts[1] = Math.max(counts[1], depth);
+        if (node.isLeaf()) {
+            return;
+        }
+        countNodes(node.getLeft(), depth + 1, counts);
+        countNodes(node.getRight(), depth + 1, counts);
+    }
+
+    /**
+     * writes the subtree rooted at node starting at nodeIndex. Returns the next free node index.
+     */
+    private static int writeNode(KDNode node, int nodeIndex, double[] nodeBounds, int[] nodeData) {
+        AxisAlignedBoundingBox3d box = node.getBoundingBox();
+        int b = nodeIndex * BOUNDS_STRIDE;
+        nodeBounds[b] = box.getMin().x;
+        nodeBounds[b + 1] = box.getMin().y;
+        nodeBounds[b + 2] = box.getMin().z;
+        nodeBounds[b + 3] = box.getMax().x;
+        nodeBounds[b + 4] = box.getMax().y;
+        nodeBounds[b + 5] = box.getMax().z;
+
+        int d = nodeIndex * DATA_STRIDE;
+        if (node.isLeaf()) {
+            nodeData[d] = node.getPrimitiveStart();
+            nodeData[d + 1] = node.getPrimitiveCount();
+            return nodeIndex + 1;
+        }
+
+        int rightIndex = writeNode(node.getLeft(), nodeIndex + 1, nodeBounds, nodeData);
+        nodeData[d] = rightIndex;
+        boolean rightIsLarger = node.getRight().getBoundingBox().getSurfaceArea()
+                > node.getLeft().getBoundingBox().getSurfaceArea();
+        nodeData[d + 1] = rightIsLarger ? INTERIOR_OCCLUDE_RIGHT_FIRST : INTERIOR;
+        return writeNode(node.getRight(), rightIndex, nodeBounds, nodeData);
+    }
+
+    @Override
+    public AxisAlignedBoundingBox3d getRootBounds() {
+        return getNodeBounds(0);
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return 8L * nodeBounds.length + 4L * nodeData.length + primitives.getMemoryBytes() + 4L * primitiveOrder.length;
+    }
+
+    @Override
+    public FlatKDTree toFlatTree() {
+        return this;
+    }
+
+    public boolean isLeaf(int node) {
+        return nodeData[node * DATA_STRIDE + 1] >= 0;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getPrimitiveCount() {
+        return primitives.size();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public AxisAlignedBoundingBox3d getNodeBounds(int node) {
+        int b = node * BOUNDS_STRIDE;
+        return new AxisAlignedBoundingBox3d(
+                new Vector3d(nodeBounds[b], nodeBounds[b + 1], nodeBounds[b + 2]),
+                new Vector3d(nodeBounds[b + 3], nodeBounds[b + 4], nodeBounds[b + 5]));
+    }
+
+    public double getNodeSurfaceArea(int node) {
+        return surfaceArea(nodeBounds, node * BOUNDS_STRIDE);
+    }
+
+    /**
+     * surface area of the box at offset b, zero for an empty box
+     */
+    static double surfaceArea(double[] bounds, int b) {
+        double x = bounds[b + 3] - bounds[b];
+        double y = bounds[b + 4] - bounds[b + 1];
+        double z = bounds[b + 5] - bounds[b + 2];
+        if (!(x >= 0 && y >= 0 && z >= 0)) {
+            return 0;
+        }
+        return 2 * (x * y + y * z + z * x);
+    }
+
+    /**
+     * slab test against the bounds of a node. Returns the distance the ray enters the box at
+     * (clamped to zero) or positive infinity on a miss.
+     */
+    double intersectNode(int node, double ox, double oy, double oz, double ix, double iy, double iz) {
+        return intersectBox(nodeBounds, node * BOUNDS_STRIDE, ox, oy, oz, ix, iy, iz);
+    }
+
+    /**
+     * slab test against the box at offset b of bounds, see intersectNode
+     */
+    static double intersectBox(double[] bounds, int b, double ox, double oy, double oz, double ix, double iy, double iz) {
+        double t1 = (bounds[b] - ox) * ix;
+        double t2 = (bounds[b + 3] - ox) * ix;
+        double tmin = Math.min(t1, t2);
+        double tmax = Math.max(t1, t2);
+
+        t1 = (bounds[b + 1] - oy) * iy;
+        t2 = (bounds[b + 4] - oy) * iy;
+        tmin = Math.max(tmin, Math.min(t1, t2));
+        tmax = Math.min(tmax, Math.max(t1, t2));
+
+        t1 = (bounds[b + 2] - oz) * iz;
+        t2 = (bounds[b + 5] - oz) * iz;
+        tmin = Math.max(tmin, Math.min(t1, t2));
+        tmax = Math.min(tmax, Math.max(t1, t2));
+
+        // written so NaN, from a ray lying in the plane of a flat box, counts as a miss
+        if (!(tmax >= tmin) || tmax <= 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.max(tmin, 0);
+    }
+
+    @Override
+    public void visitPossibleIntersections(final Ray3d ray, final ShapeVisitor visitor, final KdTreeQueryStats queryStats) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+
+        final int[] data = nodeData;
+        final int[] stack = new int[maxDepth + 1];
+        int stackSize = 0;
+        int node = 0;
+
+        while (true) {
+            queryStats.nodesVisited++;
+            if (intersectNode(node, ox, oy, oz, ix, iy, iz) != Double.POSITIVE_INFINITY) {
+                int d = node * DATA_STRIDE;
+                int count = data[d + 1];
+                if (count < 0) {
+                    stack[stackSize++] = data[d];
+                    node = node + 1;
+                    continue;
+                }
+                queryStats.shapesVisited += count;
+                for (int i = data[d], end = data[d] + count; i < end; i++) {
+                    primitives.visit(i, visitor);
+                }
+            }
+            if (stackSize == 0) {
+                return;
+            }
+            node = stack[--stackSize];
+        }
+    }
+
+    /**
+     * finds the closest shape hit by the ray with t no greater than maxT. Children are visited
+     * nearest first by their entry distance and any node that the ray enters beyond the best hit
+     * found so far is pruned, so traversal stops once no remaining node can beat the hit.
+     */
+    @Override
+    public ShapeHit closestHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        return closestHit(0, ray, maxT, queryStats);
+    }
+
+    /**
+     * closest hit search restricted to the subtree rooted at startNode
+     */
+    private ShapeHit closestHit(final int startNode, final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+
+        final int[] data = nodeData;
+        final int[] stack = new int[maxDepth + 1];
+        final double[] stackEntry = new double[maxDepth + 1];
+        int stackSize = 0;
+
+        double bestT = maxT;
+        final HitRecord record = new HitRecord(maxT);
+
+        int node = startNode;
+        double entry = intersectNode(startNode, ox, oy, oz, ix, iy, iz);
+        if (entry > bestT) {
+            return null;
+        }
+
+        while (true) {
+            queryStats.nodesVisited++;
+            int d = node * DATA_STRIDE;
+            int count = data[d + 1];
+            if (count < 0) {
+                int left = node + 1;
+                int right = data[d];
+                double leftEntry = intersectNode(left, ox, oy, oz, ix, iy, iz);
+                double rightEntry = intersectNode(right, ox, oy, oz, ix, iy, iz);
+                boolean hitLeft = leftEntry <= bestT;
+                boolean hitRight = rightEntry <= bestT;
+                if (hitLeft && hitRight) {
+                    // descend into the nearer child, come back to the farther one
+                    if (rightEntry < leftEntry) {
+                        stack[stackSize] = left;
+                        stackEntry[stackSize++] = leftEntry;
+                        node = right;
+                    } else {
+                        stack[stackSize] = right;
+                        stackEntry[stackSize++] = rightEntry;
+                        node = left;
+                    }
+                    continue;
+                } else if (hitLeft) {
+                    node = left;
+                    continue;
+                } else if (hitRight) {
+                    node = right;
+                    continue;
+                }
+            } else {
+                queryStats.shapesVisited += count;
+                for (int i = data[d], end = data[d] + count; i < end; i++) {
+                    if (primitives.intersect(i, ray, record, queryStats)) {
+                        bestT = record.getT();
+                    }
+                }
+            }
+
+            // pop the next node that can still contain a closer hit
+            do {
+                if (stackSize == 0) {
+                    return record.toShapeHit();
+                }
+                node = stack[--stackSize];
+                entry = stackEntry[stackSize];
+            } while (entry > bestT);
+        }
+    }
+
+    /**
+     * returns true as soon as any shape blocks the ray with t no greater than maxT. There is no
+     * closest hit to order by, so children are not sorted by distance. The child with the larger
+     * surface area is visited first since it is the more likely occluder.
+     */
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        return anyHit(ray, maxT, queryStats, null);
+    }
+
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats, final HitRecord occluder) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+
+        if (intersectNode(0, ox, oy, oz, ix, iy, iz) > maxT) {
+            return false;
+        }
+
+        final int[] data = nodeData;
+        final int[] stack = new int[maxDepth + 1];
+        int stackSize = 0;
+        int node = 0;
+
+        while (true) {
+            queryStats.nodesVisited++;
+            int d = node * DATA_STRIDE;
+            int count = data[d + 1];
+            if (count < 0) {
+                int first = node + 1;
+                int second = data[d];
+                if (count == INTERIOR_OCCLUDE_RIGHT_FIRST) {
+                    first = second;
+                    second = node + 1;
+                }
+                boolean hitFirst = intersectNode(first, ox, oy, oz, ix, iy, iz) <= maxT;
+                boolean hitSecond = intersectNode(second, ox, oy, oz, ix, iy, iz) <= maxT;
+                if (hitFirst) {
+                    if (hitSecond) {
+                        stack[stackSize++] = second;
+                    }
+                    node = first;
+                    continue;
+                } else if (hitSecond) {
+                    node = second;
+                    continue;
+                }
+            } else {
+                queryStats.shapesVisited += count;
+                for (int i = data[d], end = data[d] + count; i < end; i++) {
+                    if (primitives.isOccluding(i, ray, maxT, queryStats)) {
+                        if (occluder != null) {
+                            occluder.set(maxT, primitives.getShape(i), primitives.getIndex(i));
+                        }
+                        return true;
+                    }
+                }
+            }
+
+            if (stackSize == 0) {
+                return false;
+            }
+            node = stack[--stackSize];
+        }
+    }
+
+    /**
+     * finds the first ray in the active mask that enters the node before its current max t.
+     * Coherent packets are first tested as a whole with interval arithmetic so a node that the
+     * entire packet misses costs a single test. Returns the ray index or -1, and the entry
+     * distance of that ray in entryOut[0].
+     */
+    private int firstRayHittingNode(int node, RayPacket packet, boolean coherent, long mask, double[] entryOut) {
+        if (coherent && !packet.mayIntersect(nodeBounds, node * BOUNDS_STRIDE)) {
+            return -1;
+        }
+        for (long m = mask; m != 0; m &= m - 1) {
+            int r = Long.numberOfTrailingZeros(m);
+            double entry = intersectNode(node, packet.ox[r], packet.oy[r], packet.oz[r], packet.ix[r], packet.iy[r], packet.iz[r]);
+            if (entry <= packet.tMax[r]) {
+                entryOut[0] = entry;
+                return r;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * finds the closest hit of every ray in the packet. The packet descends into a node as long
+     * as one of its active rays enters it. Rays before the first one that hits are dropped from
+     * the active mask, the rest are only tested individually against leaf bounds. For coherent
+     * packets this costs about one box test per node instead of one per ray. Once fewer than
+     * fallbackThreshold rays remain active in a subtree the packet has diverged and the remaining
+     * rays finish that subtree with single ray traversal.
+     *
+     * Node visits are counted once per packet, shape visits once per ray.
+     */
+    @Override
+    public void closestHit(final RayPacket packet, final int fallbackThreshold, final KdTreeQueryStats queryStats) {
+        final int[] data = nodeData;
+        final int[] stack = new int[maxDepth + 1];
+        final long[] stackMask = new long[maxDepth + 1];
+        final double[] entry = new double[1];
+        final boolean coherent = packet.isCoherent();
+        int stackSize = 0;
+
+        int node = 0;
+        long mask = packet.getFullMask();
+        int first = firstRayHittingNode(0, packet, coherent, mask, entry);
+        mask = first < 0 ? 0 : mask & (-1L << first);
+
+        while (true) {
+            if (mask != 0) {
+                if (Long.bitCount(mask) < fallbackThreshold) {
+                    for (long m = mask; m != 0; m &= m - 1) {
+                        int r = Long.numberOfTrailingZeros(m);
+                        ShapeHit hit = closestHit(node, packet.getRay(r), packet.tMax[r], queryStats);
+                        if (hit != null) {
+                            packet.setHit(r, hit);
+                        }
+                    }
+                } else {
+                    queryStats.nodesVisited++;
+                    int d = node * DATA_STRIDE;
+                    int count = data[d + 1];
+                    if (count < 0) {
+                        int left = node + 1;
+                        int right = data[d];
+                        int leftFirst = firstRayHittingNode(left, packet, coherent, mask, entry);
+                        double leftEntry = leftFirst < 0 ? Double.POSITIVE_INFINITY : entry[0];
+                        int rightFirst = firstRayHittingNode(right, packet, coherent, mask, entry);
+                        double rightEntry = rightFirst < 0 ? Double.POSITIVE_INFINITY : entry[0];
+                        long leftMask = leftFirst < 0 ? 0 : mask & (-1L << leftFirst);
+                        long rightMask = rightFirst < 0 ? 0 : mask & (-1L << rightFirst);
+
+                        // descend into the child the packet reaches first
+                        if (rightEntry < leftEntry) {
+                            if (leftMask != 0) {
+                                stack[stackSize] = left;
+                                stackMask[stackSize++] = leftMask;
+                            }
+                            node = right;
+                            mask = rightMask;
+                        } else {
+                            if (rightMask != 0) {
+                                stack[stackSize] = right;
+                                stackMask[stackSize++] = rightMask;
+                            }
+                            node = left;
+                            mask = leftMask;
+                        }
+                        continue;
+                    }
+
+                    int firstPrimitive = data[d];
+                    for (long m = mask; m != 0; m &= m - 1) {
+                        int r = Long.numberOfTrailingZeros(m);
+                        if (intersectNode(node, packet.ox[r], packet.oy[r], packet.oz[r],
+                                packet.ix[r], packet.iy[r], packet.iz[r]) > packet.tMax[r]) {
+                            continue;
+                        }
+                        Ray3d ray = packet.getRay(r);
+                        queryStats.shapesVisited += count;
+                        for (int i = firstPrimitive, end = firstPrimitive + count; i < end; i++) {
+                            ShapeHit hit = primitives.intersect(i, ray, packet.tMax[r], queryStats);
+                            if (hit != null && hit.getT() < packet.tMax[r]) {
+                                packet.setHit(r, hit);
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (stackSize == 0) {
+                return;
+            }
+            node = stack[--stackSize];
+            mask = stackMask[stackSize];
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import com.bradforj287.raytracer.geometry.Shape3d;
+import com.google.common.base.Preconditions;
+
+/**
+ * Applies moved, added and removed shapes to a built tree without rebuilding all of it.
+ *
+ * Every update produces a new FlatKDTree so trees in use by render threads are never modified:
+ * - moved shapes replace the old shape in its leaf slots
+ * - every primitive of an added shape is pushed down to the leaf whose box grows the least
+ * - node bounds are refit bottom up, walking nodes in reverse depth first order so children are
+ *   done before their parent
+ * - a subtree is rebuilt with the SAH builder when its surface area has grown past
+ *   rebuildThreshold times the area it had when built, as are leaves whose shapes changed
+ * - the rebuilt fragments are spliced into copies of the flat arrays with child and primitive
+ *   indices shifted to their new positions
+ *
+ * Only the changed paths are refit and rebuilt. The copy into new arrays is linear in the size of
+ * the tree but is plain array copying.
+ */
+public class IncrementalUpdater {
+    private static final int STRIDE = FlatKDTree.BOUNDS_STRIDE;
+
+    private final KDTreeConfig fragmentConfig;
+    private final double rebuildThreshold;
+
+    private FlatKDTree tree;
+
+    // surface area of every node when it was last built, refits are measured against this
+    private double[] buildArea;
+
+    public IncrementalUpdater(FlatKDTree tree, KDTreeConfig config) {
+        this.tree = tree;
+        this.rebuildThreshold = config.getRefitRebuildThreshold();
+        this.buildArea = new double[tree.nodeCount];
+        for (int i = 0; i < tree.nodeCount; i++) {
+            buildArea[i] = tree.getNodeSurfaceArea(i);
+        }
+
+        // fragments are small, build them on the calling thread without progress output
+        fragmentConfig = new KDTreeConfig(config);
+        fragmentConfig.setProgressListener(null);
+    }
+
+    public FlatKDTree getTree() {
+        return tree;
+    }
+
+    /**
+     * applies the changes and returns the new tree.
+     *
+     * @param moved   maps shapes in the tree to the shapes replacing them. A shape may map to
+     *                itself if it was changed in place.
+     * @param added   shapes not yet in the tree
+     * @param removed shapes in the tree to drop
+     */
+    public FlatKDTree update(Map<Shape3d, Shape3d> moved, Collection<Shape3d> added, Collection<Shape3d> removed) {
+        Preconditions.checkNotNull(moved);
+        Preconditions.checkNotNull(added);
+        Preconditions.checkNotNull(removed);
+        Set<Shape3d> removedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        removedSet.addAll(removed);
+        for (Shape3d shape : moved.keySet()) {
+            Preconditions.checkArgument(!removedSet.contains(shape), "shape is both moved and removed");
+        }
+        for (Map.Entry<Shape3d, Shape3d> entry : moved.entrySet()) {
+            Preconditions.checkArgument(entry.getKey().getPrimitiveCount() == entry.getValue().getPrimitiveCount(),
+                    "moved shape changed its number of primitives");
+        }
+        int addedPrimitives = countPrimitives(added);
+        Preconditions.checkArgument(tree.getPrimitiveCount() - countPrimitives(removedSet) + addedPrimitives > 0,
+                "update would leave the tree empty");
+
+        Pass pass = new Pass(tree);
+        pass.replaceShapes(moved, removedSet);
+        for (Shape3d shape : added) {
+            for (int i = 0; i < shape.getPrimitiveCount(); i++) {
+                pass.insert(shape, i);
+            }
+        }
+        pass.refit();
+        pass.markRebuilds(rebuildThreshold);
+
+        Output out = new Output(tree.nodeCount + 2 * addedPrimitives, tree.getPrimitiveCount() + addedPrimitives);
+        pass.emit(0, 0, out);
+
+        tree = new FlatKDTree(Arrays.copyOf(out.bounds, out.nodeCount * STRIDE),
+                Arrays.copyOf(out.data, out.nodeCount * FlatKDTree.DATA_STRIDE),
+                out.primitives.build(), out.maxDepth);
+        buildArea = Arrays.copyOf(out.buildArea, out.nodeCount);
+        return tree;
+    }
+
+    private static int countPrimitives(Collection<Shape3d> shapes) {
+        int count = 0;
+        for (Shape3d shape : shapes) {
+            count += shape.getPrimitiveCount();
+        }
+        return count;
+    }
+
+    /**
+     * working state of a single update against the current tree
+     */
+    private class Pass {
+        final FlatKDTree source;
+        final int nodeCount;
+        final int[] data;
+        final double[] bounds;
+        // shape of every leaf slot, null once removed. Slots keep their primitive index.
+        final Shape3d[] shapes;
+        final int[] indices;
+        final int[] parent;
+        final boolean[] dirty;
+        final boolean[] membershipChanged;
+        final boolean[] rebuild;
+        final Map<Integer, PrimitiveList.Builder> addedToLeaf = new HashMap<>();
+
+        Pass(FlatKDTree source) {
+            this.source = source;
+            this.nodeCount = source.nodeCount;
+            this.data = source.nodeData;
+            this.bounds = source.nodeBounds.clone();
+            this.shapes = source.primitives.shapes.clone();
+            this.indices = source.primitives.indices;
+            this.parent = new int[nodeCount];
+            this.dirty = new boolean[nodeCount];
+            this.membershipChanged = new boolean[nodeCount];
+            this.rebuild = new boolean[nodeCount];
+        }
+
+        /**
+         * links every node to its parent and swaps moved shapes in, removed shapes out of their
+         * leaf slots
+         */
+        void replaceShapes(Map<Shape3d, Shape3d> moved, Set<Shape3d> removed) {
+            int found = 0;
+            int expected = countPrimitives(moved.keySet()) + countPrimitives(removed);
+            parent[0] = -1;
+            for (int node = 0; node < nodeCount; node++) {
+                int d = node * FlatKDTree.DATA_STRIDE;
+                if (!source.isLeaf(node)) {
+                    parent[node + 1] = node;
+                    parent[data[d]] = node;
+                    continue;
+                }
+                for (int slot = data[d], end = data[d] + data[d + 1]; slot < end; slot++) {
+                    Shape3d shape = shapes[slot];
+                    if (removed.contains(shape)) {
+                        shapes[slot] = null;
+                        membershipChanged[node] = true;
+                        dirty[node] = true;
+                        found++;
+                        continue;
+                    }
+                    Shape3d replacement = moved.get(shape);
+                    if (replacement != null) {
+                        shapes[slot] = replacement;
+                        dirty[node] = true;
+                        found++;
+                    }
+                }
+            }
+            Preconditions.checkArgument(found == expected, "moved or removed shape is not in the tree");
+        }
+
+        /**
+         * descends to the leaf whose box grows the least by taking a primitive of shape
+         */
+        void insert(Shape3d shape, int primitive) {
+            double[] box = new double[STRIDE];
+            shape.getPrimitiveBounds(primitive, box);
+            int node = 0;
+            while (!source.isLeaf(node)) {
+                int left = node + 1;
+                int right = data[node * FlatKDTree.DATA_STRIDE];
+                node = growth(left, box) <= growth(right, box) ? left : right;
+            }
+            addedToLeaf.computeIfAbsent(node, k -> new PrimitiveList.Builder(1)).add(shape, primitive);
+            membershipChanged[node] = true;
+            dirty[node] = true;
+        }
+
+        private double growth(int node, double[] box) {
+            double[] grown = box.clone();
+            union(grown, bounds, node * STRIDE);
+            return FlatKDTree.surfaceArea(grown, 0) - FlatKDTree.surfaceArea(bounds, node * STRIDE);
+        }
+
+        /**
+         * recomputes the bounds of dirty nodes bottom up. Parents always come before their
+         * children in depth first order so a reverse walk sees children first.
+         */
+        void refit() {
+            double[] box = new double[STRIDE];
+            double[] primitiveBox = new double[STRIDE];
+            for (int node = nodeCount - 1; node >= 0; node--) {
+                if (!dirty[node]) {
+                    continue;
+                }
+                PrimitiveBoundsTable.resetBounds(box);
+                if (source.isLeaf(node)) {
+                    PrimitiveList leafPrimitives = leafPrimitives(node);
+                    for (int i = 0; i < leafPrimitives.size(); i++) {
+                        leafPrimitives.getBounds(i, primitiveBox);
+                        union(box, primitiveBox, 0);
+                    }
+                } else {
+                    union(box, bounds, (node + 1) * STRIDE);
+                    union(box, bounds, data[node * FlatKDTree.DATA_STRIDE] * STRIDE);
+                }
+                if (box[0] > box[3]) {
+                    Arrays.fill(box, Double.NaN);
+                }
+                System.arraycopy(box, 0, bounds, node * STRIDE, STRIDE);
+                if (node > 0) {
+                    dirty[parent[node]] = true;
+                }
+            }
+        }
+
+        /**
+         * marks the topmost subtrees to rebuild, either because their quality degraded or
+         * because the shapes of a leaf changed
+         */
+        void markRebuilds(double threshold) {
+            int node = 0;
+            while (node < nodeCount) {
+                if (dirty[node] && (membershipChanged[node]
+                        || FlatKDTree.surfaceArea(bounds, node * STRIDE) > threshold * buildArea[node])) {
+                    rebuild[node] = true;
+                    node = subtreeEnd(node);
+                } else {
+                    node++;
+                }
+            }
+        }
+
+        /**
+         * index one past the last node of the subtree rooted at node
+         */
+        private int subtreeEnd(int node) {
+            while (!source.isLeaf(node)) {
+                node = data[node * FlatKDTree.DATA_STRIDE];
+            }
+            return node + 1;
+        }
+
+        private PrimitiveList leafPrimitives(int node) {
+            PrimitiveList.Builder builder = new PrimitiveList.Builder(data[node * FlatKDTree.DATA_STRIDE + 1]);
+            addLeafPrimitives(node, builder);
+            return builder.build();
+        }
+
+        private void addLeafPrimitives(int node, PrimitiveList.Builder builder) {
+            int d = node * FlatKDTree.DATA_STRIDE;
+            for (int slot = data[d], end = data[d] + data[d + 1]; slot < end; slot++) {
+                if (shapes[slot] != null) {
+                    builder.add(shapes[slot], indices[slot]);
+                }
+            }
+            PrimitiveList.Builder added = addedToLeaf.get(node);
+            if (added != null) {
+                builder.addAll(added.build());
+            }
+        }
+
+        /**
+         * writes the updated subtree rooted at node. Returns its index in the output.
+         */
+        int emit(int node, int depth, Output out) {
+            if (rebuild[node]) {
+                PrimitiveList.Builder builder = new PrimitiveList.Builder(16);
+                for (int n = node, end = subtreeEnd(node); n < end; n++) {
+                    if (source.isLeaf(n)) {
+                        addLeafPrimitives(n, builder);
+                    }
+                }
+                return out.appendFragment(buildFragment(builder.build()), depth);
+            }
+
+            int index = out.appendNode(bounds, node * STRIDE, buildArea[node], depth);
+            int d = node * FlatKDTree.DATA_STRIDE;
+            if (source.isLeaf(node)) {
+                int start = out.primitives.size();
+                for (int slot = data[d], end = data[d] + data[d + 1]; slot < end; slot++) {
+                    out.primitives.add(shapes[slot], indices[slot]);
+                }
+                out.setLeaf(index, start, data[d + 1]);
+                return index;
+            }
+            emit(node + 1, depth + 1, out);
+            int right = emit(data[d], depth + 1, out);
+            out.setInterior(index, right);
+            return index;
+        }
+    }
+
+    private FlatKDTree buildFragment(PrimitiveList primitives) {
+        if (primitives.size() == 0) {
+            double[] empty = new double[STRIDE];
+            Arrays.fill(empty, Double.NaN);
+            return new FlatKDTree(empty, new int[] {0, 0}, new PrimitiveList.Builder(0).build(), 0);
+        }
+        PrimitiveBoundsTable table = new PrimitiveBoundsTable(primitives);
+        int[] order = new int[primitives.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        KDNode root = fragmentConfig.getBuildMode().build(table, order, fragmentConfig);
+        return FlatKDTree.fromNodes(root, order, primitives);
+    }
+
+    /**
+     * growable arrays the updated tree is written into
+     */
+    private static class Output {
+        double[] bounds;
+        int[] data;
+        double[] buildArea;
+        final PrimitiveList.Builder primitives;
+        int nodeCount;
+        int maxDepth;
+
+        Output(int nodeCapacity, int primitiveCapacity) {
+            bounds = new double[nodeCapacity * STRIDE];
+            data = new int[nodeCapacity * FlatKDTree.DATA_STRIDE];
+            buildArea = new double[nodeCapacity];
+            primitives = new PrimitiveList.Builder(primitiveCapacity);
+        }
+
+        private void ensureCapacity(int nodes) {
+            if (nodes <= buildArea.length) {
+                return;
+            }
+            int capacity = Math.max(nodes, buildArea.length * 3 / 2);
+            bounds = Arrays.copyOf(bounds, capacity * STRIDE);
+            data = Arrays.copyOf(data, capacity * FlatKDTree.DATA_STRIDE);
+            buildArea = Arrays.copyOf(buildArea, capacity);
+        }
+
+        int appendNode(double[] fromBounds, int b, double area, int depth) {
+            ensureCapacity(nodeCount + 1);
+            int index = nodeCount++;
+            System.arraycopy(fromBounds, b, bounds, index * STRIDE, STRIDE);
+            buildArea[index] = area;
+            maxDepth = Math.max(maxDepth, depth);
+            return index;
+        }
+
+        void setLeaf(int index, int start, int count) {
+            data[index * FlatKDTree.DATA_STRIDE] = start;
+            data[index * FlatKDTree.DATA_STRIDE + 1] = count;
+        }
+
+        void setInterior(int index, int right) {
+            boolean rightIsLarger = FlatKDTree.surfaceArea(bounds, right * STRIDE)
+                    > FlatKDTree.surfaceArea(bounds, (index + 1) * STRIDE);
+            data[index * FlatKDTree.DATA_STRIDE] = right;
+            data[index * FlatKDTree.DATA_STRIDE + 1] = rightIsLarger ? FlatKDTree.INTERIOR_OCCLUDE_RIGHT_FIRST : FlatKDTree.INTERIOR;
+        }
+
+        /**
+         * copies a freshly built tree in as a subtree, shifting its node and primitive indices
+         */
+        int appendFragment(FlatKDTree fragment, int depth) {
+            int base = nodeCount;
+            int primitiveBase = primitives.size();
+            ensureCapacity(nodeCount + fragment.nodeCount);
+            System.arraycopy(fragment.nodeBounds, 0, bounds, base * STRIDE, fragment.nodeCount * STRIDE);
+            for (int i = 0; i < fragment.nodeCount; i++) {
+                int from = i * FlatKDTree.DATA_STRIDE;
+                int to = (base + i) * FlatKDTree.DATA_STRIDE;
+                boolean leaf = fragment.isLeaf(i);
+                data[to] = fragment.nodeData[from] + (leaf ? primitiveBase : base);
+                data[to + 1] = fragment.nodeData[from + 1];
+                buildArea[base + i] = fragment.getNodeSurfaceArea(i);
+            }
+            primitives.addAll(fragment.primitives);
+            nodeCount += fragment.nodeCount;
+            maxDepth = Math.max(maxDepth, depth + fragment.maxDepth);
+            return base;
+        }
+    }
+
+    /**
+     * grows box to include the box at offset b of from. Empty (NaN) boxes are skipped.
+     */
+    private static void union(double[] box, double[] from, int b) {
+        if (Double.isNaN(from[b])) {
+            return;
+        }
+        for (int axis = 0; axis < 3; axis++) {
+            box[axis] = Math.min(box[axis], from[b + axis]);
+            box[axis + 3] = Math.max(box[axis + 3], from[b + axis + 3]);
+        }
+    }
+}
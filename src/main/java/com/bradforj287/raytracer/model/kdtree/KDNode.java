@@ -1,15 +1,16 @@
 package com.bradforj287.raytracer.model.kdtree;
 
-import java.util.List;
 import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
 import com.bradforj287.raytracer.geometry.Ray3d;
-import com.bradforj287.raytracer.geometry.Shape3d;
 
 public class KDNode {
     private AxisAlignedBoundingBox3d boundingBox;
     private KDNode left;
     private KDNode right;
-    private List<Shape3d> shapes;
+
+    // range of the builder's primitive index array owned by this node
+    private int primitiveStart;
+    private int primitiveCount;
 
     public boolean isLeaf() {
         return left == null && right == null;
@@ -51,11 +52,16 @@ public class KDNode {
         this.right = right;
     }
 
-    public List<Shape3d> getShapes() {
-        return shapes;
+    public int getPrimitiveStart() {
+        return primitiveStart;
+    }
+
+    public int getPrimitiveCount() {
+        return primitiveCount;
     }
 
-    public void setShapes(List<Shape3d> shapes) {
-        this.shapes = shapes;
+    public void setPrimitiveRange(int primitiveStart, int primitiveCount) {
+        this.primitiveStart = primitiveStart;
+        this.primitiveCount = primitiveCount;
     }
 }
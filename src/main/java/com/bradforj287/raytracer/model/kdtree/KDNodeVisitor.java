@@ -1,5 +0,0 @@
-package com.bradforj287.raytracer.model.kdtree;
-
-public interface KDNodeVisitor {
-    void visit(KDNode node);
-}
@@ -1,283 +1,204 @@
 package com.bradforj287.raytracer.model.kdtree;
 
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Future;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import com.bradforj287.raytracer.Globals;
 import com.bradforj287.raytracer.geometry.*;
+import com.bradforj287.raytracer.model.Accelerator;
+import com.bradforj287.raytracer.model.RayPacket;
+import com.bradforj287.raytracer.model.SceneUpdate;
 import com.bradforj287.raytracer.model.ShapeVisitor;
-import com.bradforj287.raytracer.utils.ShapeBoundsQueue;
-import com.bradforj287.raytracer.utils.ShapeUtils;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 
-public class KDTree {
-    private KDNode root;
+public class KDTree implements Accelerator {
+    // swapped as a whole on update so queries in flight keep a consistent tree. Either a
+    // FlatKDTree, a QuantizedKDTree with node compression on, a StacklessKDTree, a BatchedKDTree
+    // or a LazyKDTree until its first update.
+    private volatile TreeTraversal tree;
     private List<Shape3d> shapes;
-
-    private int builtShapesCount;
+    private final KDTreeConfig config;
+    private IncrementalUpdater updater;
+    // loaded with the first batched tree
+    private TriangleBatchKernel batchKernel;
 
     public KDTree(List<Shape3d> shapes) {
+        this(shapes, new KDTreeConfig());
+    }
+
+    public KDTree(List<Shape3d> shapes, KDTreeConfig config) {
+        // quantized bounds are decoded relative to the parent, which a rope jump skips past
+        Preconditions.checkArgument(!config.isStacklessTraversal() || config.getNodeCompression() == NodeCompression.NONE,
+                "stackless traversal needs uncompressed nodes");
+        Preconditions.checkArgument(config.getLazyBuildThreshold() == 0
+                        || (config.getNodeCompression() == NodeCompression.NONE && !config.isStacklessTraversal()),
+                "lazy builds use plain nodes");
+        Preconditions.checkArgument(!config.isTriangleBatching() || (config.getNodeCompression() == NodeCompression.NONE
+                        && !config.isStacklessTraversal() && config.getLazyBuildThreshold() == 0),
+                "triangle batching needs plain nodes built up front");
         this.shapes = shapes;
+        this.config = config;
         init();
     }
 
     private void init() {
         System.out.println("building kd tree of " + shapes.size() + " shapes");
         Stopwatch sw = Stopwatch.createStarted();
-        root = buildNode(shapes);
-
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                System.out.println(String.format("built %s/%s    %s", builtShapesCount, shapes.size(), ((double) builtShapesCount / (double) shapes.size())));
-            }
-        }, 0, 5000);
 
-        // first populate tree to a maximum depth.
-        populateTree(root, 3);
-
-        // now repopulate each leaf node on a separate task
-        List<Future> futures = new ArrayList<>();
-        visitLeafNodes(node -> {
-            Future future = Globals.executorService.submit(() -> {
-                populateTree(node);
-            });
-            futures.add(future);
-        });
+        final PrimitiveList primitives = new PrimitiveList(shapes);
+        final PrimitiveBoundsTable boundsTable = new PrimitiveBoundsTable(primitives);
+        if (config.getLazyBuildThreshold() > 0) {
+            LazyKDTree lazyTree = LazyKDTree.build(primitives, boundsTable, config);
+            tree = lazyTree;
+            System.out.println("deferred " + lazyTree.getDeferredSubtreeCount() + " subtrees");
+            System.out.println("created tree in " + sw.elapsed(TimeUnit.MILLISECONDS) + " ms");
+            return;
+        }
 
-        futures.forEach(f -> {
-            try {
-                f.get();
-            } catch (Exception ex) {
-                throw new RuntimeException(ex);
+        final KDTreeCache cache = config.getCacheDirectory() == null ? null : new KDTreeCache(config.getCacheDirectory());
+        final String cacheKey = cache == null ? null : KDTreeCache.computeKey(boundsTable, config);
+        FlatKDTree flatTree = cache == null ? null : cache.load(cacheKey, primitives);
+        if (flatTree != null) {
+            System.out.println("loaded kd tree from cache");
+        } else {
+            flatTree = build(primitives, boundsTable);
+            if (cache != null) {
+                cache.store(cacheKey, flatTree);
             }
-        });
+        }
+        tree = toTraversal(flatTree);
 
         printKdTreeStats();
-        long elapsedSeconds = sw.elapsed(TimeUnit.SECONDS);
-        timer.cancel();
-        System.out.println("created tree in " + elapsedSeconds + " seconds");
+        long elapsedMillis = sw.elapsed(TimeUnit.MILLISECONDS);
+        System.out.println("created tree in " + elapsedMillis + " ms");
     }
 
-    private void printKdTreeStats() {
-        KDTreeStats stats = getCreationStats();
-        System.out.println("Num shapes: " + stats.getTotalShapes());
-        System.out.println("Max Depth: " + stats.getMaxDepth());
-        System.out.println("Num Leaf Nodes: " + stats.getNumLeafNoes());
-        System.out.println("Num Nodes: " + stats.getNumNodes());
-        System.out.println(stats.getLeafNodeSizeStats());
-    }
-
-    private KDNode buildNode(List<Shape3d> theShapes) {
-        if (theShapes.isEmpty()) {
-            return null;
+    private FlatKDTree build(PrimitiveList primitives, PrimitiveBoundsTable boundsTable) {
+        final int[] primitiveOrder = new int[primitives.size()];
+        for (int i = 0; i < primitiveOrder.length; i++) {
+            primitiveOrder[i] = i;
         }
-        AxisAlignedBoundingBox3d box = ShapeUtils.getBoundsForShapes(theShapes);
-        KDNode node = new KDNode();
-        node.setBoundingBox(box);
-        node.setShapes(theShapes);
-        return node;
-    }
+        KDNode root = config.getBuildMode().build(boundsTable, primitiveOrder, config);
 
-    private PotentialTreeSplit getBestSplitSah(final List<PotentialTreeSplit> splits) {
-        return splits.stream()
-                .min((a, b) -> a.getSahHeuristic().compareTo(b.getSahHeuristic()))
-                .get();
+        // linearize for traversal. The node graph is only needed while building.
+        return FlatKDTree.fromNodes(root, primitiveOrder, primitives);
     }
 
-    private List<KDNode> getLeafNodes() {
-        final List<KDNode> r = new ArrayList<>();
-        visitLeafNodes(node -> {
-            r.add(node);
-        });
-        return r;
-    }
-
-    private void visitLeafNodes(KDNodeVisitor visitor) {
-        visitLeafNodesHelper(this.root, visitor);
-    }
-
-    private void visitLeafNodesHelper(KDNode node, KDNodeVisitor visitor) {
-        if (node == null) {
-            return;
-        } else if (node.isLeaf()) {
-            visitor.visit(node);
-        } else {
-            visitLeafNodesHelper(node.getLeft(), visitor);
-            visitLeafNodesHelper(node.getRight(), visitor);
+    private TreeTraversal toTraversal(FlatKDTree flatTree) {
+        if (config.getNodeCompression() != NodeCompression.NONE) {
+            return QuantizedKDTree.fromFlatTree(flatTree, config.getNodeCompression());
         }
-    }
-
-    private PotentialTreeSplit getBestSplitOnAxisSah(final List<Shape3d> shapes, Axis axis) {
-        Preconditions.checkArgument(shapes.size() > 1);
-
-        List<Shape3d> sortedShapes = ShapeUtils.sortByAxis(shapes, axis);
-        ShapeBoundsQueue rhs = new ShapeBoundsQueue();
-        ShapeBoundsQueue lhs = new ShapeBoundsQueue();
-        rhs.addAll(sortedShapes);
-
-        double minSah = Double.MAX_VALUE;
-        int minSahLhsSize = 1;
-
-        while (rhs.size() > 1) {
-            lhs.add(rhs.remove());
-
-            double sah = lhs.getBoundingBox().getSurfaceArea() * lhs.size() + rhs.getBoundingBox().getSurfaceArea() * rhs.size();
-            if (sah < minSah) {
-                minSah = sah;
-                minSahLhsSize = lhs.size();
-            }
+        if (config.isStacklessTraversal()) {
+            return StacklessKDTree.fromFlatTree(flatTree);
         }
-
-        List<Shape3d> leftShapes = sortedShapes.subList(0, minSahLhsSize);
-        List<Shape3d> rightShapes = sortedShapes.subList(minSahLhsSize, sortedShapes.size());
-
-        return new PotentialTreeSplit(leftShapes, rightShapes);
-    }
-
-    private PotentialTreeSplit getBestSplitSahStrategy(final List<Shape3d> shapes) {
-        List<PotentialTreeSplit> potentialTreeSplits = new ArrayList<>();
-        potentialTreeSplits.add(getBestSplitOnAxisSah(shapes, Axis.X));
-        potentialTreeSplits.add(getBestSplitOnAxisSah(shapes, Axis.Y));
-        potentialTreeSplits.add(getBestSplitOnAxisSah(shapes, Axis.Z));
-        return getBestSplitSah(potentialTreeSplits);
-    }
-
-    private PotentialTreeSplit splitShapesByAxisPoint(final List<Shape3d> shapes, final Axis axis, double splitPoint) {
-        final String coord = axis.toCoordinateName();
-        List<Shape3d> left = new ArrayList<>();
-        List<Shape3d> right = new ArrayList<>();
-        List<Shape3d> equalShapes = new ArrayList<>();
-        for (Shape3d shape : shapes) {
-            Vector3d shapeMidpoint = shape.getCentroid();
-            double shapeCoord = shapeMidpoint.getCoordiateByName(coord);
-            if (shapeCoord == splitPoint) {
-                equalShapes.add(shape);
-            } else if (shapeCoord < splitPoint) {
-                left.add(shape);
-            } else {
-                right.add(shape);
+        if (config.isTriangleBatching()) {
+            if (batchKernel == null) {
+                batchKernel = TriangleBatchKernel.load();
+                System.out.println("batching triangles " + batchKernel.getWidth() + " at a time");
             }
+            return BatchedKDTree.fromFlatTree(flatTree, batchKernel);
         }
-        // add equal shapes to the list that is smaller.
-        if (left.size() < right.size()) {
-            left.addAll(equalShapes);
-        } else {
-            right.addAll(equalShapes);
-        }
-        return new PotentialTreeSplit(left, right);
+        return flatTree;
     }
 
-    private PotentialTreeSplit splitShapesByAxisAvgLongestAxis(final List<Shape3d> shapes) {
-        Axis longestAxis = ShapeUtils.getBoundsForShapes(shapes).getLongestAxis();
-        double midpoint = ShapeUtils.getAverageCenterCoordiate(longestAxis.toCoordinateName(), shapes);
-        return splitShapesByAxisPoint(shapes, longestAxis, midpoint);
+    private void printKdTreeStats() {
+        KDTreeStats stats = getCreationStats();
+        System.out.println("Num shapes: " + stats.getTotalShapes());
+        System.out.println("Max Depth: " + stats.getMaxDepth());
+        System.out.println("Num Leaf Nodes: " + stats.getNumLeafNoes());
+        System.out.println("Num Nodes: " + stats.getNumNodes());
+        System.out.println("SAH Cost: " + stats.getSahCost());
+        System.out.println(stats.getLeafNodeSizeStats());
     }
 
-    private void populateTree(KDNode node) {
-        populateTreeHelper(node, 0, null);
+    /**
+     * applies moved, added and removed shapes by refitting the tree and rebuilding only the
+     * subtrees that changed too much. See IncrementalUpdater.
+     */
+    public synchronized void update(Map<Shape3d, Shape3d> moved, Collection<Shape3d> added, Collection<Shape3d> removed) {
+        if (updater == null) {
+            // the updater keeps its own full precision tree to refit
+            updater = new IncrementalUpdater(tree.toFlatTree(), config);
+        }
+        tree = toTraversal(updater.update(moved, added, removed));
     }
 
-    private void populateTree(KDNode node, int maxDepth) {
-        populateTreeHelper(node, 0, maxDepth);
+    @Override
+    public void update(SceneUpdate update) {
+        update(update.getMoved(), update.getAdded(), update.getRemoved());
     }
 
-    private void populateTreeHelper(KDNode node, int currentDepth, Integer maxDepth) {
-        if (maxDepth != null && currentDepth >= maxDepth) {
-            return;
-        }
-        Preconditions.checkNotNull(node);
-        Preconditions.checkNotNull(node.getShapes());
-        Preconditions.checkArgument(!node.getShapes().isEmpty());
-
-        // base case #1 - min split
-        if (node.getShapes().size() <= 2) {
-            builtShapesCount += node.getShapes().size();
-            return;
-        }
-
-        // split shapes
-        PotentialTreeSplit optimal = getBestSplitSahStrategy(node.getShapes());
-
-        // base case #2 - if the split is empty we cant split */
-        if (optimal.isEmptySplit()) {
-            builtShapesCount += node.getShapes().size();
-            return;
-        }
-
-        // left node
-        KDNode leftNode = buildNode(optimal.getLeftShapes());
-
-        // right node
-        KDNode rightNode = buildNode(optimal.getRightShapes());
-
-        // current node
-        node.setShapes(null);
-        node.setLeft(leftNode);
-        node.setRight(rightNode);
-
-        //recurse
-        populateTreeHelper(leftNode, currentDepth + 1, maxDepth);
-        populateTreeHelper(rightNode, currentDepth + 1, maxDepth);
+    @Override
+    public long estimateMemoryBytes() {
+        return tree.getMemoryBytes();
     }
 
+    @Override
     public KdTreeQueryStats visitPossibleIntersections(final Ray3d ray, final ShapeVisitor visitor) {
         KdTreeQueryStats queryStats = new KdTreeQueryStats();
         queryStats.raysCast++;
-        visitPossibleMatchesHelper(root, ray, visitor, queryStats);
+        tree.visitPossibleIntersections(ray, visitor, queryStats);
         return queryStats;
     }
 
-    private void visitPossibleMatchesHelper(KDNode node, final Ray3d ray, final ShapeVisitor visitor, KdTreeQueryStats queryStats) {
-        queryStats.nodesVisited++;
-        if (node.isLeaf()) {
-            queryStats.shapesVisited += node.getShapes().size();
-            for (Shape3d shape : node.getShapes()) {
-                visitor.visit(shape);
-            }
-            return;
-        }
+    @Override
+    public ShapeHit closestHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        queryStats.raysCast++;
+        return tree.closestHit(ray, maxT, queryStats);
+    }
 
-        if (node.hasLeft() && node.intersectsBoundingBox(ray)) {
-            visitPossibleMatchesHelper(node.getLeft(), ray, visitor, queryStats);
-        }
+    @Override
+    public void closestHit(final RayPacket packet, final KdTreeQueryStats queryStats) {
+        queryStats.raysCast += packet.size();
+        tree.closestHit(packet, config.getPacketFallbackThreshold(), queryStats);
+    }
 
-        if (node.hasRight() && node.intersectsBoundingBox(ray)) {
-            visitPossibleMatchesHelper(node.getRight(), ray, visitor, queryStats);
-        }
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        queryStats.raysCast++;
+        return tree.anyHit(ray, maxT, queryStats);
+    }
+
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats, final HitRecord occluder) {
+        queryStats.raysCast++;
+        return tree.anyHit(ray, maxT, queryStats, occluder);
     }
 
+    @Override
     public AxisAlignedBoundingBox3d getBounds() {
-        return root.getBoundingBox();
+        return tree.getRootBounds();
     }
 
+    /**
+     * stats of the current tree. Compressed trees are measured with their decoded bounds, lazy
+     * trees are fully built first.
+     */
     public KDTreeStats getCreationStats() {
+        FlatKDTree flatTree = tree.toFlatTree();
         KDTreeStats stats = new KDTreeStats();
-        stats.setTotalShapes(this.shapes.size());
-        traverseCreationStats(this.root, stats, 0);
+        stats.setTotalShapes(flatTree.getPrimitiveCount());
+        traverseCreationStats(flatTree, 0, stats, 0);
         return stats;
     }
 
-    private void traverseCreationStats(KDNode node, KDTreeStats stats, int depth) {
-        if (node == null) {
-            return;
-        }
-
-        if (node.isLeaf()) {
-            stats.addLeaf();
-            stats.getLeafNodeSizeStats().addValue(node.getShapes().size());
-        }
-
+    private void traverseCreationStats(FlatKDTree flatTree, int node, KDTreeStats stats, int depth) {
         if (depth > stats.getMaxDepth()) {
             stats.setMaxDepth(depth);
         }
         stats.addNode();
-        traverseCreationStats(node.getLeft(), stats, depth + 1);
-        traverseCreationStats(node.getRight(), stats, depth + 1);
+
+        int d = node * FlatKDTree.DATA_STRIDE;
+        double relativeArea = flatTree.getNodeSurfaceArea(node) / flatTree.getNodeSurfaceArea(0);
+        if (flatTree.isLeaf(node)) {
+            stats.addLeaf();
+            stats.getLeafNodeSizeStats().addValue(flatTree.nodeData[d + 1]);
+            stats.addSahCost(relativeArea * flatTree.nodeData[d + 1]);
+            return;
+        }
+        stats.addSahCost(relativeArea);
+        traverseCreationStats(flatTree, node + 1, stats, depth + 1);
+        traverseCreationStats(flatTree, flatTree.nodeData[d], stats, depth + 1);
     }
 }
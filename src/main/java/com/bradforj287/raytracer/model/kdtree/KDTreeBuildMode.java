@@ -0,0 +1,26 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+/**
+ * How the nodes of a KDTree are built.
+ */
+public enum KDTreeBuildMode {
+    // binned surface area heuristic, slower to build but the fastest to trace
+    SAH_BINNED,
+    // sorted by morton code and split on its bits, builds in near linear time
+    LBVH;
+
+    /**
+     * builds the nodes over every primitive of table, partitioning order in place so that each
+     * leaf owns a contiguous range of it in depth first order
+     */
+    public KDNode build(PrimitiveBoundsTable table, int[] order, KDTreeConfig config) {
+        switch (this) {
+            case SAH_BINNED:
+                return new BinnedSahBuilder(table, order, config).build();
+            case LBVH:
+                return new LbvhBuilder(table, order, config).build();
+            default:
+                throw new IllegalStateException("unknown build mode " + this);
+        }
+    }
+}
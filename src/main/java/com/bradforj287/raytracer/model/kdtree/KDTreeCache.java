@@ -0,0 +1,240 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * On disk cache of built trees. A tree is stored in a versioned binary file named after a hash of
+ * everything the builder consumes: the bounds and centroid of every primitive and the build
+ * settings. Files are read back through a memory mapping.
+ *
+ * A file that fails any check on load (magic, version, key, sizes or checksum) is deleted and
+ * treated as a miss so the tree gets rebuilt and stored again.
+ *
+ * The directory is kept under a size limit: after every store the least recently used trees are
+ * deleted until the files fit. Loading a tree marks it as used.
+ *
+ * Layout, little endian:
+ * magic, version, key length, key bytes, node count, primitive count, max depth,
+ * node bounds (doubles), node data (ints), primitive order (ints), crc32 of everything before it.
+ */
+public class KDTreeCache {
+    private static final int MAGIC = 0x4B445452; // "KDTR"
+
+    // bump whenever the flat tree layout or the meaning of any stored field changes
+    static final int FORMAT_VERSION = 1;
+
+    public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    private final File directory;
+    private final long maxBytes;
+
+    public KDTreeCache(File directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    public KDTreeCache(File directory, long maxBytes) {
+        Preconditions.checkNotNull(directory);
+        Preconditions.checkArgument(maxBytes > 0);
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * hash of the builder input. Two scenes with the same key build identical trees.
+     */
+    public static String computeKey(PrimitiveBoundsTable table, KDTreeConfig config) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putInt(FORMAT_VERSION);
+        hasher.putInt(config.getSahBinCount());
+        hasher.putInt(config.getMaxLeafSize());
+        hasher.putInt(config.getBuildMode().ordinal());
+        hasher.putInt(config.getTreeletOptimizationPasses());
+        hasher.putInt(table.size());
+        for (double d : table.bounds) {
+            hasher.putDouble(d);
+        }
+        for (double d : table.centroids) {
+            hasher.putDouble(d);
+        }
+        return hasher.hash().toString();
+    }
+
+    private File fileForKey(String key) {
+        return new File(directory, "kdtree-" + key + ".bin");
+    }
+
+    /**
+     * loads the tree stored under key, mapping its primitive order onto primitives. Returns null if there
+     * is no usable cache entry.
+     */
+    public FlatKDTree load(String key, PrimitiveList primitives) {
+        File file = fileForKey(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            FlatKDTree tree = read(buffer, key, primitives);
+            if (tree == null) {
+                System.out.println("discarding stale or corrupt kd tree cache file " + file);
+                file.delete();
+            } else {
+                file.setLastModified(System.currentTimeMillis());
+            }
+            return tree;
+        } catch (IOException | RuntimeException ex) {
+            System.out.println("discarding unreadable kd tree cache file " + file + ": " + ex);
+            file.delete();
+            return null;
+        }
+    }
+
+    private static FlatKDTree read(ByteBuffer buffer, String key, PrimitiveList primitives) {
+        if (buffer.limit() < 4 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            return null;
+        }
+        int keyLength = buffer.getInt();
+        if (keyLength < 0 || keyLength > buffer.remaining()) {
+            return null;
+        }
+        byte[] storedKey = new byte[keyLength];
+        buffer.get(storedKey);
+        if (!key.equals(new String(storedKey, StandardCharsets.US_ASCII))) {
+            return null;
+        }
+
+        int nodeCount = buffer.getInt();
+        int primitiveCount = buffer.getInt();
+        int maxDepth = buffer.getInt();
+        if (primitiveCount != primitives.size() || nodeCount <= 0) {
+            return null;
+        }
+        long expectedSize = (long) buffer.position()
+                + (long) nodeCount * FlatKDTree.BOUNDS_STRIDE * 8
+                + (long) nodeCount * FlatKDTree.DATA_STRIDE * 4
+                + (long) primitiveCount * 4
+                + 8;
+        if (buffer.limit() != expectedSize) {
+            return null;
+        }
+
+        // checksum everything before the trailing crc
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(0);
+        payload.limit((int) expectedSize - 8);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer tail = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (crc.getValue() != tail.getLong((int) expectedSize - 8)) {
+            return null;
+        }
+
+        double[] nodeBounds = new double[nodeCount * FlatKDTree.BOUNDS_STRIDE];
+        int[] nodeData = new int[nodeCount * FlatKDTree.DATA_STRIDE];
+        int[] primitiveOrder = new int[primitiveCount];
+        buffer.asDoubleBuffer().get(nodeBounds);
+        buffer.position(buffer.position() + nodeBounds.length * 8);
+        buffer.asIntBuffer().get(nodeData);
+        buffer.position(buffer.position() + nodeData.length * 4);
+        buffer.asIntBuffer().get(primitiveOrder);
+
+        for (int p : primitiveOrder) {
+            if (p < 0 || p >= primitiveCount) {
+                return null;
+            }
+        }
+        return new FlatKDTree(nodeBounds, nodeData, primitiveOrder, primitives, maxDepth);
+    }
+
+    /**
+     * stores the tree under key. The file is written next to its final location and moved into
+     * place so readers never see a partial file. Failures are logged and otherwise ignored.
+     */
+    public void store(String key, FlatKDTree tree) {
+        File file = fileForKey(key);
+        Path temp = null;
+        try {
+            Files.createDirectories(directory.toPath());
+            temp = Files.createTempFile(directory.toPath(), "kdtree-", ".tmp");
+
+            byte[] keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+            long size = 4 * 6 + keyBytes.length
+                    + (long) tree.nodeBounds.length * 8
+                    + (long) tree.nodeData.length * 4
+                    + (long) tree.primitiveOrder.length * 4
+                    + 8;
+            Preconditions.checkState(size < Integer.MAX_VALUE, "tree too large to cache");
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(MAGIC);
+                buffer.putInt(FORMAT_VERSION);
+                buffer.putInt(keyBytes.length);
+                buffer.put(keyBytes);
+                buffer.putInt(tree.nodeCount);
+                buffer.putInt(tree.primitiveOrder.length);
+                buffer.putInt(tree.maxDepth);
+                buffer.asDoubleBuffer().put(tree.nodeBounds);
+                buffer.position(buffer.position() + tree.nodeBounds.length * 8);
+                buffer.asIntBuffer().put(tree.nodeData);
+                buffer.position(buffer.position() + tree.nodeData.length * 4);
+                buffer.asIntBuffer().put(tree.primitiveOrder);
+                buffer.position(buffer.position() + tree.primitiveOrder.length * 4);
+
+                ByteBuffer payload = buffer.duplicate();
+                payload.flip();
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                buffer.putLong(crc.getValue());
+                buffer.force();
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict();
+        } catch (IOException | RuntimeException ex) {
+            System.out.println("failed to write kd tree cache file " + file + ": " + ex);
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+        }
+    }
+
+    /**
+     * deletes the least recently used trees until the cached files take at most maxBytes
+     */
+    private void evict() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("kdtree-") && name.endsWith(".bin"));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length && total > maxBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                System.out.println("evicted kd tree cache file " + files[i]);
+                total -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import java.io.File;
+import com.google.common.base.Preconditions;
+
+/**
+ * Build settings for a KDTree.
+ */
+public class KDTreeConfig {
+    private int sahBinCount = 32;
+    private int maxLeafSize = 2;
+    private int parallelBuildCutoff = 4096;
+    private int parallelBinningCutoff = 1 << 15;
+    private int packetFallbackThreshold = 4;
+    private BuildProgressListener progressListener = new ConsoleProgressListener();
+    private File cacheDirectory;
+    private double refitRebuildThreshold = 2.0;
+    private NodeCompression nodeCompression = NodeCompression.NONE;
+    private KDTreeBuildMode buildMode = KDTreeBuildMode.SAH_BINNED;
+    private int treeletOptimizationPasses = 1;
+    private boolean stacklessTraversal = false;
+    private int lazyBuildThreshold = 0;
+    private boolean triangleBatching = false;
+
+    public KDTreeConfig() {
+    }
+
+    /**
+     * copy of other
+     */
+    public KDTreeConfig(KDTreeConfig other) {
+        this.sahBinCount = other.sahBinCount;
+        this.maxLeafSize = other.maxLeafSize;
+        this.parallelBuildCutoff = other.parallelBuildCutoff;
+        this.parallelBinningCutoff = other.parallelBinningCutoff;
+        this.packetFallbackThreshold = other.packetFallbackThreshold;
+        this.progressListener = other.progressListener;
+        this.cacheDirectory = other.cacheDirectory;
+        this.refitRebuildThreshold = other.refitRebuildThreshold;
+        this.nodeCompression = other.nodeCompression;
+        this.buildMode = other.buildMode;
+        this.treeletOptimizationPasses = other.treeletOptimizationPasses;
+        this.stacklessTraversal = other.stacklessTraversal;
+        this.lazyBuildThreshold = other.lazyBuildThreshold;
+        this.triangleBatching = other.triangleBatching;
+    }
+
+    public int getSahBinCount() {
+        return sahBinCount;
+    }
+
+    public void setSahBinCount(int sahBinCount) {
+        Preconditions.checkArgument(sahBinCount >= 2);
+        this.sahBinCount = sahBinCount;
+    }
+
+    public int getMaxLeafSize() {
+        return maxLeafSize;
+    }
+
+    public void setMaxLeafSize(int maxLeafSize) {
+        Preconditions.checkArgument(maxLeafSize >= 1);
+        this.maxLeafSize = maxLeafSize;
+    }
+
+    public int getParallelBuildCutoff() {
+        return parallelBuildCutoff;
+    }
+
+    /**
+     * subtrees with more primitives than this are built as separate fork join tasks
+     */
+    public void setParallelBuildCutoff(int parallelBuildCutoff) {
+        Preconditions.checkArgument(parallelBuildCutoff >= 1);
+        this.parallelBuildCutoff = parallelBuildCutoff;
+    }
+
+    public int getParallelBinningCutoff() {
+        return parallelBinningCutoff;
+    }
+
+    /**
+     * nodes with more primitives than this evaluate their SAH bins in parallel
+     */
+    public void setParallelBinningCutoff(int parallelBinningCutoff) {
+        Preconditions.checkArgument(parallelBinningCutoff >= 1);
+        this.parallelBinningCutoff = parallelBinningCutoff;
+    }
+
+    public BuildProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    public void setProgressListener(BuildProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public int getPacketFallbackThreshold() {
+        return packetFallbackThreshold;
+    }
+
+    /**
+     * ray packets switch to single ray traversal for a subtree once fewer rays than this are
+     * still active in it
+     */
+    public void setPacketFallbackThreshold(int packetFallbackThreshold) {
+        Preconditions.checkArgument(packetFallbackThreshold >= 1);
+        this.packetFallbackThreshold = packetFallbackThreshold;
+    }
+
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * directory built trees are cached in and reloaded from. Null disables the cache.
+     */
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public double getRefitRebuildThreshold() {
+        return refitRebuildThreshold;
+    }
+
+    /**
+     * when updating a dynamic scene, a subtree whose refit surface area exceeds this multiple of
+     * its area when built is rebuilt instead of refit
+     */
+    public void setRefitRebuildThreshold(double refitRebuildThreshold) {
+        Preconditions.checkArgument(refitRebuildThreshold >= 1);
+        this.refitRebuildThreshold = refitRebuildThreshold;
+    }
+
+    public NodeCompression getNodeCompression() {
+        return nodeCompression;
+    }
+
+    /**
+     * stores node bounds quantized relative to their parent to save memory at some traversal cost
+     */
+    public void setNodeCompression(NodeCompression nodeCompression) {
+        Preconditions.checkNotNull(nodeCompression);
+        this.nodeCompression = nodeCompression;
+    }
+
+    public KDTreeBuildMode getBuildMode() {
+        return buildMode;
+    }
+
+    public void setBuildMode(KDTreeBuildMode buildMode) {
+        Preconditions.checkNotNull(buildMode);
+        this.buildMode = buildMode;
+    }
+
+    public int getTreeletOptimizationPasses() {
+        return treeletOptimizationPasses;
+    }
+
+    /**
+     * number of treelet restructuring passes run over an LBVH build to recover SAH quality. Zero
+     * keeps the plain morton code hierarchy.
+     */
+    public void setTreeletOptimizationPasses(int treeletOptimizationPasses) {
+        Preconditions.checkArgument(treeletOptimizationPasses >= 0);
+        this.treeletOptimizationPasses = treeletOptimizationPasses;
+    }
+
+    public boolean isStacklessTraversal() {
+        return stacklessTraversal;
+    }
+
+    /**
+     * traverses with skip ropes instead of a stack, see StacklessKDTree. Requires node
+     * compression to be off.
+     */
+    public void setStacklessTraversal(boolean stacklessTraversal) {
+        this.stacklessTraversal = stacklessTraversal;
+    }
+
+    public int getLazyBuildThreshold() {
+        return lazyBuildThreshold;
+    }
+
+    /**
+     * subtrees of at most this many primitives are only built once a ray first enters them, see
+     * LazyKDTree. Zero builds the whole tree up front. Lazy trees are not cached and are fully
+     * built by the first update.
+     */
+    public void setLazyBuildThreshold(int lazyBuildThreshold) {
+        Preconditions.checkArgument(lazyBuildThreshold >= 0);
+        this.lazyBuildThreshold = lazyBuildThreshold;
+    }
+
+    public boolean isTriangleBatching() {
+        return triangleBatching;
+    }
+
+    /**
+     * tests the triangles of each leaf together, see BatchedKDTree. Uses SIMD when built with
+     * the vector profile and run with the jdk.incubator.vector module. Requires plain nodes and
+     * a tree that is not built lazily.
+     */
+    public void setTriangleBatching(boolean triangleBatching) {
+        this.triangleBatching = triangleBatching;
+    }
+}
@@ -7,6 +7,7 @@ public class KDTreeStats {
     private int numNodes = 0;
     private int numLeafNoes = 0;
     private int totalShapes;
+    private double sahCost = 0;
     private DescriptiveStatistics leafNodeSizeStats = new DescriptiveStatistics();
 
 
@@ -18,6 +19,18 @@ public class KDTreeStats {
         this.numNodes++;
     }
 
+    /**
+     * adds the cost of a node to the SAH cost of the tree. Node surface areas are expected to be
+     * relative to the root, interior nodes have a traversal cost of one and leaves cost one per shape.
+     */
+    public void addSahCost(double cost) {
+        this.sahCost += cost;
+    }
+
+    public double getSahCost() {
+        return sahCost;
+    }
+
     public int getMaxDepth() {
         return maxDepth;
     }
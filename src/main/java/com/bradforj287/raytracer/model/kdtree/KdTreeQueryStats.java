@@ -4,6 +4,11 @@ public class KdTreeQueryStats {
     long nodesVisited;
     long shapesVisited;
     long raysCast;
+    // secondary rays the tracer dropped for contributing too little
+    long raysTerminated;
+    // shadow rays answered by the occluder cache, and those that needed a traversal
+    long occluderCacheHits;
+    long occluderCacheMisses;
 
     public long getNodesVisited() {
         return nodesVisited;
@@ -29,9 +34,68 @@ public class KdTreeQueryStats {
         this.raysCast = raysCast;
     }
 
+    public long getRaysTerminated() {
+        return raysTerminated;
+    }
+
+    public void setRaysTerminated(long raysTerminated) {
+        this.raysTerminated = raysTerminated;
+    }
+
+    /**
+     * counts one dropped ray, for tracers outside this package
+     */
+    public void rayTerminated() {
+        raysTerminated++;
+    }
+
+    public long getOccluderCacheHits() {
+        return occluderCacheHits;
+    }
+
+    public void setOccluderCacheHits(long occluderCacheHits) {
+        this.occluderCacheHits = occluderCacheHits;
+    }
+
+    public long getOccluderCacheMisses() {
+        return occluderCacheMisses;
+    }
+
+    public void setOccluderCacheMisses(long occluderCacheMisses) {
+        this.occluderCacheMisses = occluderCacheMisses;
+    }
+
+    /**
+     * share of shadow rays the occluder cache answered, 0 if it wasn't used
+     */
+    public double getOccluderCacheHitRate() {
+        long lookups = occluderCacheHits + occluderCacheMisses;
+        return lookups == 0 ? 0 : (double) occluderCacheHits / lookups;
+    }
+
+    public void occluderCacheHit() {
+        occluderCacheHits++;
+    }
+
+    public void occluderCacheMiss() {
+        occluderCacheMisses++;
+    }
+
+    /**
+     * adds the counts of one query, for accelerators outside this package
+     */
+    public void add(long nodesVisited, long shapesVisited, long raysCast) {
+        this.nodesVisited += nodesVisited;
+        this.shapesVisited += shapesVisited;
+        this.raysCast += raysCast;
+    }
+
     public void add(KdTreeQueryStats s) {
         this.nodesVisited += s.nodesVisited;
         this.shapesVisited += s.shapesVisited;
         this.raysCast += s.raysCast;
+        this.raysTerminated += s.raysTerminated;
+        this.occluderCacheHits += s.occluderCacheHits;
+        this.occluderCacheMisses += s.occluderCacheMisses;
     }
 }
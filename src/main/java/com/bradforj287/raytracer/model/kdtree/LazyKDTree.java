@@ -0,0 +1,409 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.HitRecord;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.geometry.Vector3d;
+import com.bradforj287.raytracer.model.RayPacket;
+import com.bradforj287.raytracer.model.ShapeVisitor;
+import com.google.common.base.Preconditions;
+
+/**
+ * A KD tree built on demand. Only the top of the tree is built up front, down to leaves of at
+ * most the lazy build threshold. Those leaves stay unsplit until a ray first enters one, which
+ * then builds a subtree over its primitives. Each subtree is built exactly once, concurrent rays
+ * entering the same leaf wait for the first one to finish, so geometry no ray reaches is never
+ * paid for.
+ *
+ * toFlatTree builds every remaining subtree and splices them into one FlatKDTree.
+ */
+public class LazyKDTree implements TreeTraversal {
+    private final FlatKDTree top;
+    private final PrimitiveList primitives;
+    private final KDTreeConfig subtreeConfig;
+
+    // slot of each deferred leaf, -1 for other nodes
+    private final int[] lazySlot;
+    private final int[] slotNode;
+    private final Object[] slotLocks;
+    private final AtomicReferenceArray<FlatKDTree> subtrees;
+    private final AtomicInteger builtSubtrees = new AtomicInteger();
+
+    private volatile FlatKDTree flatTree;
+
+    private LazyKDTree(FlatKDTree top, PrimitiveList primitives, KDTreeConfig config) {
+        this.top = top;
+        this.primitives = primitives;
+
+        // subtrees are built on ray tracing threads without progress output
+        subtreeConfig = new KDTreeConfig(config);
+        subtreeConfig.setProgressListener(null);
+
+        lazySlot = new int[top.nodeCount];
+        int slots = 0;
+        for (int node = 0; node < top.nodeCount; node++) {
+            int count = top.nodeData[node * FlatKDTree.DATA_STRIDE + 1];
+            lazySlot[node] = count > config.getMaxLeafSize() ? slots++ : -1;
+        }
+        slotNode = new int[slots];
+        slotLocks = new Object[slots];
+        for (int node = 0; node < top.nodeCount; node++) {
+            if (lazySlot[node] >= 0) {
+                slotNode[lazySlot[node]] = node;
+                slotLocks[lazySlot[node]] = new Object();
+            }
+        }
+        subtrees = new AtomicReferenceArray<>(slots);
+    }
+
+    /**
+     * builds the top of the tree, leaving leaves of up to config.getLazyBuildThreshold()
+     * primitives to be built on demand
+     */
+    public static LazyKDTree build(PrimitiveList primitives, PrimitiveBoundsTable boundsTable, KDTreeConfig config) {
+        Preconditions.checkArgument(config.getLazyBuildThreshold() > 0);
+        KDTreeConfig topConfig = new KDTreeConfig(config);
+        topConfig.setMaxLeafSize(Math.max(config.getMaxLeafSize(), config.getLazyBuildThreshold()));
+
+        int[] primitiveOrder = new int[primitives.size()];
+        for (int i = 0; i < primitiveOrder.length; i++) {
+            primitiveOrder[i] = i;
+        }
+        KDNode root = config.getBuildMode().build(boundsTable, primitiveOrder, topConfig);
+        return new LazyKDTree(FlatKDTree.fromNodes(root, primitiveOrder, primitives), primitives, config);
+    }
+
+    public int getDeferredSubtreeCount() {
+        return slotNode.length;
+    }
+
+    public int getBuiltSubtreeCount() {
+        return builtSubtrees.get();
+    }
+
+    /**
+     * the subtree of a deferred leaf, built by the first caller to get here
+     */
+    private FlatKDTree subtree(int slot) {
+        FlatKDTree subtree = subtrees.get(slot);
+        if (subtree != null) {
+            return subtree;
+        }
+        synchronized (slotLocks[slot]) {
+            subtree = subtrees.get(slot);
+            if (subtree == null) {
+                int d = slotNode[slot] * FlatKDTree.DATA_STRIDE;
+                PrimitiveList leafPrimitives = top.primitives.subList(top.nodeData[d], top.nodeData[d] + top.nodeData[d + 1]);
+                int[] order = new int[leafPrimitives.size()];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = i;
+                }
+                KDNode root = subtreeConfig.getBuildMode().build(new PrimitiveBoundsTable(leafPrimitives), order, subtreeConfig);
+                subtree = FlatKDTree.fromNodes(root, order, leafPrimitives);
+                subtrees.set(slot, subtree);
+                builtSubtrees.incrementAndGet();
+            }
+            return subtree;
+        }
+    }
+
+    @Override
+    public void visitPossibleIntersections(final Ray3d ray, final ShapeVisitor visitor, final KdTreeQueryStats queryStats) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+
+        final int[] data = top.nodeData;
+        final int[] stack = new int[top.maxDepth + 1];
+        int stackSize = 0;
+        int node = 0;
+
+        while (true) {
+            queryStats.nodesVisited++;
+            if (top.intersectNode(node, ox, oy, oz, ix, iy, iz) != Double.POSITIVE_INFINITY) {
+                int d = node * FlatKDTree.DATA_STRIDE;
+                int count = data[d + 1];
+                if (count < 0) {
+                    stack[stackSize++] = data[d];
+                    node = node + 1;
+                    continue;
+                }
+                if (lazySlot[node] >= 0) {
+                    subtree(lazySlot[node]).visitPossibleIntersections(ray, visitor, queryStats);
+                } else {
+                    queryStats.shapesVisited += count;
+                    for (int i = data[d], end = data[d] + count; i < end; i++) {
+                        top.primitives.visit(i, visitor);
+                    }
+                }
+            }
+            if (stackSize == 0) {
+                return;
+            }
+            node = stack[--stackSize];
+        }
+    }
+
+    /**
+     * nearest child first closest hit search like FlatKDTree.closestHit, continuing into the
+     * subtree of every deferred leaf it reaches
+     */
+    @Override
+    public ShapeHit closestHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+
+        final int[] data = top.nodeData;
+        final int[] stack = new int[top.maxDepth + 1];
+        final double[] stackEntry = new double[top.maxDepth + 1];
+        int stackSize = 0;
+
+        double bestT = maxT;
+        final HitRecord record = new HitRecord(maxT);
+
+        int node = 0;
+        double entry = top.intersectNode(0, ox, oy, oz, ix, iy, iz);
+        if (entry > bestT) {
+            return null;
+        }
+
+        while (true) {
+            queryStats.nodesVisited++;
+            int d = node * FlatKDTree.DATA_STRIDE;
+            int count = data[d + 1];
+            if (count < 0) {
+                int left = node + 1;
+                int right = data[d];
+                double leftEntry = top.intersectNode(left, ox, oy, oz, ix, iy, iz);
+                double rightEntry = top.intersectNode(right, ox, oy, oz, ix, iy, iz);
+                boolean hitLeft = leftEntry <= bestT;
+                boolean hitRight = rightEntry <= bestT;
+                if (hitLeft && hitRight) {
+                    if (rightEntry < leftEntry) {
+                        stack[stackSize] = left;
+                        stackEntry[stackSize++] = leftEntry;
+                        node = right;
+                    } else {
+                        stack[stackSize] = right;
+                        stackEntry[stackSize++] = rightEntry;
+                        node = left;
+                    }
+                    continue;
+                } else if (hitLeft) {
+                    node = left;
+                    continue;
+                } else if (hitRight) {
+                    node = right;
+                    continue;
+                }
+            } else if (lazySlot[node] >= 0) {
+                ShapeHit hit = subtree(lazySlot[node]).closestHit(ray, bestT, queryStats);
+                if (hit != null && hit.getT() < bestT) {
+                    record.set(hit, hit.getHitShape(), -1);
+                    bestT = hit.getT();
+                }
+            } else {
+                queryStats.shapesVisited += count;
+                for (int i = data[d], end = data[d] + count; i < end; i++) {
+                    if (top.primitives.intersect(i, ray, record, queryStats)) {
+                        bestT = record.getT();
+                    }
+                }
+            }
+
+            do {
+                if (stackSize == 0) {
+                    return record.toShapeHit();
+                }
+                node = stack[--stackSize];
+                entry = stackEntry[stackSize];
+            } while (entry > bestT);
+        }
+    }
+
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        return anyHit(ray, maxT, queryStats, null);
+    }
+
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats, final HitRecord occluder) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+
+        if (top.intersectNode(0, ox, oy, oz, ix, iy, iz) > maxT) {
+            return false;
+        }
+
+        final int[] data = top.nodeData;
+        final int[] stack = new int[top.maxDepth + 1];
+        int stackSize = 0;
+        int node = 0;
+
+        while (true) {
+            queryStats.nodesVisited++;
+            int d = node * FlatKDTree.DATA_STRIDE;
+            int count = data[d + 1];
+            if (count < 0) {
+                int first = node + 1;
+                int second = data[d];
+                if (count == FlatKDTree.INTERIOR_OCCLUDE_RIGHT_FIRST) {
+                    first = second;
+                    second = node + 1;
+                }
+                boolean hitFirst = top.intersectNode(first, ox, oy, oz, ix, iy, iz) <= maxT;
+                boolean hitSecond = top.intersectNode(second, ox, oy, oz, ix, iy, iz) <= maxT;
+                if (hitFirst) {
+                    if (hitSecond) {
+                        stack[stackSize++] = second;
+                    }
+                    node = first;
+                    continue;
+                } else if (hitSecond) {
+                    node = second;
+                    continue;
+                }
+            } else if (lazySlot[node] >= 0) {
+                if (subtree(lazySlot[node]).anyHit(ray, maxT, queryStats, occluder)) {
+                    return true;
+                }
+            } else {
+                queryStats.shapesVisited += count;
+                for (int i = data[d], end = data[d] + count; i < end; i++) {
+                    if (top.primitives.isOccluding(i, ray, maxT, queryStats)) {
+                        if (occluder != null) {
+                            occluder.set(maxT, top.primitives.getShape(i), top.primitives.getIndex(i));
+                        }
+                        return true;
+                    }
+                }
+            }
+
+            if (stackSize == 0) {
+                return false;
+            }
+            node = stack[--stackSize];
+        }
+    }
+
+    /**
+     * packets are traced one ray at a time
+     */
+    @Override
+    public void closestHit(final RayPacket packet, final int fallbackThreshold, final KdTreeQueryStats queryStats) {
+        for (int i = 0; i < packet.size(); i++) {
+            ShapeHit hit = closestHit(packet.getRay(i), packet.tMax[i], queryStats);
+            if (hit != null) {
+                packet.setHit(i, hit);
+            }
+        }
+    }
+
+    @Override
+    public AxisAlignedBoundingBox3d getRootBounds() {
+        return top.getRootBounds();
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        long bytes = top.getMemoryBytes() + 4L * lazySlot.length;
+        for (int slot = 0; slot < slotNode.length; slot++) {
+            FlatKDTree subtree = subtrees.get(slot);
+            if (subtree != null) {
+                bytes += subtree.getMemoryBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * builds every deferred subtree and splices them into the top of the tree
+     */
+    @Override
+    public FlatKDTree toFlatTree() {
+        FlatKDTree result = flatTree;
+        if (result != null) {
+            return result;
+        }
+        int nodeCount = top.nodeCount;
+        for (int slot = 0; slot < slotNode.length; slot++) {
+            nodeCount += subtree(slot).nodeCount - 1;
+        }
+        Splice splice = new Splice(nodeCount);
+        splice.writeTop(0, 0);
+        result = new FlatKDTree(splice.bounds, splice.data, splice.primitiveOrder, primitives, splice.maxDepth);
+        flatTree = result;
+        return result;
+    }
+
+    private class Splice {
+        final double[] bounds;
+        final int[] data;
+        final int[] primitiveOrder = Arrays.copyOf(top.primitiveOrder, top.primitiveOrder.length);
+        int nodeCount;
+        int maxDepth;
+
+        Splice(int nodeCount) {
+            bounds = new double[nodeCount * FlatKDTree.BOUNDS_STRIDE];
+            data = new int[nodeCount * FlatKDTree.DATA_STRIDE];
+        }
+
+        /**
+         * copies a node of the top tree and its subtree, writing deferred leaves as their built
+         * subtree. Leaves keep their primitive range, a subtree only reorders inside it.
+         */
+        void writeTop(int node, int depth) {
+            int index = nodeCount;
+            int slot = lazySlot[node];
+            if (slot >= 0) {
+                int first = top.nodeData[node * FlatKDTree.DATA_STRIDE];
+                FlatKDTree subtree = subtree(slot);
+                for (int i = 0; i < subtree.primitiveOrder.length; i++) {
+                    primitiveOrder[first + i] = top.primitiveOrder[first + subtree.primitiveOrder[i]];
+                }
+                writeSubtree(subtree, 0, first, depth);
+                return;
+            }
+            copyNode(top, node, 0, depth);
+            if (!top.isLeaf(node)) {
+                writeTop(node + 1, depth + 1);
+                data[index * FlatKDTree.DATA_STRIDE] = nodeCount;
+                writeTop(top.nodeData[node * FlatKDTree.DATA_STRIDE], depth + 1);
+            }
+        }
+
+        void writeSubtree(FlatKDTree subtree, int node, int primitiveOffset, int depth) {
+            int index = nodeCount;
+            copyNode(subtree, node, primitiveOffset, depth);
+            if (!subtree.isLeaf(node)) {
+                writeSubtree(subtree, node + 1, primitiveOffset, depth + 1);
+                data[index * FlatKDTree.DATA_STRIDE] = nodeCount;
+                writeSubtree(subtree, subtree.nodeData[node * FlatKDTree.DATA_STRIDE], primitiveOffset, depth + 1);
+            }
+        }
+
+        /**
+         * appends node of tree. Interior right child indices are filled in by the caller.
+         */
+        void copyNode(FlatKDTree tree, int node, int primitiveOffset, int depth) {
+            int index = nodeCount++;
+            maxDepth = Math.max(maxDepth, depth);
+            System.arraycopy(tree.nodeBounds, node * FlatKDTree.BOUNDS_STRIDE, bounds, index * FlatKDTree.BOUNDS_STRIDE, FlatKDTree.BOUNDS_STRIDE);
+            int from = node * FlatKDTree.DATA_STRIDE;
+            int to = index * FlatKDTree.DATA_STRIDE;
+            data[to + 1] = tree.nodeData[from + 1];
+            if (tree.isLeaf(node)) {
+                data[to] = tree.nodeData[from] + primitiveOffset;
+            }
+        }
+    }
+}
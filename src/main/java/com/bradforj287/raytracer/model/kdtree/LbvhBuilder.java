@@ -0,0 +1,463 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import com.bradforj287.raytracer.Globals;
+import com.google.common.base.Preconditions;
+
+/**
+ * Builds KD tree nodes as a linear bounding volume hierarchy (LBVH). Primitive centroids are
+ * sorted by morton code with a parallel radix sort, then every node is split where the highest
+ * differing bit of the codes in its range flips. This builds in close to linear time but traces
+ * slower than a SAH tree, so the hierarchy can be followed by treelet restructuring passes which
+ * rearrange small treelets of nodes into their cheapest SAH topology.
+ *
+ * Codes have 10 bits per axis for up to a million primitives and 21 beyond that, where 30 bit
+ * codes would leave too many primitives sharing a code.
+ *
+ * Like BinnedSahBuilder the index array is reordered so each leaf owns a contiguous range of it
+ * in depth first order.
+ */
+public class LbvhBuilder {
+    private static final int STRIDE = PrimitiveBoundsTable.BOUNDS_STRIDE;
+    private static final int SHORT_CODE_LIMIT = 1 << 20;
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int SORT_CHUNK_SIZE = 1 << 14;
+    private static final int TREELET_SIZE = 7;
+
+    private final PrimitiveBoundsTable table;
+    private final int[] indices;
+    private final int maxLeafSize;
+    private final int parallelBuildCutoff;
+    private final int treeletPasses;
+    private final BuildProgressListener progressListener;
+
+    private final AtomicInteger builtShapesCount = new AtomicInteger();
+
+    // morton code of the primitive at the same position of the index array
+    private long[] codes;
+
+    public LbvhBuilder(PrimitiveBoundsTable table, int[] indices, KDTreeConfig config) {
+        Preconditions.checkArgument(table.size() == indices.length);
+        this.table = table;
+        this.indices = indices;
+        this.maxLeafSize = config.getMaxLeafSize();
+        this.parallelBuildCutoff = config.getParallelBuildCutoff();
+        this.treeletPasses = config.getTreeletOptimizationPasses();
+        this.progressListener = config.getProgressListener();
+    }
+
+    /**
+     * builds the tree over the whole index array on the shared fork join pool.
+     */
+    public KDNode build() {
+        Preconditions.checkArgument(indices.length > 0);
+        return Globals.forkJoinPool.invoke(new RecursiveTask<KDNode>() {
+            @Override
+            protected KDNode compute() {
+                int bitsPerAxis = indices.length <= SHORT_CODE_LIMIT ? 10 : 21;
+                computeCodes(bitsPerAxis);
+                sortByCode(3 * bitsPerAxis);
+                BuildNode root = new EmitTask(0, indices.length).compute();
+                codes = null;
+                for (int pass = 0; pass < treeletPasses; pass++) {
+                    new TreeletTask(root).compute();
+                }
+                return toKDNodes(root);
+            }
+        });
+    }
+
+    /**
+     * node of the hierarchy while it is being built and restructured
+     */
+    private static class BuildNode {
+        private final double[] box = new double[STRIDE];
+        private BuildNode left;
+        private BuildNode right;
+        // leaves only, range of the sorted index array
+        private int start;
+        private int count;
+        // SAH cost of the subtree, areas are not normalized by the root area
+        private double cost;
+
+        boolean isLeaf() {
+            return left == null;
+        }
+
+        void updateFromChildren() {
+            for (int i = 0; i < 3; i++) {
+                box[i] = Math.min(left.box[i], right.box[i]);
+                box[i + 3] = Math.max(left.box[i + 3], right.box[i + 3]);
+            }
+            count = left.count + right.count;
+            cost = PrimitiveBoundsTable.surfaceArea(box) + left.cost + right.cost;
+        }
+    }
+
+    private void reportBuilt(int count) {
+        int built = builtShapesCount.addAndGet(count);
+        if (progressListener != null) {
+            progressListener.onProgress(built, indices.length);
+        }
+    }
+
+    /**
+     * runs body for 0 until count as fork join tasks. Must be called from inside the pool.
+     */
+    private static void parallelFor(int count, final IntConsumer body) {
+        List<RecursiveAction> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    body.accept(index);
+                }
+            });
+        }
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    private void computeCodes(int bitsPerAxis) {
+        final int n = indices.length;
+        final double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        final double[] scale = new double[3];
+        double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = 0; i < n; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                double c = table.getCentroid(indices[i], axis);
+                min[axis] = Math.min(min[axis], c);
+                max[axis] = Math.max(max[axis], c);
+            }
+        }
+        final int cells = 1 << bitsPerAxis;
+        for (int axis = 0; axis < 3; axis++) {
+            double extent = max[axis] - min[axis];
+            scale[axis] = extent > 0 ? cells / extent : 0;
+        }
+
+        codes = new long[n];
+        final int chunks = (n + SORT_CHUNK_SIZE - 1) / SORT_CHUNK_SIZE;
+        parallelFor(chunks, chunk -> {
+            int end = Math.min(n, (chunk + 1) * SORT_CHUNK_SIZE);
+            for (int i = chunk * SORT_CHUNK_SIZE; i < end; i++) {
+                int p = indices[i];
+                long code = 0;
+                for (int axis = 0; axis < 3; axis++) {
+                    int cell = (int) ((table.getCentroid(p, axis) - min[axis]) * scale[axis]);
+                    code |= spreadBits(Math.min(cell, cells - 1)) << (2 - axis);
+                }
+                codes[i] = code;
+            }
+        });
+    }
+
+    /**
+     * spreads the low 21 bits of v out to every third bit
+     */
+    private static long spreadBits(long v) {
+        v &= 0x1fffffL;
+        v = (v | v << 32) & 0x1f00000000ffffL;
+        v = (v | v << 16) & 0x1f0000ff0000ffL;
+        v = (v | v << 8) & 0x100f00f00f00f00fL;
+        v = (v | v << 4) & 0x10c30c30c30c30c3L;
+        v = (v | v << 2) & 0x1249249249249249L;
+        return v;
+    }
+
+    /**
+     * least significant digit first radix sort of the codes and the index array together. Each
+     * pass histograms fixed chunks in parallel and then scatters them in parallel, chunks write
+     * to disjoint ranges because the offsets are summed digit major and chunk minor.
+     */
+    private void sortByCode(int codeBits) {
+        final int n = indices.length;
+        final int chunks = (n + SORT_CHUNK_SIZE - 1) / SORT_CHUNK_SIZE;
+        final int[][] offsets = new int[chunks][RADIX];
+        long[] srcCodes = codes;
+        int[] srcIndices = indices;
+        long[] dstCodes = new long[n];
+        int[] dstIndices = new int[n];
+
+        for (int shift = 0; shift < codeBits; shift += RADIX_BITS) {
+            final int digitShift = shift;
+            final long[] fromCodes = srcCodes;
+            final int[] fromIndices = srcIndices;
+            final long[] toCodes = dstCodes;
+            final int[] toIndices = dstIndices;
+
+            parallelFor(chunks, chunk -> {
+                int[] histogram = offsets[chunk];
+                Arrays.fill(histogram, 0);
+                int end = Math.min(n, (chunk + 1) * SORT_CHUNK_SIZE);
+                for (int i = chunk * SORT_CHUNK_SIZE; i < end; i++) {
+                    histogram[(int) (fromCodes[i] >>> digitShift) & (RADIX - 1)]++;
+                }
+            });
+
+            // a digit every code shares leaves the order as it is
+            boolean sharedDigit = false;
+            int sum = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                int digitStart = sum;
+                for (int chunk = 0; chunk < chunks; chunk++) {
+                    int count = offsets[chunk][digit];
+                    offsets[chunk][digit] = sum;
+                    sum += count;
+                }
+                sharedDigit |= sum - digitStart == n;
+            }
+            if (sharedDigit) {
+                continue;
+            }
+
+            parallelFor(chunks, chunk -> {
+                int[] next = offsets[chunk];
+                int end = Math.min(n, (chunk + 1) * SORT_CHUNK_SIZE);
+                for (int i = chunk * SORT_CHUNK_SIZE; i < end; i++) {
+                    int slot = next[(int) (fromCodes[i] >>> digitShift) & (RADIX - 1)]++;
+                    toCodes[slot] = fromCodes[i];
+                    toIndices[slot] = fromIndices[i];
+                }
+            });
+
+            srcCodes = toCodes;
+            srcIndices = toIndices;
+            dstCodes = fromCodes;
+            dstIndices = fromIndices;
+        }
+
+        if (srcIndices != indices) {
+            System.arraycopy(srcIndices, 0, indices, 0, n);
+        }
+        codes = srcCodes;
+    }
+
+    /**
+     * emits the hierarchy over sorted indices[start, end), forking subtrees larger than the
+     * parallel build cutoff
+     */
+    private class EmitTask extends RecursiveTask<BuildNode> {
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        EmitTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected BuildNode compute() {
+            if (end - start <= parallelBuildCutoff) {
+                BuildNode node = emit(start, end);
+                reportBuilt(end - start);
+                return node;
+            }
+            int mid = findSplit(start, end);
+            EmitTask left = new EmitTask(start, mid);
+            EmitTask right = new EmitTask(mid, end);
+            invokeAll(left, right);
+            BuildNode node = new BuildNode();
+            node.left = left.join();
+            node.right = right.join();
+            node.updateFromChildren();
+            return node;
+        }
+    }
+
+    private BuildNode emit(int start, int end) {
+        BuildNode node = new BuildNode();
+        if (end - start <= maxLeafSize) {
+            table.getBounds(indices, start, end, node.box);
+            node.start = start;
+            node.count = end - start;
+            node.cost = PrimitiveBoundsTable.surfaceArea(node.box) * node.count;
+            return node;
+        }
+        int mid = findSplit(start, end);
+        node.left = emit(start, mid);
+        node.right = emit(mid, end);
+        node.updateFromChildren();
+        return node;
+    }
+
+    /**
+     * first index of the right child of sorted indices[start, end). The range splits after the
+     * last code sharing more leading bits with the first code than the last code does, ranges of
+     * equal codes split in the middle.
+     */
+    private int findSplit(int start, int end) {
+        int last = end - 1;
+        long first = codes[start];
+        if (first == codes[last]) {
+            return (start + end) >>> 1;
+        }
+        int prefix = Long.numberOfLeadingZeros(first ^ codes[last]);
+        int split = start;
+        int step = last - start;
+        do {
+            step = (step + 1) >>> 1;
+            int candidate = split + step;
+            if (candidate < last && Long.numberOfLeadingZeros(first ^ codes[candidate]) > prefix) {
+                split = candidate;
+            }
+        } while (step > 1);
+        return split + 1;
+    }
+
+    /**
+     * restructures the treelets of every node bottom up so each treelet sees its optimized
+     * children
+     */
+    private class TreeletTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BuildNode node;
+
+        TreeletTask(BuildNode node) {
+            this.node = node;
+        }
+
+        @Override
+        protected void compute() {
+            if (node.count <= parallelBuildCutoff) {
+                optimize(node);
+                return;
+            }
+            invokeAll(new TreeletTask(node.left), new TreeletTask(node.right));
+            restructure(node);
+        }
+    }
+
+    private void optimize(BuildNode node) {
+        if (node.isLeaf()) {
+            return;
+        }
+        optimize(node.left);
+        optimize(node.right);
+        restructure(node);
+    }
+
+    /**
+     * grows a treelet below root by repeatedly expanding its largest member, then rebuilds it in
+     * the topology with the lowest SAH cost found by dynamic programming over subsets of the
+     * treelet leaves. The treelet's interior nodes are reused so nothing above root changes.
+     */
+    private void restructure(BuildNode root) {
+        root.updateFromChildren();
+        BuildNode[] leaves = new BuildNode[TREELET_SIZE];
+        BuildNode[] interiors = new BuildNode[TREELET_SIZE - 1];
+        leaves[0] = root.left;
+        leaves[1] = root.right;
+        interiors[0] = root;
+        int leafCount = 2;
+        int interiorCount = 1;
+        while (leafCount < TREELET_SIZE) {
+            int largest = -1;
+            double largestArea = -1;
+            for (int i = 0; i < leafCount; i++) {
+                double area = PrimitiveBoundsTable.surfaceArea(leaves[i].box);
+                if (!leaves[i].isLeaf() && area > largestArea) {
+                    largest = i;
+                    largestArea = area;
+                }
+            }
+            if (largest < 0) {
+                break;
+            }
+            BuildNode expanded = leaves[largest];
+            interiors[interiorCount++] = expanded;
+            leaves[largest] = expanded.left;
+            leaves[leafCount++] = expanded.right;
+        }
+        if (leafCount < 3) {
+            return;
+        }
+
+        int all = (1 << leafCount) - 1;
+        double[] cost = new double[all + 1];
+        int[] partition = new int[all + 1];
+        double[] box = new double[STRIDE];
+        for (int set = 1; set <= all; set++) {
+            if (Integer.bitCount(set) == 1) {
+                cost[set] = leaves[Integer.numberOfTrailingZeros(set)].cost;
+                continue;
+            }
+            PrimitiveBoundsTable.resetBounds(box);
+            for (int i = 0; i < leafCount; i++) {
+                if ((set & (1 << i)) != 0) {
+                    for (int k = 0; k < 3; k++) {
+                        box[k] = Math.min(box[k], leaves[i].box[k]);
+                        box[k + 3] = Math.max(box[k + 3], leaves[i].box[k + 3]);
+                    }
+                }
+            }
+            // only subsets holding the lowest member, so each split is evaluated once
+            int lowest = set & -set;
+            double best = Double.POSITIVE_INFINITY;
+            for (int part = (set - 1) & set; part != 0; part = (part - 1) & set) {
+                if ((part & lowest) != 0 && cost[part] + cost[set ^ part] < best) {
+                    best = cost[part] + cost[set ^ part];
+                    partition[set] = part;
+                }
+            }
+            cost[set] = PrimitiveBoundsTable.surfaceArea(box) + best;
+        }
+
+        if (!(cost[all] < root.cost)) {
+            return;
+        }
+        link(root, all, leaves, interiors, partition, new int[] {1});
+    }
+
+    private void link(BuildNode node, int set, BuildNode[] leaves, BuildNode[] interiors, int[] partition, int[] nextInterior) {
+        node.left = subtree(partition[set], leaves, interiors, partition, nextInterior);
+        node.right = subtree(set ^ partition[set], leaves, interiors, partition, nextInterior);
+        node.updateFromChildren();
+    }
+
+    private BuildNode subtree(int set, BuildNode[] leaves, BuildNode[] interiors, int[] partition, int[] nextInterior) {
+        if (Integer.bitCount(set) == 1) {
+            return leaves[Integer.numberOfTrailingZeros(set)];
+        }
+        BuildNode node = interiors[nextInterior[0]++];
+        link(node, set, leaves, interiors, partition, nextInterior);
+        return node;
+    }
+
+    /**
+     * converts the hierarchy to KD nodes and reorders the index array so leaves own contiguous
+     * ranges in depth first order again after restructuring
+     */
+    private KDNode toKDNodes(BuildNode root) {
+        int[] ordered = new int[indices.length];
+        KDNode node = toKDNode(root, ordered, new int[1]);
+        System.arraycopy(ordered, 0, indices, 0, ordered.length);
+        return node;
+    }
+
+    private KDNode toKDNode(BuildNode buildNode, int[] ordered, int[] next) {
+        KDNode node = new KDNode();
+        node.setBoundingBox(PrimitiveBoundsTable.toBoundingBox(buildNode.box));
+        int start = next[0];
+        if (buildNode.isLeaf()) {
+            System.arraycopy(indices, buildNode.start, ordered, start, buildNode.count);
+            next[0] += buildNode.count;
+        } else {
+            node.setLeft(toKDNode(buildNode.left, ordered, next));
+            node.setRight(toKDNode(buildNode.right, ordered, next));
+        }
+        node.setPrimitiveRange(start, buildNode.count);
+        return node;
+    }
+}
@@ -0,0 +1,23 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+/**
+ * How node bounds of a KDTree are stored.
+ */
+public enum NodeCompression {
+    // six doubles per node
+    NONE(0),
+    // six 16 bit values per node quantized relative to the parent box
+    QUANTIZED_16(16),
+    // six 8 bit values per node quantized relative to the parent box
+    QUANTIZED_8(8);
+
+    private final int bits;
+
+    NodeCompression(int bits) {
+        this.bits = bits;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+}
@@ -0,0 +1,95 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import java.util.List;
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.Shape3d;
+import com.bradforj287.raytracer.geometry.Vector3d;
+
+/**
+ * Bounds and centroid of every primitive computed once up front so the tree builder can work on
+ * primitive indices without asking the shapes again. Primitives are numbered as in PrimitiveList.
+ */
+public class PrimitiveBoundsTable {
+    public static final int BOUNDS_STRIDE = 6;
+
+    // min x,y,z then max x,y,z per primitive
+    final double[] bounds;
+
+    // x,y,z per primitive
+    final double[] centroids;
+
+    private final int size;
+
+    public PrimitiveBoundsTable(List<Shape3d> shapes) {
+        this(new PrimitiveList(shapes));
+    }
+
+    public PrimitiveBoundsTable(PrimitiveList primitives) {
+        this.size = primitives.size();
+        this.bounds = new double[size * BOUNDS_STRIDE];
+        this.centroids = new double[size * 3];
+        double[] box = new double[BOUNDS_STRIDE];
+        double[] centroid = new double[3];
+        for (int i = 0; i < size; i++) {
+            primitives.getBounds(i, box);
+            System.arraycopy(box, 0, bounds, i * BOUNDS_STRIDE, BOUNDS_STRIDE);
+            primitives.getCentroid(i, centroid);
+            System.arraycopy(centroid, 0, centroids, i * 3, 3);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getCentroid(int primitive, int axis) {
+        return centroids[primitive * 3 + axis];
+    }
+
+    /**
+     * copies the bounds of one primitive into out as min x,y,z then max x,y,z
+     */
+    public void getBounds(int primitive, double[] out) {
+        System.arraycopy(bounds, primitive * BOUNDS_STRIDE, out, 0, BOUNDS_STRIDE);
+    }
+
+    /**
+     * computes the bounds of the primitives in indices[start, end) into out as
+     * min x,y,z then max x,y,z
+     */
+    public void getBounds(int[] indices, int start, int end, double[] out) {
+        resetBounds(out);
+        for (int i = start; i < end; i++) {
+            growBounds(out, indices[i]);
+        }
+    }
+
+    void growBounds(double[] out, int primitive) {
+        int b = primitive * BOUNDS_STRIDE;
+        out[0] = Math.min(out[0], bounds[b]);
+        out[1] = Math.min(out[1], bounds[b + 1]);
+        out[2] = Math.min(out[2], bounds[b + 2]);
+        out[3] = Math.max(out[3], bounds[b + 3]);
+        out[4] = Math.max(out[4], bounds[b + 4]);
+        out[5] = Math.max(out[5], bounds[b + 5]);
+    }
+
+    static void resetBounds(double[] out) {
+        out[0] = out[1] = out[2] = Double.POSITIVE_INFINITY;
+        out[3] = out[4] = out[5] = Double.NEGATIVE_INFINITY;
+    }
+
+    static double surfaceArea(double[] box) {
+        double x = box[3] - box[0];
+        double y = box[4] - box[1];
+        double z = box[5] - box[2];
+        if (x < 0 || y < 0 || z < 0) {
+            return 0;
+        }
+        return 2 * (x * y + y * z + z * x);
+    }
+
+    static AxisAlignedBoundingBox3d toBoundingBox(double[] box) {
+        return new AxisAlignedBoundingBox3d(new Vector3d(box[0], box[1], box[2]), new Vector3d(box[3], box[4], box[5]));
+    }
+}
@@ -0,0 +1,166 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import java.util.Arrays;
+import java.util.List;
+import com.bradforj287.raytracer.geometry.HitRecord;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.Shape3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.model.MeshInstance;
+import com.bradforj287.raytracer.model.ShapeVisitor;
+import com.google.common.base.Preconditions;
+
+/**
+ * The primitives an acceleration structure is built over, each one a shape and the index of the
+ * primitive inside it. Most shapes are a single primitive while a TriangleMesh is one per
+ * triangle, so meshes are indexed triangle by triangle without an object per triangle.
+ *
+ * Immutable.
+ */
+public class PrimitiveList {
+    final Shape3d[] shapes;
+    final int[] indices;
+
+    /**
+     * every primitive of every shape in list order
+     */
+    public PrimitiveList(List<Shape3d> shapeList) {
+        int size = 0;
+        for (Shape3d shape : shapeList) {
+            size += shape.getPrimitiveCount();
+        }
+        shapes = new Shape3d[size];
+        indices = new int[size];
+        int p = 0;
+        for (Shape3d shape : shapeList) {
+            for (int i = 0, count = shape.getPrimitiveCount(); i < count; i++) {
+                shapes[p] = shape;
+                indices[p++] = i;
+            }
+        }
+    }
+
+    PrimitiveList(Shape3d[] shapes, int[] indices) {
+        Preconditions.checkArgument(shapes.length == indices.length);
+        this.shapes = shapes;
+        this.indices = indices;
+    }
+
+    public int size() {
+        return shapes.length;
+    }
+
+    public Shape3d getShape(int primitive) {
+        return shapes[primitive];
+    }
+
+    public int getIndex(int primitive) {
+        return indices[primitive];
+    }
+
+    /**
+     * primitive i of the result is primitive order[i] of this list
+     */
+    public PrimitiveList reorder(int[] order) {
+        Shape3d[] orderedShapes = new Shape3d[order.length];
+        int[] orderedIndices = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            orderedShapes[i] = shapes[order[i]];
+            orderedIndices[i] = indices[order[i]];
+        }
+        return new PrimitiveList(orderedShapes, orderedIndices);
+    }
+
+    public PrimitiveList subList(int start, int end) {
+        return new PrimitiveList(Arrays.copyOfRange(shapes, start, end), Arrays.copyOfRange(indices, start, end));
+    }
+
+    /**
+     * the primitive tests below hand queryStats on to mesh instances, so the traversal of their
+     * own tree counts towards the query
+     */
+    public ShapeHit intersect(int primitive, Ray3d ray, double t1, KdTreeQueryStats queryStats) {
+        Shape3d shape = shapes[primitive];
+        if (shape instanceof MeshInstance) {
+            return ((MeshInstance) shape).closestHit(ray, t1, queryStats);
+        }
+        return shape.intersectPrimitive(indices[primitive], ray, t1);
+    }
+
+    public boolean intersect(int primitive, Ray3d ray, HitRecord record, KdTreeQueryStats queryStats) {
+        Shape3d shape = shapes[primitive];
+        if (shape instanceof MeshInstance) {
+            ShapeHit hit = ((MeshInstance) shape).closestHit(ray, record.getT(), queryStats);
+            if (hit == null || !(hit.getT() < record.getT())) {
+                return false;
+            }
+            record.set(hit, shape, indices[primitive]);
+            return true;
+        }
+        return shape.intersectPrimitive(indices[primitive], ray, record);
+    }
+
+    public boolean isOccluding(int primitive, Ray3d ray, double t1, KdTreeQueryStats queryStats) {
+        Shape3d shape = shapes[primitive];
+        if (shape instanceof MeshInstance) {
+            return ((MeshInstance) shape).anyHit(ray, t1, queryStats);
+        }
+        return shape.isPrimitiveOccludingRay(indices[primitive], ray, t1);
+    }
+
+    public void visit(int primitive, ShapeVisitor visitor) {
+        visitor.visit(shapes[primitive], indices[primitive]);
+    }
+
+    public void getBounds(int primitive, double[] out) {
+        shapes[primitive].getPrimitiveBounds(indices[primitive], out);
+    }
+
+    public void getCentroid(int primitive, double[] out) {
+        shapes[primitive].getPrimitiveCentroid(indices[primitive], out);
+    }
+
+    /**
+     * bytes of the two arrays counting 4 bytes per shape reference
+     */
+    public long getMemoryBytes() {
+        return 8L * shapes.length;
+    }
+
+    /**
+     * growable list for assembling primitives one at a time
+     */
+    static class Builder {
+        private Shape3d[] shapes;
+        private int[] indices;
+        private int size;
+
+        Builder(int capacity) {
+            shapes = new Shape3d[Math.max(capacity, 4)];
+            indices = new int[shapes.length];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(Shape3d shape, int index) {
+            if (size == shapes.length) {
+                shapes = Arrays.copyOf(shapes, size * 2);
+                indices = Arrays.copyOf(indices, size * 2);
+            }
+            shapes[size] = shape;
+            indices[size++] = index;
+        }
+
+        void addAll(PrimitiveList list) {
+            for (int i = 0; i < list.size(); i++) {
+                add(list.shapes[i], list.indices[i]);
+            }
+        }
+
+        PrimitiveList build() {
+            return new PrimitiveList(Arrays.copyOf(shapes, size), Arrays.copyOf(indices, size));
+        }
+    }
+}
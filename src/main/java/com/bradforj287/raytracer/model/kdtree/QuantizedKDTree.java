@@ -0,0 +1,393 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.HitRecord;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.geometry.Vector3d;
+import com.bradforj287.raytracer.model.RayPacket;
+import com.bradforj287.raytracer.model.ShapeVisitor;
+import com.google.common.base.Preconditions;
+
+/**
+ * FlatKDTree with compressed node bounds. Only the root box is kept in doubles. Every other node
+ * stores its box as six 8 or 16 bit steps relative to the box of its parent: the min corner as
+ * steps up from the parent min and the max corner as steps down from the parent max. Boxes are
+ * rounded outward when encoded so a decoded box always contains the exact one, and they are
+ * encoded against the decoded parent so errors don't add up with depth.
+ *
+ * Bounds take 6 or 12 bytes per node instead of 48. Traversal decodes child boxes on the fly from
+ * the box of the current node and keeps decoded boxes on its stack.
+ *
+ * Node data and primitives are shared with the FlatKDTree it was made from. Immutable.
+ */
+public class QuantizedKDTree implements TreeTraversal {
+    private static final int STRIDE = FlatKDTree.BOUNDS_STRIDE;
+
+    private final int levels;
+    // exactly one of these holds the quantized bounds
+    private final byte[] bounds8;
+    private final short[] bounds16;
+    private final double[] rootBounds;
+
+    private final int[] nodeData;
+    private final PrimitiveList primitives;
+    private final int nodeCount;
+    private final int maxDepth;
+
+    private QuantizedKDTree(FlatKDTree tree, NodeCompression compression) {
+        Preconditions.checkArgument(compression != NodeCompression.NONE);
+        this.levels = (1 << compression.getBits()) - 1;
+        this.bounds8 = compression == NodeCompression.QUANTIZED_8 ? new byte[tree.nodeCount * STRIDE] : null;
+        this.bounds16 = compression == NodeCompression.QUANTIZED_16 ? new short[tree.nodeCount * STRIDE] : null;
+        this.rootBounds = new double[STRIDE];
+        System.arraycopy(tree.nodeBounds, 0, rootBounds, 0, STRIDE);
+        this.nodeData = tree.nodeData;
+        this.primitives = tree.primitives;
+        this.nodeCount = tree.nodeCount;
+        this.maxDepth = tree.maxDepth;
+    }
+
+    public static QuantizedKDTree fromFlatTree(FlatKDTree tree, NodeCompression compression) {
+        QuantizedKDTree quantized = new QuantizedKDTree(tree, compression);
+        quantized.encodeChildren(tree, 0, quantized.rootBounds);
+        return quantized;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        long boundsBytes = bounds8 != null ? bounds8.length : 2L * bounds16.length;
+        return boundsBytes + 8L * STRIDE + 4L * nodeData.length + primitives.getMemoryBytes();
+    }
+
+    private void encodeChildren(FlatKDTree tree, int node, double[] decoded) {
+        if (tree.isLeaf(node)) {
+            return;
+        }
+        int left = node + 1;
+        int right = nodeData[node * FlatKDTree.DATA_STRIDE];
+        double[] leftBox = new double[STRIDE];
+        encode(left, tree.nodeBounds, decoded, leftBox);
+        encodeChildren(tree, left, leftBox);
+        double[] rightBox = new double[STRIDE];
+        encode(right, tree.nodeBounds, decoded, rightBox);
+        encodeChildren(tree, right, rightBox);
+    }
+
+    private static double step(double low, double high, int levels) {
+        return (high - low) / levels;
+    }
+
+    /**
+     * quantizes the exact box of node outward against the decoded parent box and writes the
+     * decoded result to out
+     */
+    private void encode(int node, double[] exact, double[] parent, double[] out) {
+        int b = node * STRIDE;
+        for (int axis = 0; axis < 3; axis++) {
+            double low = parent[axis];
+            double high = parent[axis + 3];
+            double step = step(low, high, levels);
+            double exactMin = exact[b + axis];
+            double exactMax = exact[b + axis + 3];
+            int qMin = 0;
+            int qMax = 0;
+            // empty (NaN) or flat boxes keep the parent box
+            if (step > 0 && !Double.isNaN(exactMin)) {
+                qMin = clamp((int) Math.floor((exactMin - low) / step));
+                while (qMin > 0 && low + qMin * step > exactMin) {
+                    qMin--;
+                }
+                qMax = clamp((int) Math.floor((high - exactMax) / step));
+                while (qMax > 0 && high - qMax * step < exactMax) {
+                    qMax--;
+                }
+            }
+            setQuantized(b + axis, qMin);
+            setQuantized(b + axis + 3, qMax);
+        }
+        decode(node, parent, 0, out, 0);
+    }
+
+    private int clamp(int q) {
+        return Math.max(0, Math.min(levels, q));
+    }
+
+    private void setQuantized(int i, int q) {
+        if (bounds8 != null) {
+            bounds8[i] = (byte) q;
+        } else {
+            bounds16[i] = (short) q;
+        }
+    }
+
+    private int getQuantized(int i) {
+        return bounds8 != null ? bounds8[i] & 0xFF : bounds16[i] & 0xFFFF;
+    }
+
+    /**
+     * decodes the box of node from the box of its parent at parent[pb] into out[ob]
+     */
+    private void decode(int node, double[] parent, int pb, double[] out, int ob) {
+        int q = node * STRIDE;
+        for (int axis = 0; axis < 3; axis++) {
+            double low = parent[pb + axis];
+            double high = parent[pb + axis + 3];
+            double step = step(low, high, levels);
+            out[ob + axis] = low + getQuantized(q + axis) * step;
+            out[ob + axis + 3] = high - getQuantized(q + axis + 3) * step;
+        }
+    }
+
+    @Override
+    public AxisAlignedBoundingBox3d getRootBounds() {
+        return PrimitiveBoundsTable.toBoundingBox(rootBounds);
+    }
+
+    /**
+     * a FlatKDTree with the decoded, slightly larger, bounds of this tree
+     */
+    @Override
+    public FlatKDTree toFlatTree() {
+        double[] nodeBounds = new double[nodeCount * STRIDE];
+        System.arraycopy(rootBounds, 0, nodeBounds, 0, STRIDE);
+        for (int node = 0; node < nodeCount; node++) {
+            if (nodeData[node * FlatKDTree.DATA_STRIDE + 1] < 0) {
+                // parents come before their children so the parent box is already decoded
+                decode(node + 1, nodeBounds, node * STRIDE, nodeBounds, (node + 1) * STRIDE);
+                int right = nodeData[node * FlatKDTree.DATA_STRIDE];
+                decode(right, nodeBounds, node * STRIDE, nodeBounds, right * STRIDE);
+            }
+        }
+        return new FlatKDTree(nodeBounds, nodeData, primitives, maxDepth);
+    }
+
+    @Override
+    public void visitPossibleIntersections(final Ray3d ray, final ShapeVisitor visitor, final KdTreeQueryStats queryStats) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+
+        final int[] data = nodeData;
+        final int[] stack = new int[maxDepth + 1];
+        final double[] stackBox = new double[(maxDepth + 1) * STRIDE];
+        double[] box = rootBounds.clone();
+        double[] child = new double[STRIDE];
+        int stackSize = 0;
+        int node = 0;
+
+        while (true) {
+            queryStats.nodesVisited++;
+            if (FlatKDTree.intersectBox(box, 0, ox, oy, oz, ix, iy, iz) != Double.POSITIVE_INFINITY) {
+                int d = node * FlatKDTree.DATA_STRIDE;
+                int count = data[d + 1];
+                if (count < 0) {
+                    decode(data[d], box, 0, stackBox, stackSize * STRIDE);
+                    stack[stackSize++] = data[d];
+                    decode(node + 1, box, 0, child, 0);
+                    double[] tmp = box;
+                    box = child;
+                    child = tmp;
+                    node = node + 1;
+                    continue;
+                }
+                queryStats.shapesVisited += count;
+                for (int i = data[d], end = data[d] + count; i < end; i++) {
+                    primitives.visit(i, visitor);
+                }
+            }
+            if (stackSize == 0) {
+                return;
+            }
+            node = stack[--stackSize];
+            System.arraycopy(stackBox, stackSize * STRIDE, box, 0, STRIDE);
+        }
+    }
+
+    /**
+     * closest hit search, same ordering and pruning as FlatKDTree.closestHit
+     */
+    @Override
+    public ShapeHit closestHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+
+        final int[] data = nodeData;
+        final int[] stack = new int[maxDepth + 1];
+        final double[] stackEntry = new double[maxDepth + 1];
+        final double[] stackBox = new double[(maxDepth + 1) * STRIDE];
+        double[] box = rootBounds.clone();
+        double[] leftBox = new double[STRIDE];
+        double[] rightBox = new double[STRIDE];
+        int stackSize = 0;
+
+        double bestT = maxT;
+        final HitRecord record = new HitRecord(maxT);
+
+        int node = 0;
+        double entry = FlatKDTree.intersectBox(box, 0, ox, oy, oz, ix, iy, iz);
+        if (entry > bestT) {
+            return null;
+        }
+
+        while (true) {
+            queryStats.nodesVisited++;
+            int d = node * FlatKDTree.DATA_STRIDE;
+            int count = data[d + 1];
+            if (count < 0) {
+                int left = node + 1;
+                int right = data[d];
+                decode(left, box, 0, leftBox, 0);
+                decode(right, box, 0, rightBox, 0);
+                double leftEntry = FlatKDTree.intersectBox(leftBox, 0, ox, oy, oz, ix, iy, iz);
+                double rightEntry = FlatKDTree.intersectBox(rightBox, 0, ox, oy, oz, ix, iy, iz);
+                boolean hitLeft = leftEntry <= bestT;
+                boolean hitRight = rightEntry <= bestT;
+                double[] tmp = box;
+                if (hitLeft && hitRight) {
+                    if (rightEntry < leftEntry) {
+                        System.arraycopy(leftBox, 0, stackBox, stackSize * STRIDE, STRIDE);
+                        stack[stackSize] = left;
+                        stackEntry[stackSize++] = leftEntry;
+                        node = right;
+                        box = rightBox;
+                        rightBox = tmp;
+                    } else {
+                        System.arraycopy(rightBox, 0, stackBox, stackSize * STRIDE, STRIDE);
+                        stack[stackSize] = right;
+                        stackEntry[stackSize++] = rightEntry;
+                        node = left;
+                        box = leftBox;
+                        leftBox = tmp;
+                    }
+                    continue;
+                } else if (hitLeft) {
+                    node = left;
+                    box = leftBox;
+                    leftBox = tmp;
+                    continue;
+                } else if (hitRight) {
+                    node = right;
+                    box = rightBox;
+                    rightBox = tmp;
+                    continue;
+                }
+            } else {
+                queryStats.shapesVisited += count;
+                for (int i = data[d], end = data[d] + count; i < end; i++) {
+                    if (primitives.intersect(i, ray, record, queryStats)) {
+                        bestT = record.getT();
+                    }
+                }
+            }
+
+            do {
+                if (stackSize == 0) {
+                    return record.toShapeHit();
+                }
+                node = stack[--stackSize];
+                entry = stackEntry[stackSize];
+            } while (entry > bestT);
+            System.arraycopy(stackBox, stackSize * STRIDE, box, 0, STRIDE);
+        }
+    }
+
+    /**
+     * packets are traced one ray at a time, the box stack doesn't pay for itself across rays
+     */
+    @Override
+    public void closestHit(final RayPacket packet, final int fallbackThreshold, final KdTreeQueryStats queryStats) {
+        for (int i = 0; i < packet.size(); i++) {
+            ShapeHit hit = closestHit(packet.getRay(i), packet.tMax[i], queryStats);
+            if (hit != null) {
+                packet.setHit(i, hit);
+            }
+        }
+    }
+
+    /**
+     * any hit search, same child order as FlatKDTree.anyHit
+     */
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        return anyHit(ray, maxT, queryStats, null);
+    }
+
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats, final HitRecord occluder) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+
+        double[] box = rootBounds.clone();
+        if (FlatKDTree.intersectBox(box, 0, ox, oy, oz, ix, iy, iz) > maxT) {
+            return false;
+        }
+
+        final int[] data = nodeData;
+        final int[] stack = new int[maxDepth + 1];
+        final double[] stackBox = new double[(maxDepth + 1) * STRIDE];
+        double[] firstBox = new double[STRIDE];
+        double[] secondBox = new double[STRIDE];
+        int stackSize = 0;
+        int node = 0;
+
+        while (true) {
+            queryStats.nodesVisited++;
+            int d = node * FlatKDTree.DATA_STRIDE;
+            int count = data[d + 1];
+            if (count < 0) {
+                int first = node + 1;
+                int second = data[d];
+                if (count == FlatKDTree.INTERIOR_OCCLUDE_RIGHT_FIRST) {
+                    first = second;
+                    second = node + 1;
+                }
+                decode(first, box, 0, firstBox, 0);
+                decode(second, box, 0, secondBox, 0);
+                boolean hitFirst = FlatKDTree.intersectBox(firstBox, 0, ox, oy, oz, ix, iy, iz) <= maxT;
+                boolean hitSecond = FlatKDTree.intersectBox(secondBox, 0, ox, oy, oz, ix, iy, iz) <= maxT;
+                double[] tmp = box;
+                if (hitFirst) {
+                    if (hitSecond) {
+                        System.arraycopy(secondBox, 0, stackBox, stackSize * STRIDE, STRIDE);
+                        stack[stackSize++] = second;
+                    }
+                    node = first;
+                    box = firstBox;
+                    firstBox = tmp;
+                    continue;
+                } else if (hitSecond) {
+                    node = second;
+                    box = secondBox;
+                    secondBox = tmp;
+                    continue;
+                }
+            } else {
+                queryStats.shapesVisited += count;
+                for (int i = data[d], end = data[d] + count; i < end; i++) {
+                    if (primitives.isOccluding(i, ray, maxT, queryStats)) {
+                        if (occluder != null) {
+                            occluder.set(maxT, primitives.getShape(i), primitives.getIndex(i));
+                        }
+                        return true;
+                    }
+                }
+            }
+
+            if (stackSize == 0) {
+                return false;
+            }
+            node = stack[--stackSize];
+            System.arraycopy(stackBox, stackSize * STRIDE, box, 0, STRIDE);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+/**
+ * One triangle at a time. Also tests the tail of a range that doesn't fill a vector.
+ */
+public class ScalarTriangleBatchKernel implements TriangleBatchKernel {
+
+    @Override
+    public int closestHit(TriangleBatch b, int start, int end, double ox, double oy, double oz,
+                          double dx, double dy, double dz, double tMax, double[] tOut) {
+        int best = -1;
+        double bestT = tMax;
+        for (int i = start; i < end; i++) {
+            double t = intersect(b, i, ox, oy, oz, dx, dy, dz);
+            if (t < bestT) {
+                bestT = t;
+                best = i;
+            }
+        }
+        tOut[0] = bestT;
+        return best;
+    }
+
+    @Override
+    public boolean anyHit(TriangleBatch b, int start, int end, double ox, double oy, double oz,
+                          double dx, double dy, double dz, double tMax) {
+        for (int i = start; i < end; i++) {
+            if (intersect(b, i, ox, oy, oz, dx, dy, dz) <= tMax) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getWidth() {
+        return 1;
+    }
+
+    /**
+     * t of the hit with triangle i, NaN if the ray misses it
+     */
+    static double intersect(TriangleBatch b, int i, double ox, double oy, double oz, double dx, double dy, double dz) {
+        double e1x = b.e1x[i], e1y = b.e1y[i], e1z = b.e1z[i];
+        double e2x = b.e2x[i], e2y = b.e2y[i], e2z = b.e2z[i];
+
+        double px = dy * e2z - dz * e2y;
+        double py = dz * e2x - dx * e2z;
+        double pz = dx * e2y - dy * e2x;
+        double inv = 1 / (e1x * px + e1y * py + e1z * pz);
+
+        double sx = ox - b.v0x[i];
+        double sy = oy - b.v0y[i];
+        double sz = oz - b.v0z[i];
+        double u = (sx * px + sy * py + sz * pz) * inv;
+
+        double qx = sy * e1z - sz * e1y;
+        double qy = sz * e1x - sx * e1z;
+        double qz = sx * e1y - sy * e1x;
+        double v = (dx * qx + dy * qy + dz * qz) * inv;
+        double t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+
+        boolean hit = (u >= 0) & (v >= 0) & (u + v <= 1) & (t >= 0);
+        return hit ? t : Double.NaN;
+    }
+}
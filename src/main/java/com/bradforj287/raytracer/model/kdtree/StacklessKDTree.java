@@ -0,0 +1,174 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.HitRecord;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.geometry.Vector3d;
+import com.bradforj287.raytracer.model.RayPacket;
+import com.bradforj287.raytracer.model.ShapeVisitor;
+import com.google.common.base.Preconditions;
+
+/**
+ * Stackless traversal of a FlatKDTree. Every node has a skip rope, the index of the first node
+ * after its subtree in depth first order. A ray that misses a node or is done with a leaf
+ * follows the rope, so traversal is a single loop with no stack to allocate.
+ *
+ * Children are always visited left first. Closest hit queries lose the nearest child first
+ * order of FlatKDTree and only prune nodes the ray enters beyond the best hit.
+ *
+ * Traversal can resume from the rope of any leaf, which is how every query here steps from one
+ * leaf to the next with nextLeaf.
+ */
+public class StacklessKDTree implements TreeTraversal {
+    private final FlatKDTree tree;
+
+    // first node after the subtree of each node, nodeCount after the last subtree
+    private final int[] skip;
+
+    private StacklessKDTree(FlatKDTree tree, int[] skip) {
+        this.tree = tree;
+        this.skip = skip;
+    }
+
+    public static StacklessKDTree fromFlatTree(FlatKDTree tree) {
+        Preconditions.checkNotNull(tree);
+        final int[] data = tree.nodeData;
+        int[] skip = new int[tree.nodeCount];
+        // right children come after their parent so walking backwards sees them first
+        for (int node = tree.nodeCount - 1; node >= 0; node--) {
+            int d = node * FlatKDTree.DATA_STRIDE;
+            skip[node] = data[d + 1] >= 0 ? node + 1 : skip[data[d]];
+        }
+        return new StacklessKDTree(tree, skip);
+    }
+
+    /**
+     * walks the tree from node in depth first order and returns the first leaf the ray enters
+     * no later than maxT, or -1 once the walk runs off the end of the tree. Continue after a leaf
+     * with nextLeaf(getSkip(leaf), ...).
+     */
+    public int nextLeaf(int node, double ox, double oy, double oz, double ix, double iy, double iz,
+                        double maxT, KdTreeQueryStats queryStats) {
+        final int[] data = tree.nodeData;
+        final int end = tree.nodeCount;
+        while (node < end) {
+            queryStats.nodesVisited++;
+            double entry = tree.intersectNode(node, ox, oy, oz, ix, iy, iz);
+            if (entry <= maxT && entry != Double.POSITIVE_INFINITY) {
+                if (data[node * FlatKDTree.DATA_STRIDE + 1] >= 0) {
+                    return node;
+                }
+                node++;
+            } else {
+                node = skip[node];
+            }
+        }
+        return -1;
+    }
+
+    public int getSkip(int node) {
+        return skip[node];
+    }
+
+    @Override
+    public void visitPossibleIntersections(final Ray3d ray, final ShapeVisitor visitor, final KdTreeQueryStats queryStats) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+        final int[] data = tree.nodeData;
+
+        int leaf = nextLeaf(0, ox, oy, oz, ix, iy, iz, Double.POSITIVE_INFINITY, queryStats);
+        while (leaf >= 0) {
+            int d = leaf * FlatKDTree.DATA_STRIDE;
+            queryStats.shapesVisited += data[d + 1];
+            for (int i = data[d], end = data[d] + data[d + 1]; i < end; i++) {
+                tree.primitives.visit(i, visitor);
+            }
+            leaf = nextLeaf(skip[leaf], ox, oy, oz, ix, iy, iz, Double.POSITIVE_INFINITY, queryStats);
+        }
+    }
+
+    @Override
+    public ShapeHit closestHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+        final int[] data = tree.nodeData;
+
+        double bestT = maxT;
+        final HitRecord record = new HitRecord(maxT);
+        int leaf = nextLeaf(0, ox, oy, oz, ix, iy, iz, bestT, queryStats);
+        while (leaf >= 0) {
+            int d = leaf * FlatKDTree.DATA_STRIDE;
+            queryStats.shapesVisited += data[d + 1];
+            for (int i = data[d], end = data[d] + data[d + 1]; i < end; i++) {
+                if (tree.primitives.intersect(i, ray, record, queryStats)) {
+                    bestT = record.getT();
+                }
+            }
+            leaf = nextLeaf(skip[leaf], ox, oy, oz, ix, iy, iz, bestT, queryStats);
+        }
+        return record.toShapeHit();
+    }
+
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats) {
+        return anyHit(ray, maxT, queryStats, null);
+    }
+
+    @Override
+    public boolean anyHit(final Ray3d ray, final double maxT, final KdTreeQueryStats queryStats, final HitRecord occluder) {
+        final Vector3d orig = ray.getPoint();
+        final Vector3d dir = ray.getDirection();
+        final double ox = orig.x, oy = orig.y, oz = orig.z;
+        final double ix = 1 / dir.x, iy = 1 / dir.y, iz = 1 / dir.z;
+        final int[] data = tree.nodeData;
+
+        int leaf = nextLeaf(0, ox, oy, oz, ix, iy, iz, maxT, queryStats);
+        while (leaf >= 0) {
+            int d = leaf * FlatKDTree.DATA_STRIDE;
+            queryStats.shapesVisited += data[d + 1];
+            for (int i = data[d], end = data[d] + data[d + 1]; i < end; i++) {
+                if (tree.primitives.isOccluding(i, ray, maxT, queryStats)) {
+                    if (occluder != null) {
+                        occluder.set(maxT, tree.primitives.getShape(i), tree.primitives.getIndex(i));
+                    }
+                    return true;
+                }
+            }
+            leaf = nextLeaf(skip[leaf], ox, oy, oz, ix, iy, iz, maxT, queryStats);
+        }
+        return false;
+    }
+
+    /**
+     * packets are traced one ray at a time
+     */
+    @Override
+    public void closestHit(final RayPacket packet, final int fallbackThreshold, final KdTreeQueryStats queryStats) {
+        for (int i = 0; i < packet.size(); i++) {
+            ShapeHit hit = closestHit(packet.getRay(i), packet.tMax[i], queryStats);
+            if (hit != null) {
+                packet.setHit(i, hit);
+            }
+        }
+    }
+
+    @Override
+    public AxisAlignedBoundingBox3d getRootBounds() {
+        return tree.getRootBounds();
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return tree.getMemoryBytes() + 4L * skip.length;
+    }
+
+    @Override
+    public FlatKDTree toFlatTree() {
+        return tree;
+    }
+}
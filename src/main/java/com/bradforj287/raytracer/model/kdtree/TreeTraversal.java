@@ -0,0 +1,40 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import com.bradforj287.raytracer.geometry.AxisAlignedBoundingBox3d;
+import com.bradforj287.raytracer.geometry.HitRecord;
+import com.bradforj287.raytracer.geometry.Ray3d;
+import com.bradforj287.raytracer.geometry.ShapeHit;
+import com.bradforj287.raytracer.model.RayPacket;
+import com.bradforj287.raytracer.model.ShapeVisitor;
+
+/**
+ * Queries shared by the node formats a KDTree can be stored in.
+ */
+interface TreeTraversal {
+    void visitPossibleIntersections(Ray3d ray, ShapeVisitor visitor, KdTreeQueryStats queryStats);
+
+    ShapeHit closestHit(Ray3d ray, double maxT, KdTreeQueryStats queryStats);
+
+    void closestHit(RayPacket packet, int fallbackThreshold, KdTreeQueryStats queryStats);
+
+    boolean anyHit(Ray3d ray, double maxT, KdTreeQueryStats queryStats);
+
+    /**
+     * see Accelerator.anyHit
+     */
+    default boolean anyHit(Ray3d ray, double maxT, KdTreeQueryStats queryStats, HitRecord occluder) {
+        return anyHit(ray, maxT, queryStats);
+    }
+
+    AxisAlignedBoundingBox3d getRootBounds();
+
+    /**
+     * bytes held by node and primitive arrays, counting 4 bytes per shape reference
+     */
+    long getMemoryBytes();
+
+    /**
+     * the tree with full precision node bounds
+     */
+    FlatKDTree toFlatTree();
+}
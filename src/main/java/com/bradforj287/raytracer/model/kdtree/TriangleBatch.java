@@ -0,0 +1,77 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import java.util.Arrays;
+import com.bradforj287.raytracer.geometry.TriangleKernel;
+
+/**
+ * The triangles of a primitive list in structure of arrays form, one array per coordinate of the
+ * first vertex and both edges, so a kernel can load the same coordinate of several neighboring
+ * primitives at once. Leaves are contiguous ranges of the list, which makes every leaf a batch.
+ *
+ * Primitives that are not triangles have NaN coordinates, which no kernel reports as a hit, and
+ * are tested one at a time through the primitive list instead.
+ *
+ * Immutable.
+ */
+public class TriangleBatch {
+    final double[] v0x, v0y, v0z;
+    final double[] e1x, e1y, e1z;
+    final double[] e2x, e2y, e2z;
+
+    // number of primitives that are not triangles before each position, size + 1 entries
+    private final int[] othersBefore;
+
+    private TriangleBatch(int size) {
+        v0x = new double[size];
+        v0y = new double[size];
+        v0z = new double[size];
+        e1x = new double[size];
+        e1y = new double[size];
+        e1z = new double[size];
+        e2x = new double[size];
+        e2y = new double[size];
+        e2z = new double[size];
+        othersBefore = new int[size + 1];
+    }
+
+    public static TriangleBatch of(PrimitiveList primitives) {
+        TriangleBatch batch = new TriangleBatch(primitives.size());
+        double[] tri = new double[TriangleKernel.STRIDE];
+        for (int i = 0; i < primitives.size(); i++) {
+            boolean triangle = primitives.getShape(i).getPrimitiveTriangle(primitives.getIndex(i), tri);
+            if (!triangle) {
+                Arrays.fill(tri, Double.NaN);
+            }
+            batch.v0x[i] = tri[0];
+            batch.v0y[i] = tri[1];
+            batch.v0z[i] = tri[2];
+            batch.e1x[i] = tri[3];
+            batch.e1y[i] = tri[4];
+            batch.e1z[i] = tri[5];
+            batch.e2x[i] = tri[6];
+            batch.e2y[i] = tri[7];
+            batch.e2z[i] = tri[8];
+            batch.othersBefore[i + 1] = batch.othersBefore[i] + (triangle ? 0 : 1);
+        }
+        return batch;
+    }
+
+    public int size() {
+        return v0x.length;
+    }
+
+    public boolean isTriangle(int primitive) {
+        return othersBefore[primitive + 1] == othersBefore[primitive];
+    }
+
+    /**
+     * true if every primitive in [start, end) is a triangle
+     */
+    public boolean isAllTriangles(int start, int end) {
+        return othersBefore[end] == othersBefore[start];
+    }
+
+    public long getMemoryBytes() {
+        return 8L * 9 * v0x.length + 4L * othersBefore.length;
+    }
+}
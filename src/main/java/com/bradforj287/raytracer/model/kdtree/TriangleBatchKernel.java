@@ -0,0 +1,42 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+/**
+ * Tests one ray against a range of a TriangleBatch with Moller-Trumbore arithmetic, the same
+ * operations as TriangleKernel.MOLLER_TRUMBORE so every implementation reports the same hits.
+ * Implementations must be safe for concurrent use.
+ */
+public interface TriangleBatchKernel {
+
+    // built by the vector profile, see pom.xml
+    String VECTOR_KERNEL_CLASS = "com.bradforj287.raytracer.model.kdtree.VectorTriangleBatchKernel";
+
+    /**
+     * position of the closest triangle in [start, end) hit with t less than tMax, or -1. The t
+     * of that hit goes into tOut[0].
+     */
+    int closestHit(TriangleBatch batch, int start, int end, double ox, double oy, double oz,
+                   double dx, double dy, double dz, double tMax, double[] tOut);
+
+    /**
+     * true if a triangle in [start, end) is hit with t no greater than tMax
+     */
+    boolean anyHit(TriangleBatch batch, int start, int end, double ox, double oy, double oz,
+                   double dx, double dy, double dz, double tMax);
+
+    /**
+     * number of triangles tested at once
+     */
+    int getWidth();
+
+    /**
+     * the vector kernel when it was compiled in and the jdk.incubator.vector module is present
+     * at runtime, otherwise the scalar one
+     */
+    static TriangleBatchKernel load() {
+        try {
+            return (TriangleBatchKernel) Class.forName(VECTOR_KERNEL_CLASS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return new ScalarTriangleBatchKernel();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.bradforj287.raytracer.model.light;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import com.bradforj287.raytracer.geometry.PointLight;
+import com.bradforj287.raytracer.geometry.Vector3d;
+import com.google.common.base.Preconditions;
+
+/**
+ * Bounding volume hierarchy over the lights of a scene, so a shading point only looks at the
+ * lights that reach it. Every node keeps the box its lights with a finite range reach, the box
+ * of their positions, their total power and their largest range.
+ *
+ * Lights can be visited exactly, every light whose range covers the point, or sampled: walking
+ * down from the root picking each child with probability proportional to an estimate of how
+ * much it lights the point, which costs the depth of the tree whatever the number of lights.
+ *
+ * Lights with an infinite range reach everything. Nodes keep their power apart, it counts
+ * towards the importance of the node whatever the distance, so sampling picks them by power
+ * like any other light.
+ *
+ * Immutable.
+ */
+public class LightTree {
+    private static final int STRIDE = 6;
+
+    private final PointLight[] lights;
+
+    // flattened depth first like BVH, interior nodes {second child, -1}, leaves {light, 1}
+    private final int[] data;
+    private final double[] reach;
+    private final double[] positions;
+    private final double[] power;
+    private final double[] range;
+    // power of the lights with an infinite range
+    private final double[] globalPower;
+    private int count;
+    private int maxDepth;
+
+    public LightTree(List<PointLight> allLights) {
+        Preconditions.checkNotNull(allLights);
+        this.lights = allLights.toArray(new PointLight[0]);
+
+        int nodes = Math.max(0, 2 * lights.length - 1);
+        data = new int[nodes * 2];
+        reach = new double[nodes * STRIDE];
+        positions = new double[nodes * STRIDE];
+        power = new double[nodes];
+        range = new double[nodes];
+        globalPower = new double[nodes];
+        if (lights.length > 0) {
+            buildNode(0, lights.length, 0);
+        }
+    }
+
+    private int buildNode(int start, int end, int depth) {
+        int node = count++;
+        maxDepth = Math.max(maxDepth, depth);
+        Arrays.fill(reach, node * STRIDE, node * STRIDE + 3, Double.POSITIVE_INFINITY);
+        Arrays.fill(reach, node * STRIDE + 3, node * STRIDE + 6, Double.NEGATIVE_INFINITY);
+        Arrays.fill(positions, node * STRIDE, node * STRIDE + 3, Double.POSITIVE_INFINITY);
+        Arrays.fill(positions, node * STRIDE + 3, node * STRIDE + 6, Double.NEGATIVE_INFINITY);
+        for (int i = start; i < end; i++) {
+            PointLight light = lights[i];
+            boolean global = light.getRange() == Double.POSITIVE_INFINITY;
+            for (int axis = 0; axis < 3; axis++) {
+                double c = light.getPosition().getCoordinate(axis);
+                if (!global) {
+                    reach[node * STRIDE + axis] = Math.min(reach[node * STRIDE + axis], c - light.getRange());
+                    reach[node * STRIDE + axis + 3] = Math.max(reach[node * STRIDE + axis + 3], c + light.getRange());
+                }
+                positions[node * STRIDE + axis] = Math.min(positions[node * STRIDE + axis], c);
+                positions[node * STRIDE + axis + 3] = Math.max(positions[node * STRIDE + axis + 3], c);
+            }
+            if (global) {
+                globalPower[node] += light.getPower();
+            } else {
+                power[node] += light.getPower();
+                range[node] = Math.max(range[node], light.getRange());
+            }
+        }
+
+        if (end - start == 1) {
+            data[node * 2] = start;
+            data[node * 2 + 1] = 1;
+            return node;
+        }
+
+        // median split along the axis the positions spread the most
+        int axis = 0;
+        for (int a = 1; a < 3; a++) {
+            if (positions[node * STRIDE + a + 3] - positions[node * STRIDE + a]
+                    > positions[node * STRIDE + axis + 3] - positions[node * STRIDE + axis]) {
+                axis = a;
+            }
+        }
+        final int splitAxis = axis;
+        Arrays.sort(lights, start, end, (a, b) -> Double.compare(
+                a.getPosition().getCoordinate(splitAxis), b.getPosition().getCoordinate(splitAxis)));
+        int mid = (start + end) >>> 1;
+        buildNode(start, mid, depth + 1);
+        int second = buildNode(mid, end, depth + 1);
+        data[node * 2] = second;
+        data[node * 2 + 1] = -1;
+        return node;
+    }
+
+    public int getLightCount() {
+        return lights.length;
+    }
+
+    public PointLight getLight(int index) {
+        return lights[index];
+    }
+
+    /**
+     * writes the index of every light that reaches point into out, which needs
+     * room for getLightCount() entries, and returns how many there are
+     */
+    public int collect(Vector3d point, int[] out) {
+        if (lights.length == 0) {
+            return 0;
+        }
+        int found = 0;
+        int[] stack = new int[maxDepth + 1];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            if (!reaches(node, point)) {
+                continue;
+            }
+            if (data[node * 2 + 1] > 0) {
+                PointLight light = lights[data[node * 2]];
+                if (light.getPosition().subtract(point).getMagnitude() < light.getRange()) {
+                    out[found++] = data[node * 2];
+                }
+            } else {
+                stack[stackSize++] = data[node * 2];
+                stack[stackSize++] = node + 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * picks a light with probability roughly proportional to how much it lights
+     * point and returns its index with the probability in pdfOut[0], or -1 if no light
+     * reaches the point
+     */
+    public int sample(Vector3d point, Random random, double[] pdfOut) {
+        if (lights.length == 0) {
+            return -1;
+        }
+        double pdf = 1;
+        int node = 0;
+        if (importance(node, point) == 0) {
+            return -1;
+        }
+        while (data[node * 2 + 1] < 0) {
+            int first = node + 1;
+            int second = data[node * 2];
+            double firstImportance = importance(first, point);
+            double secondImportance = importance(second, point);
+            double total = firstImportance + secondImportance;
+            if (total == 0) {
+                return -1;
+            }
+            if (random.nextDouble() * total < firstImportance) {
+                pdf *= firstImportance / total;
+                node = first;
+            } else {
+                pdf *= secondImportance / total;
+                node = second;
+            }
+        }
+        pdfOut[0] = pdf;
+        return data[node * 2];
+    }
+
+    private boolean reaches(int node, Vector3d point) {
+        return globalPower[node] > 0 || reachesLocally(node, point);
+    }
+
+    /**
+     * true if point is in the box the lights of the node with a finite range reach
+     */
+    private boolean reachesLocally(int node, Vector3d point) {
+        int b = node * STRIDE;
+        return point.x >= reach[b] && point.y >= reach[b + 1] && point.z >= reach[b + 2]
+                && point.x <= reach[b + 3] && point.y <= reach[b + 4] && point.z <= reach[b + 5];
+    }
+
+    /**
+     * power of the lights of the node with an infinite range plus the power of the others
+     * attenuated over the distance from point to the nearest light position of the node. Exact
+     * for a leaf, never zero for a node with a light that reaches point.
+     */
+    private double importance(int node, Vector3d point) {
+        if (!reachesLocally(node, point)) {
+            return globalPower[node];
+        }
+        int b = node * STRIDE;
+        double dx = Math.max(0, Math.max(positions[b] - point.x, point.x - positions[b + 3]));
+        double dy = Math.max(0, Math.max(positions[b + 1] - point.y, point.y - positions[b + 4]));
+        double dz = Math.max(0, Math.max(positions[b + 2] - point.z, point.z - positions[b + 5]));
+        return globalPower[node] + power[node] * PointLight.attenuation(Math.sqrt(dx * dx + dy * dy + dz * dz), range[node]);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 import java.util.StringTokenizer;
@@ -12,6 +13,13 @@ import com.bradforj287.raytracer.geometry.*;
 public class ObjFileParser {
 
     public static List<Shape3d> parseObjFile(File file) {
+        return parseObjFile(file, TriangleKernel.CRAMER);
+    }
+
+    /**
+     * one Triangle3d per face, tested with the given kernel
+     */
+    public static List<Shape3d> parseObjFile(File file, TriangleKernel kernel) {
         try {
             List<Shape3d> r = new ArrayList<>();
 
@@ -45,7 +53,7 @@ public class ObjFileParser {
                     Vector3d v3 = new Vector3d(verticies.get(k));
                     Surface surface = new Surface();
                     surface.setColor(RgbColor.fromInt(123123));
-                    Triangle3d tri = new Triangle3d(v1, v2, v3, surface);
+                    Triangle3d tri = new Triangle3d(v1, v2, v3, surface, kernel);
                     r.add(tri.getFlippedNormal());
                 }
             }
@@ -54,4 +62,61 @@ public class ObjFileParser {
             throw new RuntimeException(ex);
         }
     }
+
+    /**
+     * parses the faces of the file into a single TriangleMesh sharing the vertices of the file,
+     * wound like the triangles from parseObjFile
+     */
+    public static TriangleMesh parseObjMesh(File file) {
+        return parseObjMesh(file, TriangleKernel.CRAMER);
+    }
+
+    public static TriangleMesh parseObjMesh(File file, TriangleKernel kernel) {
+        return parseObjMesh(file, kernel, GeometryPrecision.DOUBLE);
+    }
+
+    public static TriangleMesh parseObjMesh(File file, TriangleKernel kernel, GeometryPrecision precision) {
+        try (Scanner scanner = new Scanner(new FileInputStream(file))) {
+            double[] vertices = new double[3 * 1024];
+            int vertexCount = 0;
+            int[] indices = new int[3 * 1024];
+            int indexCount = 0;
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine();
+
+                StringTokenizer tok = new StringTokenizer(line, " ");
+                if (!tok.hasMoreTokens()) {
+                    continue;
+                }
+                String firstToken = tok.nextToken();
+
+                if (firstToken.equals("v")) {
+                    if (vertexCount * 3 == vertices.length) {
+                        vertices = Arrays.copyOf(vertices, vertices.length * 2);
+                    }
+                    vertices[vertexCount * 3] = Double.parseDouble(tok.nextToken());
+                    vertices[vertexCount * 3 + 1] = Double.parseDouble(tok.nextToken());
+                    vertices[vertexCount * 3 + 2] = Double.parseDouble(tok.nextToken());
+                    vertexCount++;
+
+                } else if (firstToken.equals("f")) {
+                    int i = Integer.parseInt(tok.nextToken()) - 1;
+                    int j = Integer.parseInt(tok.nextToken()) - 1;
+                    int k = Integer.parseInt(tok.nextToken()) - 1;
+                    if (indexCount == indices.length) {
+                        indices = Arrays.copyOf(indices, indices.length * 2);
+                    }
+                    // flipped like Triangle3d.getFlippedNormal
+                    indices[indexCount++] = j;
+                    indices[indexCount++] = i;
+                    indices[indexCount++] = k;
+                }
+            }
+            Surface surface = new Surface();
+            surface.setColor(RgbColor.fromInt(123123));
+            return new TriangleMesh(Arrays.copyOf(vertices, vertexCount * 3), Arrays.copyOf(indices, indexCount), surface, kernel, precision);
+        } catch (FileNotFoundException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
 }
@@ -22,6 +22,11 @@ public class CameraControlPanel extends JPanel {
     private Timer turnRightTimer;
     private Timer lookUpTimer;
     private Timer lookDownTimer;
+    private Timer refineTimer;
+    private SwingWorker<Void, Void> refineWorker;
+
+    // held while the camera changes or renders, refinement passes render off the EDT
+    private final Object renderLock = new Object();
 
     final double rotationRate = -1 * 5 * Math.PI / 180;
 
@@ -36,6 +41,7 @@ public class CameraControlPanel extends JPanel {
         this.camera = new Camera(sceneRes, sceneModel);
         camera.setScreenPosition(ProgramArguments.DEFAULT_SCREEN_POSITION);
         camera.setRotation(-1 * Math.PI / 2, 0, 0);
+        camera.setProgressive(ProgramArguments.PROGRESSIVE);
         //camera.setScreenPosition(new Vector3d(264.47257159,190.827145105804, 137.471873229963));
         //camera.setRotation(-1.22173, 0, -0.95993);
         cameraViewPanel = new CameraViewPanel(camera);
@@ -51,23 +57,51 @@ public class CameraControlPanel extends JPanel {
         cameraViewPanel.repaint();
     }
 
+    /**
+     * renders the next progressive pass in the background unless one is still running
+     */
+    private void refine() {
+        if (refineWorker != null && !refineWorker.isDone()) {
+            return;
+        }
+        refineWorker = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                synchronized (renderLock) {
+                    cameraViewPanel.renderFrame();
+                }
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                cameraViewPanel.repaint();
+            }
+        };
+        refineWorker.execute();
+    }
+
     private void movePositionForward(double delta) {
-        Vector3d dd = direction.multiply(delta);
-        Vector3d newPos = camera.getScreenPosition().add(dd);
-        //System.out.println(newPos.toString());
-        camera.setScreenPosition(newPos);
-        rerender();
+        synchronized (renderLock) {
+            Vector3d dd = direction.multiply(delta);
+            Vector3d newPos = camera.getScreenPosition().add(dd);
+            //System.out.println(newPos.toString());
+            camera.setScreenPosition(newPos);
+            rerender();
+        }
     }
 
     private void rotateByDelta(double tx, double ty, double tz) {
-        //rotate directional vector
-        Matrix3d rot = Matrix3d.getRotationMatrix(tx, ty, tz);
-        direction = direction.multiplyByMatrix(rot);
-        double ntx = camera.getThetax() + tx;
-        double nty = camera.getThetay() + ty;
-        double ntz = camera.getThetaz() + tz;
-        camera.setRotation(ntx, nty, ntz);
-        rerender();
+        synchronized (renderLock) {
+            //rotate directional vector
+            Matrix3d rot = Matrix3d.getRotationMatrix(tx, ty, tz);
+            direction = direction.multiplyByMatrix(rot);
+            double ntx = camera.getThetax() + tx;
+            double nty = camera.getThetay() + ty;
+            double ntz = camera.getThetaz() + tz;
+            camera.setRotation(ntx, nty, ntz);
+            rerender();
+        }
     }
 
     private void rotateLeft() {
@@ -95,6 +129,12 @@ public class CameraControlPanel extends JPanel {
         this.lookUpTimer = new Timer(delay, a -> rotateUp());
         this.lookDownTimer = new Timer(delay, a -> rotateDown());
 
+        // progressive frames keep adding passes while no key is held
+        this.refineTimer = new Timer(delay, a -> refine());
+        if (camera.isProgressive()) {
+            refineTimer.start();
+        }
+
         this.addKeyListener(new KeyListener() {
             @Override
             public void keyTyped(KeyEvent e) {
@@ -105,6 +145,7 @@ public class CameraControlPanel extends JPanel {
             public void keyPressed(KeyEvent e) {
                 char key = e.getKeyChar();
                 int keycode = e.getKeyCode();
+                refineTimer.stop();
                 if (key == 'w') {
                     moveForwardTimer.start();
                 } else if (key == 's') {
@@ -138,7 +179,16 @@ public class CameraControlPanel extends JPanel {
                 } else if (keycode == KeyEvent.VK_DOWN) {
                     lookDownTimer.stop();
                 }
+                if (camera.isProgressive() && !isMoving()) {
+                    refineTimer.start();
+                }
             }
         });
     }
+
+    private boolean isMoving() {
+        return moveForwardTimer.isRunning() || moveBackwardTimer.isRunning()
+                || turnLeftTimer.isRunning() || turnRightTimer.isRunning()
+                || lookUpTimer.isRunning() || lookDownTimer.isRunning();
+    }
 }
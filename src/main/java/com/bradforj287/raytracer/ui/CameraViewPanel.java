@@ -86,6 +86,10 @@ public class CameraViewPanel extends JPanel {
 
         String nodeVisits = Long.toString(nodesPerRay);
         drawString(g2d, "#NVST=" + nodeVisits, 10, 70);
+
+        if (camera.isProgressive()) {
+            drawString(g2d, "#PASS=" + camera.getPasses(), 10, 80);
+        }
     }
 
     private void drawString(Graphics2D g2d, String s, int i, int j) {
@@ -1,5 +1,6 @@
 package com.bradforj287.raytracer.utils;
 
+import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
@@ -15,35 +16,22 @@ public class ShapeUtils {
         Preconditions.checkNotNull(shapes);
         Preconditions.checkArgument(!shapes.isEmpty());
 
-        Shape3d firstShape = shapes.get(0);
-        double minX = firstShape.minX();
-        double minY = firstShape.minY();
-        double minZ = firstShape.minZ();
-        double maxX = firstShape.maxX();
-        double maxY = firstShape.maxY();
-        double maxZ = firstShape.maxZ();
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double minZ = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        double maxZ = Double.NEGATIVE_INFINITY;
 
-        for (int i = 1; i < shapes.size(); i++) {
-            Shape3d shape = shapes.get(i);
-            if (shape.minX() < minX) {
-                minX = shape.minX();
-            }
-            if (shape.minY() < minY) {
-                minY = shape.minY();
-            }
-            if (shape.minZ() < minZ) {
-                minZ = shape.minZ();
-            }
-
-            if (shape.maxX() > maxX) {
-                maxX = shape.maxX();
-            }
-            if (shape.maxY() > maxY) {
-                maxY = shape.maxY();
-            }
-            if (shape.maxZ() > maxZ) {
-                maxZ = shape.maxZ();
-            }
+        // one box per shape, the minX()..maxZ() accessors each fetch it again
+        for (Shape3d shape : shapes) {
+            AxisAlignedBoundingBox3d box = shape.getBoundingBox();
+            minX = Math.min(minX, box.getMin().x);
+            minY = Math.min(minY, box.getMin().y);
+            minZ = Math.min(minZ, box.getMin().z);
+            maxX = Math.max(maxX, box.getMax().x);
+            maxY = Math.max(maxY, box.getMax().y);
+            maxZ = Math.max(maxZ, box.getMax().z);
         }
         Vector3d minPoint = new Vector3d(minX, minY, minZ);
         Vector3d maxPoint = new Vector3d(maxX, maxY, maxZ);
@@ -65,11 +53,10 @@ public class ShapeUtils {
     }
 
     public static List<Shape3d> sortByAxis(List<Shape3d> shapes, Axis axis) {
-        return shapes.stream().sorted((a, b) -> {
-            Double aa = a.getCentroid().getCoordiateByAxis(axis);
-            Double bb = b.getCentroid().getCoordiateByAxis(axis);
-            return aa.compareTo(bb);
-        }).collect(Collectors.toList());
+        final int index = axis.getIndex();
+        return shapes.stream()
+                .sorted(Comparator.comparingDouble((Shape3d s) -> s.getCentroid().getCoordinate(index)))
+                .collect(Collectors.toList());
     }
 
     public static Vector3d getAveragePoint(List<Shape3d> shapes) {
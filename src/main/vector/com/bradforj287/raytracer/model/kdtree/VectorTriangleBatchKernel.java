@@ -0,0 +1,126 @@
+package com.bradforj287.raytracer.model.kdtree;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Tests as many triangles at once as the widest double vector of the machine holds, 4 with AVX2
+ * and 8 with AVX-512. The tail of a range that doesn't fill a vector is tested by the scalar
+ * kernel.
+ *
+ * Only built by the vector profile and only loads when the JVM runs with
+ * --add-modules jdk.incubator.vector, TriangleBatchKernel.load falls back to the scalar kernel
+ * otherwise.
+ */
+public class VectorTriangleBatchKernel implements TriangleBatchKernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final ScalarTriangleBatchKernel TAIL = new ScalarTriangleBatchKernel();
+
+    /**
+     * t of the hit with each of the triangles from i, NaN where the ray misses
+     */
+    private static DoubleVector intersect(TriangleBatch b, int i, DoubleVector ox, DoubleVector oy, DoubleVector oz,
+                                          DoubleVector dx, DoubleVector dy, DoubleVector dz) {
+        DoubleVector e1x = DoubleVector.fromArray(SPECIES, b.e1x, i);
+        DoubleVector e1y = DoubleVector.fromArray(SPECIES, b.e1y, i);
+        DoubleVector e1z = DoubleVector.fromArray(SPECIES, b.e1z, i);
+        DoubleVector e2x = DoubleVector.fromArray(SPECIES, b.e2x, i);
+        DoubleVector e2y = DoubleVector.fromArray(SPECIES, b.e2y, i);
+        DoubleVector e2z = DoubleVector.fromArray(SPECIES, b.e2z, i);
+
+        // same operations in the same order as the scalar kernel
+        DoubleVector px = dy.mul(e2z).sub(dz.mul(e2y));
+        DoubleVector py = dz.mul(e2x).sub(dx.mul(e2z));
+        DoubleVector pz = dx.mul(e2y).sub(dy.mul(e2x));
+        DoubleVector inv = DoubleVector.broadcast(SPECIES, 1).div(e1x.mul(px).add(e1y.mul(py)).add(e1z.mul(pz)));
+
+        DoubleVector sx = ox.sub(DoubleVector.fromArray(SPECIES, b.v0x, i));
+        DoubleVector sy = oy.sub(DoubleVector.fromArray(SPECIES, b.v0y, i));
+        DoubleVector sz = oz.sub(DoubleVector.fromArray(SPECIES, b.v0z, i));
+        DoubleVector u = sx.mul(px).add(sy.mul(py)).add(sz.mul(pz)).mul(inv);
+
+        DoubleVector qx = sy.mul(e1z).sub(sz.mul(e1y));
+        DoubleVector qy = sz.mul(e1x).sub(sx.mul(e1z));
+        DoubleVector qz = sx.mul(e1y).sub(sy.mul(e1x));
+        DoubleVector v = dx.mul(qx).add(dy.mul(qy)).add(dz.mul(qz)).mul(inv);
+        DoubleVector t = e2x.mul(qx).add(e2y.mul(qy)).add(e2z.mul(qz)).mul(inv);
+
+        VectorMask<Double> hit = u.compare(VectorOperators.GE, 0)
+                .and(v.compare(VectorOperators.GE, 0))
+                .and(u.add(v).compare(VectorOperators.LE, 1))
+                .and(t.compare(VectorOperators.GE, 0));
+        return DoubleVector.broadcast(SPECIES, Double.NaN).blend(t, hit);
+    }
+
+    @Override
+    public int closestHit(TriangleBatch b, int start, int end, double ox, double oy, double oz,
+                          double dx, double dy, double dz, double tMax, double[] tOut) {
+        final int width = SPECIES.length();
+        int best = -1;
+        double bestT = tMax;
+        int i = start;
+        if (end - start >= width) {
+            DoubleVector vox = DoubleVector.broadcast(SPECIES, ox);
+            DoubleVector voy = DoubleVector.broadcast(SPECIES, oy);
+            DoubleVector voz = DoubleVector.broadcast(SPECIES, oz);
+            DoubleVector vdx = DoubleVector.broadcast(SPECIES, dx);
+            DoubleVector vdy = DoubleVector.broadcast(SPECIES, dy);
+            DoubleVector vdz = DoubleVector.broadcast(SPECIES, dz);
+            for (; i + width <= end; i += width) {
+                DoubleVector t = intersect(b, i, vox, voy, voz, vdx, vdy, vdz);
+                VectorMask<Double> closer = t.compare(VectorOperators.LT, bestT);
+                if (closer.anyTrue()) {
+                    // lowest lane of the closest t, like the scalar kernel
+                    for (int lane = 0; lane < width; lane++) {
+                        double lt = t.lane(lane);
+                        if (lt < bestT) {
+                            bestT = lt;
+                            best = i + lane;
+                        }
+                    }
+                }
+            }
+        }
+        if (i < end) {
+            int tail = TAIL.closestHit(b, i, end, ox, oy, oz, dx, dy, dz, bestT, tOut);
+            if (tail >= 0) {
+                return tail;
+            }
+        }
+        tOut[0] = bestT;
+        return best;
+    }
+
+    @Override
+    public boolean anyHit(TriangleBatch b, int start, int end, double ox, double oy, double oz,
+                          double dx, double dy, double dz, double tMax) {
+        final int width = SPECIES.length();
+        int i = start;
+        if (end - start >= width) {
+            DoubleVector vox = DoubleVector.broadcast(SPECIES, ox);
+            DoubleVector voy = DoubleVector.broadcast(SPECIES, oy);
+            DoubleVector voz = DoubleVector.broadcast(SPECIES, oz);
+            DoubleVector vdx = DoubleVector.broadcast(SPECIES, dx);
+            DoubleVector vdy = DoubleVector.broadcast(SPECIES, dy);
+            DoubleVector vdz = DoubleVector.broadcast(SPECIES, dz);
+            for (; i + width <= end; i += width) {
+                if (intersect(b, i, vox, voy, voz, vdx, vdy, vdz).compare(VectorOperators.LE, tMax).anyTrue()) {
+                    return true;
+                }
+            }
+        }
+        for (; i < end; i++) {
+            if (ScalarTriangleBatchKernel.intersect(b, i, ox, oy, oz, dx, dy, dz) <= tMax) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getWidth() {
+        return SPECIES.length();
+    }
+}